@@ -0,0 +1,93 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of Filter.decide() and Filter.feedback() for each named filter,
+ * over the sample tweets for the first training topic.
+ *
+ * Each invocation handles the next sample tweet, wrapping around at the end.
+ * Before every iteration the filter is reset with setTopic() and given the
+ * judgments of the first PRIMING_TWEETS tweets, so that filters which need
+ * both relevant and nonrelevant examples (the Bayes filters) actually score
+ * tweets in decide().
+ *
+ * @author Ben Saylor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    private static final int PRIMING_TWEETS = 20;
+
+    @Param({"baseline", "boolean-or", "query", "feedback", "bayes",
+        "bayes-weka"})
+    public String filterName;
+
+    private ArrayList<Tweet> tweets;
+    private Topic topic;
+    private Filter filter;
+    private FilterDecision decision = new FilterDecision();
+    private int next;
+
+    @Setup(Level.Trial)
+    public void readSample() throws IOException {
+        tweets = SampleData.readTweets();
+        topic = SampleData.readTopic();
+        filter = NamedFilterFactory.forName(filterName).newFilter();
+    }
+
+    @Setup(Level.Iteration)
+    public void resetFilter() {
+        filter.setTopic(topic);
+        for (int i = 0; i < PRIMING_TWEETS; i++) {
+            filter.feedback(tweets.get(i), relevance(tweets.get(i)));
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public FilterDecision decide() {
+        filter.decide(nextTweet(), decision);
+        return decision;
+    }
+
+    @Benchmark
+    public void feedback() {
+        Tweet tweet = nextTweet();
+        filter.feedback(tweet, relevance(tweet));
+    }
+
+    // A fixed mix of relevance values: mostly nonrelevant, as in the qrels
+    private static int relevance(Tweet tweet) {
+        int relevance = (int) (tweet.id % 5);
+        return (relevance > Constants.MAXREL) ? 0 : relevance;
+    }
+
+    private Tweet nextTweet() {
+        Tweet tweet = tweets.get(next++);
+        if (next == tweets.size()) {
+            next = 0;
+        }
+        return tweet;
+    }
+}
@@ -0,0 +1,66 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to parse the training topics file and to read the training qrels, in
+ * the text and the binary form, from copies held in memory.
+ *
+ * @author Ben Saylor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InputParsingBenchmark {
+
+    private byte[] topicsFile;
+    private byte[] qrelsFile;
+    private byte[] binaryQrelsFile;
+    private FilterController controller;
+
+    @Setup
+    public void readFiles() throws IOException {
+        topicsFile = SampleData.readResource(SampleData.TOPICS_FILE);
+        qrelsFile = SampleData.readResource(SampleData.QRELS_FILE);
+        controller = new FilterController();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Qrels.read(new ByteArrayInputStream(qrelsFile)).save(out);
+        binaryQrelsFile = out.toByteArray();
+    }
+
+    @Benchmark
+    public ArrayList<Topic> parseTopics() {
+        return new TopicsFileParser().parseTopics(
+                new ByteArrayInputStream(topicsFile));
+    }
+
+    @Benchmark
+    public FilterController readQrels() {
+        controller.readQrels(new ByteArrayInputStream(qrelsFile));
+        return controller;
+    }
+
+    @Benchmark
+    public FilterController readBinaryQrels() {
+        controller.readQrels(new ByteArrayInputStream(binaryQrelsFile));
+        return controller;
+    }
+}
@@ -0,0 +1,84 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import com.google.gson.Gson;
+
+/**
+ * The fixed sample data used by the benchmarks, so that they need no tweet
+ * database: tweets from sample-tweets.json (one JSON tweet per line, in the
+ * createdb import format) and the training topics and qrels from the main
+ * resources.
+ *
+ * The sample tweets are synthetic, not taken from the Tweets2011 corpus:
+ * 1000 texts generated from a vocabulary of about 430 words that includes
+ * the terms of the first training topic, with about 8% retweets and 8%
+ * texts with non-ASCII characters, spread over the ID range of that topic.
+ * Every tweet has the topic's query time as its created_at. Their term
+ * distribution is not that of real tweets, so the benchmark numbers are for
+ * comparing versions of the code, not for predicting throughput on the
+ * corpus.
+ *
+ * @author Ben Saylor
+ */
+class SampleData {
+
+    static final String TWEETS_FILE = "/sample-tweets.json";
+    static final String TOPICS_FILE
+        = "/2012.topics.MB1-50.filtering.training.txt";
+    static final String QRELS_FILE = "/filtering-qrels.training";
+
+    private SampleData() {
+    }
+
+    /**
+     * @return The sample tweets, in ascending ID order
+     *
+     * @throws IOException
+     */
+    static ArrayList<Tweet> readTweets() throws IOException {
+        ArrayList<Tweet> tweets = new ArrayList<>();
+        Gson gson = new Gson();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        SampleData.class.getResourceAsStream(TWEETS_FILE),
+                        StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                tweets.add(gson.fromJson(line, Tweet.class));
+            }
+        }
+        return tweets;
+    }
+
+    /**
+     * @return The first training topic, which the sample tweets are about
+     */
+    static Topic readTopic() {
+        return new TopicsFileParser().parseTopics(
+                SampleData.class.getResourceAsStream(TOPICS_FILE)).get(0);
+    }
+
+    /**
+     * @param name Name of a resource
+     * @return The contents of the resource
+     *
+     * @throws IOException
+     */
+    static byte[] readResource(String name) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (InputStream in = SampleData.class.getResourceAsStream(name)) {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,105 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.almworks.sqlite4java.SQLiteException;
+
+/**
+ * Throughput of a topic's scan of a TweetDatabase with each schema version,
+ * reading either all fields or only the id and text (see setFields()):
+ * startRange() over the middle half of the IDs, and next() until the end of
+ * the range.
+ *
+ * The database is a temporary file holding COPIES copies of the sample
+ * tweets, each copy with its IDs offset into a range of its own, inserted in
+ * ID order. That is the best case for schema version 1, whose table is
+ * otherwise in insertion order.
+ *
+ * @author Ben Saylor
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.library.path=build/libs")
+public class ScanBenchmark {
+
+    private static final int COPIES = 200;
+
+    @Param({"1", "2"})
+    public int schemaVersion;
+
+    @Param({"false", "true"})
+    public boolean idAndTextOnly;
+
+    private File dbfile;
+    private TweetDatabase db;
+    private long firstId;
+    private long lastId;
+
+    @Setup
+    public void createDatabase() throws IOException, SQLiteException {
+        ArrayList<Tweet> tweets = SampleData.readTweets();
+        long[] ids = new long[tweets.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = tweets.get(i).id;
+        }
+        long width = ids[ids.length - 1] - ids[0] + 1;
+
+        dbfile = File.createTempFile("scan-benchmark", ".sqlite");
+        dbfile.delete();
+        db = new TweetDatabase(dbfile);
+        db.createTable(schemaVersion);
+        db.begin();
+        for (int c = 0; c < COPIES; c++) {
+            for (int i = 0; i < ids.length; i++) {
+                Tweet tweet = tweets.get(i);
+                tweet.id = ids[i] + c * width;
+                db.insertTweet(tweet);
+            }
+        }
+        db.commit();
+        db.finishImport();
+        if (idAndTextOnly) {
+            db.setFields(Tweet.ID_AND_TEXT);
+        }
+
+        long total = COPIES * width;
+        firstId = ids[0] + total / 4;
+        lastId = ids[0] + 3 * (total / 4);
+    }
+
+    @TearDown
+    public void deleteDatabase() {
+        db.close();
+        dbfile.delete();
+        db.getIdIndexFile().delete();
+    }
+
+    @Benchmark
+    public long scanRange() {
+        db.startRange(firstId, lastId);
+        long count = 0;
+        while (db.next() != null) {
+            count++;
+        }
+        return count;
+    }
+}
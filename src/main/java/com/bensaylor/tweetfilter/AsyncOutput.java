@@ -0,0 +1,319 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Output written by a background thread, so that the filtering loop does
+ * not wait on encoding, compression or disk writes.
+ *
+ * Writers returned by open() collect their text in large chunks. Each full
+ * chunk goes onto a queue, and one background thread takes chunks from the
+ * queue in order and encodes and writes them to their streams. Flushing a
+ * writer sends its partial chunk and waits until everything it has written
+ * is on its stream, so writers should be flushed only at topic boundaries;
+ * closing a writer also closes its stream. The queue is bounded, so a
+ * writer that gets too far ahead of the background thread waits for it.
+ *
+ * An error writing a stream is printed once, and the stream's writer then
+ * reports it through checkError().
+ *
+ * @author Ben Saylor
+ */
+class AsyncOutput implements Closeable {
+
+    private static final int CHUNK_SIZE = 32768;
+    private static final int QUEUE_SIZE = 64;
+    private static final int STREAM_BUFFER_SIZE = 65536;
+
+    // What the background thread does with a chunk
+    private static final int WRITE = 0;
+    private static final int FLUSH = 1;
+    private static final int CLOSE = 2;
+    private static final int STOP = 3;
+
+    private BlockingQueue<Chunk> queue
+        = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private BlockingQueue<char[]> spareBuffers
+        = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private Thread thread;
+
+    /**
+     * Start the background thread.
+     */
+    AsyncOutput() {
+        thread = new Thread(new Runnable() {
+            public void run() {
+                writeChunks();
+            }
+        }, "output");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Open a file for writing, compressing it with gzip if its name ends in
+     * ".gz".
+     *
+     * @param filename Name of the file
+     * @return A buffered stream for writing the file
+     *
+     * @throws IOException
+     */
+    static OutputStream openFile(String filename) throws IOException {
+        OutputStream out = new FileOutputStream(filename);
+        if (filename.endsWith(".gz")) {
+            try {
+                out = new GZIPOutputStream(out, STREAM_BUFFER_SIZE);
+            } catch (IOException e) {
+                out.close();
+                throw e;
+            }
+        }
+        return new BufferedOutputStream(out, STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Open an uncompressed file for writing from the given length, cutting
+     * off anything after it, as when resuming a run from a checkpoint.
+     *
+     * @param filename Name of the file
+     * @param length Number of bytes of the file to keep
+     * @return A buffered stream for appending to the file
+     *
+     * @throws IOException if the file can't be opened or is shorter than
+     * length
+     */
+    static OutputStream openFileAt(String filename, long length)
+            throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "rw")) {
+            if (file.length() < length) {
+                throw new IOException(filename + " is shorter than expected");
+            }
+            file.setLength(length);
+        }
+        return new BufferedOutputStream(new FileOutputStream(filename, true),
+                STREAM_BUFFER_SIZE);
+    }
+
+    /**
+     * Open a file for writing through the background thread, compressing it
+     * with gzip if its name ends in ".gz".
+     *
+     * @param filename Name of the file
+     * @return A writer for the file
+     *
+     * @throws IOException
+     */
+    PrintWriter open(String filename) throws IOException {
+        return open(openFile(filename));
+    }
+
+    /**
+     * @param out The stream to write to, in the default character encoding,
+     * from the background thread
+     * @return A writer for the stream
+     */
+    PrintWriter open(OutputStream out) {
+        return new PrintWriter(new ChunkWriter(new OutputStreamWriter(out)));
+    }
+
+    /**
+     * Write the remaining chunks and stop the background thread. Writers
+     * that have not been closed are not flushed.
+     */
+    @Override
+    public void close() {
+        if (thread == null) {
+            return;
+        }
+        try {
+            queue.put(new Chunk(null, null, 0, STOP));
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    // Body of the background thread
+    private void writeChunks() {
+        while (true) {
+            Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (chunk.op == STOP) {
+                return;
+            }
+            ChunkWriter writer = chunk.writer;
+            if (writer.error == null) {
+                try {
+                    switch (chunk.op) {
+                        case WRITE:
+                            writer.out.write(chunk.chars, 0, chunk.length);
+                            break;
+                        case FLUSH:
+                            writer.out.flush();
+                            break;
+                        case CLOSE:
+                            writer.out.close();
+                            break;
+                    }
+                } catch (IOException e) {
+                    System.err.println("Error writing output: "
+                            + e.getMessage());
+                    writer.error = e;
+                }
+            }
+            if (chunk.op == CLOSE && writer.error != null) {
+                try {
+                    writer.out.close();
+                } catch (IOException e) {
+                }
+            }
+            if (chunk.chars != null) {
+                spareBuffers.offer(chunk.chars);
+            }
+            if (chunk.done != null) {
+                chunk.done.countDown();
+            }
+        }
+    }
+
+    // A piece of work for the background thread
+    private static class Chunk {
+        final ChunkWriter writer;
+        final char[] chars;
+        final int length;
+        final int op;
+        final CountDownLatch done;
+
+        Chunk(ChunkWriter writer, char[] chars, int length, int op) {
+            this.writer = writer;
+            this.chars = chars;
+            this.length = length;
+            this.op = op;
+            this.done = (op == FLUSH || op == CLOSE)
+                ? new CountDownLatch(1) : null;
+        }
+    }
+
+    // Collects text in chunks and queues them for the background thread
+    private class ChunkWriter extends Writer {
+
+        // Used only by the background thread, apart from error
+        final Writer out;
+        volatile IOException error = null;
+
+        private char[] buffer = newBuffer();
+        private int length = 0;
+        private boolean closed = false;
+
+        ChunkWriter(Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int count)
+                throws IOException {
+            checkOpen();
+            while (count > 0) {
+                int n = Math.min(count, buffer.length - length);
+                System.arraycopy(chars, offset, buffer, length, n);
+                length += n;
+                offset += n;
+                count -= n;
+                if (length == buffer.length) {
+                    sendBuffer();
+                }
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int count)
+                throws IOException {
+            checkOpen();
+            while (count > 0) {
+                int n = Math.min(count, buffer.length - length);
+                string.getChars(offset, offset + n, buffer, length);
+                length += n;
+                offset += n;
+                count -= n;
+                if (length == buffer.length) {
+                    sendBuffer();
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            checkOpen();
+            sendBuffer();
+            send(new Chunk(this, null, 0, FLUSH));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            sendBuffer();
+            closed = true;
+            send(new Chunk(this, null, 0, CLOSE));
+        }
+
+        private void checkOpen() throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+
+        // Queue the buffered text, if any, and start a new buffer
+        private void sendBuffer() throws IOException {
+            if (length > 0) {
+                send(new Chunk(this, buffer, length, WRITE));
+                buffer = newBuffer();
+                length = 0;
+            }
+        }
+
+        // Queue a chunk, and wait for it to be done if it is a flush or close
+        private void send(Chunk chunk) throws IOException {
+            try {
+                queue.put(chunk);
+                if (chunk.done != null) {
+                    chunk.done.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    private char[] newBuffer() {
+        char[] buffer = spareBuffers.poll();
+        return (buffer == null) ? new char[CHUNK_SIZE] : buffer;
+    }
+}
@@ -1,5 +1,6 @@
 package com.bensaylor.tweetfilter;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 
 import weka.classifiers.bayes.NaiveBayesMultinomialText;
@@ -62,9 +63,9 @@ public class BayesFilter extends Filter {
     }
 
     @Override
-    public FilterDecision decide(Tweet tweet) {
+    public void decide(Tweet tweet, FilterDecision decision) {
         if (numRelevantExamples == 0 || numNonRelevantExamples == 0) {
-            return new FilterDecision(tweet.id, 1.0, true);
+            decision.set(tweet.id, 1.0, true);
         } else {
             // The classifier has been given at least one positive and one
             // negative example, so let it decide
@@ -74,10 +75,11 @@ public class BayesFilter extends Filter {
                 prediction = classifier.classifyInstance(instance);
             } catch (Exception e) {
                 System.err.println("Error classifying instance");
-                return null;
+                decision.set(tweet.id, 0.0, false);
+                return;
             }
             boolean retrieve = (prediction == 1);
-            return new FilterDecision(tweet.id, 2.0, retrieve);
+            decision.set(tweet.id, 2.0, retrieve);
         }
 
         // score = 1.0 means it's being retrieved without classification
@@ -99,6 +101,29 @@ public class BayesFilter extends Filter {
         }
     }
 
+    /**
+     * The snapshot holds the classifier and its dataset, which are
+     * serialized together so that they keep sharing the dataset's header.
+     */
+    @Override
+    public Serializable getState() {
+        State state = new State();
+        state.classifier = classifier;
+        state.instances = instances;
+        state.numRelevantExamples = numRelevantExamples;
+        state.numNonRelevantExamples = numNonRelevantExamples;
+        return state;
+    }
+
+    @Override
+    public void setState(Serializable snapshot) {
+        State state = (State) snapshot;
+        classifier = state.classifier;
+        instances = state.instances;
+        numRelevantExamples = state.numRelevantExamples;
+        numNonRelevantExamples = state.numNonRelevantExamples;
+    }
+
     // Given a tweet, return a Weka instance that the classifier can use
     private Instance makeInstance(Tweet tweet, int relevance) {
         double[] values = new double[instances.numAttributes()];
@@ -123,4 +148,14 @@ public class BayesFilter extends Filter {
         instance.setDataset(instances);
         return instance;
     }
+
+    // Snapshot of the model
+    private static class State implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        NaiveBayesMultinomialText classifier;
+        Instances instances;
+        int numRelevantExamples;
+        int numNonRelevantExamples;
+    }
 }
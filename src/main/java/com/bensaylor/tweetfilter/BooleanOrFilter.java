@@ -2,39 +2,47 @@ package com.bensaylor.tweetfilter;
 
 import java.util.HashSet;
 
-import weka.core.tokenizers.WordTokenizer;
-
 /**
  * Filter that retrieves all tweets containing any of the terms in the query.
+ * Tweets are matched through a QueryIndex of raw tokens, which may be shared
+ * with the filters of other topics.
  *
  * @author Ben Saylor (brsaylor@gmail.com)
  */
 public class BooleanOrFilter extends Filter {
 
-    private WordTokenizer tokenizer;
-    private HashSet<String> query;
+    private TextAnalyzer analyzer;
+    private QueryIndex index;
+    private int query = -1; // This filter's query number in the index
 
     public BooleanOrFilter() {
-        tokenizer = new WordTokenizer();
+        this(new QueryIndex(false));
+    }
+
+    /**
+     * @param index Index of raw tokens to add the query to
+     */
+    BooleanOrFilter(QueryIndex index) {
+        this.index = index;
+        analyzer = new TextAnalyzer();
     }
 
     @Override
     public void setTopic(Topic topic) {
-        query = new HashSet<>();
-        tokenizer.tokenize(topic.title);
-        while (tokenizer.hasMoreElements()) {
-            query.add(tokenizer.nextElement());
+        if (query >= 0) {
+            index.removeQuery(query);
         }
+        query = index.addQuery(
+                new HashSet<String>(analyzer.tokens(topic.title)));
     }
 
     @Override
-    public FilterDecision decide(Tweet tweet) {
-        tokenizer.tokenize(tweet.text);
-        while (tokenizer.hasMoreElements()) {
-            if (query.contains(tokenizer.nextElement())) {
-                return new FilterDecision(tweet.id, 1.0, true);
-            }
+    public void decide(Tweet tweet, FilterDecision decision) {
+        index.match(tweet);
+        if (index.getHits(query) > 0) {
+            decision.set(tweet.id, 1.0, true);
+        } else {
+            decision.set(tweet.id, 0.0, false);
         }
-        return new FilterDecision(tweet.id, 0.0, false);
     }
 }
@@ -0,0 +1,92 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+
+/**
+ * The saved progress of FilterController.run(), from which an interrupted
+ * run can be resumed to produce the same output as an uninterrupted one.
+ *
+ * A checkpoint records the feedback counts of the topics already finished,
+ * the topic in progress, the last tweet processed for it and a snapshot of
+ * the filter's model (see Filter.getState()), and the lengths of the output
+ * and log files at that point. It is saved with Java serialization, since
+ * the Weka classifiers used by BayesFilter are serializable.
+ *
+ * @author Ben Saylor
+ */
+class Checkpoint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // What the run was, to check that a resumed run is the same
+    String runTag;
+    String filterClass;
+    int[] topicNumbers;
+
+    // Feedback counts by relevance of each finished topic, in topic order
+    ArrayList<int[]> finishedFeedbackCounts = new ArrayList<>();
+
+    // The topic in progress: the last tweet processed, or -1 if the topic
+    // has not started, and the filter's model and the feedback counts after
+    // that tweet
+    long lastTweetId = -1;
+    Serializable filterState = null;
+    int[] feedbackCounts = null;
+
+    // Bytes written to the output file, and to the log file or -1 if there
+    // is none
+    long outputLength = 0;
+    long logLength = -1;
+
+    /**
+     * Save the checkpoint to a file, replacing it atomically if it exists.
+     *
+     * @param file The file to write
+     *
+     * @throws IOException
+     */
+    void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeObject(this);
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Read a checkpoint saved with save().
+     *
+     * @param file The file to read
+     * @return The checkpoint
+     *
+     * @throws IOException if the file can't be read or is not a checkpoint
+     */
+    static Checkpoint read(File file) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(file)))) {
+            return (Checkpoint) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("Not a checkpoint file: " + file);
+        }
+    }
+}
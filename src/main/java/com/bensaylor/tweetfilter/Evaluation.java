@@ -0,0 +1,183 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+
+/**
+ * TREC 2012 Microblog filtering evaluation of a run: precision, recall,
+ * F-beta and T11SU utility for each topic, and their means over the topics.
+ *
+ * Each topic is evaluated from the number of relevant and nonrelevant tweets
+ * it retrieved and the number of tweets judged relevant for it, so a run
+ * can be evaluated as it goes, without reading its output. Unjudged tweets
+ * count as nonrelevant. Precision is 0 for a topic that retrieved nothing,
+ * and recall, F-beta and T11SU are 0 for a topic with no relevant tweets.
+ *
+ * T11SU is the scaled linear utility of the TREC 2011 and 2012 filtering
+ * tasks: a relevant tweet retrieved is worth 2 and a nonrelevant one -1, the
+ * total is divided by the maximum possible, and the result is clipped below
+ * at MIN_NU and scaled to the range 0 to 1.
+ *
+ * @author Ben Saylor
+ */
+class Evaluation {
+
+    /** Default beta of F-beta, as used in the TREC 2012 filtering task */
+    static final double DEFAULT_BETA = 0.5;
+
+    /** Lowest normalized utility counted by T11SU */
+    static final double MIN_NU = -0.5;
+
+    private final double beta;
+    private final ArrayList<TopicResult> topics = new ArrayList<>();
+
+    /**
+     * @param beta Relative weight of recall to precision in F-beta
+     */
+    Evaluation(double beta) {
+        this.beta = beta;
+    }
+
+    /**
+     * Add the results of a topic.
+     *
+     * @param topicNumber The number of the topic
+     * @param relevantRetrieved Number of relevant tweets retrieved
+     * @param nonrelevantRetrieved Number of other tweets retrieved
+     * @param relevant Number of tweets judged relevant for the topic
+     */
+    void addTopic(int topicNumber, int relevantRetrieved,
+            int nonrelevantRetrieved, int relevant) {
+        topics.add(new TopicResult(topicNumber, relevantRetrieved,
+                    nonrelevantRetrieved, relevant));
+    }
+
+    /**
+     * @return The mean precision over the topics
+     */
+    double getMeanPrecision() {
+        double sum = 0.0;
+        for (TopicResult topic : topics) {
+            sum += topic.precision();
+        }
+        return mean(sum);
+    }
+
+    /**
+     * @return The mean recall over the topics
+     */
+    double getMeanRecall() {
+        double sum = 0.0;
+        for (TopicResult topic : topics) {
+            sum += topic.recall();
+        }
+        return mean(sum);
+    }
+
+    /**
+     * @return The mean F-beta over the topics
+     */
+    double getMeanFBeta() {
+        double sum = 0.0;
+        for (TopicResult topic : topics) {
+            sum += topic.fBeta(beta);
+        }
+        return mean(sum);
+    }
+
+    /**
+     * @return The mean T11SU over the topics
+     */
+    double getMeanT11SU() {
+        double sum = 0.0;
+        for (TopicResult topic : topics) {
+            sum += topic.t11su();
+        }
+        return mean(sum);
+    }
+
+    /**
+     * Print a table of the results of each topic, in the order they were
+     * added, followed by the totals and means.
+     *
+     * @param out The stream to print to
+     */
+    void print(PrintStream out) {
+        String fName = "F" + formatBeta();
+        out.printf("%-6s %9s %9s %9s %9s %9s %9s %9s\n", "topic",
+                "retrieved", "relret", "relevant", "precision", "recall",
+                fName, "T11SU");
+        int retrieved = 0;
+        int relevantRetrieved = 0;
+        int relevant = 0;
+        for (TopicResult topic : topics) {
+            out.printf("MB%03d  %9d %9d %9d %9.4f %9.4f %9.4f %9.4f\n",
+                    topic.topicNumber,
+                    topic.relevantRetrieved + topic.nonrelevantRetrieved,
+                    topic.relevantRetrieved, topic.relevant,
+                    topic.precision(), topic.recall(), topic.fBeta(beta),
+                    topic.t11su());
+            retrieved += topic.relevantRetrieved + topic.nonrelevantRetrieved;
+            relevantRetrieved += topic.relevantRetrieved;
+            relevant += topic.relevant;
+        }
+        out.printf("%-6s %9d %9d %9d %9.4f %9.4f %9.4f %9.4f\n", "mean",
+                retrieved, relevantRetrieved, relevant, getMeanPrecision(),
+                getMeanRecall(), getMeanFBeta(), getMeanT11SU());
+    }
+
+    private double mean(double sum) {
+        return topics.isEmpty() ? 0.0 : sum / topics.size();
+    }
+
+    // Beta as it appears in the name of the F-beta column, such as 0.5
+    private String formatBeta() {
+        return (beta == Math.rint(beta))
+            ? Long.toString((long) beta) : Double.toString(beta);
+    }
+
+    // The counts of one topic
+    private static class TopicResult {
+        final int topicNumber;
+        final int relevantRetrieved;
+        final int nonrelevantRetrieved;
+        final int relevant;
+
+        TopicResult(int topicNumber, int relevantRetrieved,
+                int nonrelevantRetrieved, int relevant) {
+            this.topicNumber = topicNumber;
+            this.relevantRetrieved = relevantRetrieved;
+            this.nonrelevantRetrieved = nonrelevantRetrieved;
+            this.relevant = relevant;
+        }
+
+        double precision() {
+            int retrieved = relevantRetrieved + nonrelevantRetrieved;
+            return (retrieved == 0) ? 0.0
+                : (double) relevantRetrieved / retrieved;
+        }
+
+        double recall() {
+            return (relevant == 0) ? 0.0
+                : (double) relevantRetrieved / relevant;
+        }
+
+        double fBeta(double beta) {
+            double precision = precision();
+            double recall = recall();
+            double b2 = beta * beta;
+            return (precision == 0 && recall == 0) ? 0.0
+                : (1 + b2) * precision * recall / (b2 * precision + recall);
+        }
+
+        double t11su() {
+            if (relevant == 0) {
+                return 0.0;
+            }
+            double utility = 2.0 * relevantRetrieved - nonrelevantRetrieved;
+            double normalizedUtility = utility / (2.0 * relevant);
+            return (Math.max(normalizedUtility, MIN_NU) - MIN_NU)
+                / (1 - MIN_NU);
+        }
+    }
+}
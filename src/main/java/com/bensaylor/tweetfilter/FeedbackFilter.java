@@ -1,178 +1,291 @@
 package com.bensaylor.tweetfilter;
 
-import java.util.ArrayList;
+import java.io.Serializable;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-
-import weka.core.tokenizers.WordTokenizer;
+import java.util.TreeMap;
 
 /**
  * Filter incorporating relevance feedback using the Rocchio algorithm.
+ * If the tweet carries stored term IDs (see SegmentAnalyzer), they are used
+ * instead of preprocessing, tokenizing and stemming the text.
+ *
+ * Each of the original query and the relevant and non-relevant document sums
+ * adds its weight once to every term it contains, so a term's weight in the
+ * expanded query depends only on which of the three vectors contain it. The
+ * expanded query is therefore kept as one weight per combination, plus the
+ * number of terms with each combination, and feedback only has to update the
+ * terms of the judged tweet.
+ *
+ * Term IDs come from a TopicTerms, which filters of the same topic with
+ * different parameters can share (see FilterController.runSweep()).
  *
  * @author Ben Sayor
  */
 public class FeedbackFilter extends QueryFilter {
 
+    // Bits of a term's membership in the vectors
+    private static final int IN_ORIG = 1;
+    private static final int IN_REL = 2;
+    private static final int IN_NONREL = 4;
 
-    private WordTokenizer tokenizer;
-    private HashMap<String,Double> origQuery;
-    private HashMap<String,Double> relDocSum, nonrelDocSum;
+    private TopicTerms.Pool termsPool; // Shared TopicTerms, or null
+    private TopicTerms terms;     // IDs of the terms in the vectors
+    private byte[] membership;    // Membership bits by term ID
+    private TermVector origQuery;
+    private TermVector relDocSum, nonrelDocSum;
     private int relDocCount, nonrelDocCount;
-    private HashMap<String,Double> expandedQuery;
+    private int[] termCounts;          // Number of terms by membership
+    private double[] expandedWeights;  // Expanded query weight by membership
     private double alpha, beta, gamma; // Rocchio parameters
     private double expandedTotalWeight; // Total weight of expanded query
     private double scoreThreshold;
     private HashSet<String> stopwords;
 
+    // Term IDs of the terms in the vectors, in term order, once the expanded
+    // query has been logged
+    private TreeMap<String,Integer> loggedTerms;
+
     public FeedbackFilter() {
-        tokenizer = new WordTokenizer();
+        this(1, 0.75, 0.15, 0.5);
+    }
+
+    /**
+     * @param alpha Weight of the original query
+     * @param beta Weight of the mean of the relevant tweets
+     * @param gamma Weight of the mean of the non-relevant tweets (added like
+     * the others, so a negative value pushes the query away from them)
+     * @param scoreThreshold Tweets with a normalized score above this are
+     * retrieved
+     */
+    public FeedbackFilter(double alpha, double beta, double gamma,
+            double scoreThreshold) {
+        this(alpha, beta, gamma, scoreThreshold, null);
+    }
+
+    /**
+     * @param alpha Weight of the original query
+     * @param beta Weight of the mean of the relevant tweets
+     * @param gamma Weight of the mean of the non-relevant tweets
+     * @param scoreThreshold Tweets with a normalized score above this are
+     * retrieved
+     * @param termsPool TopicTerms to share with the other filters of each
+     * topic, or null to have a TopicTerms of its own
+     */
+    FeedbackFilter(double alpha, double beta, double gamma,
+            double scoreThreshold, TopicTerms.Pool termsPool) {
+        this.termsPool = termsPool;
         stopwords = new HashSet<>();
         String[] stopwordsArray = {
             "the", "is", "at", "of", "on", "and", "a", "to"};
         stopwords.addAll(Arrays.asList(stopwordsArray));
 
         // Tuning parameters
-        alpha = 1;
-        beta = 0.75;
-        gamma = 0.15;
-        scoreThreshold = 0.5;
+        this.alpha = alpha;
+        this.beta = beta;
+        this.gamma = gamma;
+        this.scoreThreshold = scoreThreshold;
     }
 
     @Override
     public void setTopic(Topic topic) {
+        terms = (termsPool == null)
+            ? new TopicTerms() : termsPool.get(topic);
+        membership = new byte[64];
+        loggedTerms = null;
+        origQuery = new TermVector();
+        relDocSum = new TermVector();
+        nonrelDocSum = new TermVector();
+        relDocCount = 0;
+        nonrelDocCount = 0;
+        termCounts = new int[8];
 
         // Create original query vector with all terms having weight 1
-        origQuery = new HashMap<String,Double>();
-        tokenizer.tokenize(topic.title);
-        while (tokenizer.hasMoreElements()) {
-            String term = normalize(tokenizer.nextElement());
-            if (!isStopword(term))
-                origQuery.put(term, 1.0);
+        for (String term : analyzer.terms(topic.title)) {
+            if (!isStopword(term)) {
+                int termId = terms.addTerm(term);
+                if (origQuery.get(termId) == 0) {
+                    origQuery.add(termId, 1.0);
+                    addMembership(termId, IN_ORIG);
+                }
+            }
         }
 
-        relDocSum = new HashMap<String,Double>();
-        nonrelDocSum = new HashMap<String,Double>();
-        expandedQuery = new HashMap<String,Double>();
-        relDocCount = 0;
-        nonrelDocCount = 0;
-        expandedTotalWeight = 0;
-
-        // Initialize expanded query
-        for (Map.Entry<String,Double> entry : origQuery.entrySet()) {
-            expandedQuery.put(entry.getKey(), entry.getValue());
-            expandedTotalWeight += entry.getValue();
+        // Initialize expanded query to the original query
+        expandedWeights = new double[8];
+        for (int m = 0; m < expandedWeights.length; m++) {
+            if ((m & IN_ORIG) != 0) {
+                expandedWeights[m] = 1.0;
+            }
         }
+        expandedTotalWeight = termCounts[IN_ORIG] * 1.0;
     }
 
     @Override
-    public FilterDecision decide(Tweet tweet) {
+    public void decide(Tweet tweet, FilterDecision decision) {
+        terms.analyze(tweet);
+        TextAnalyzer tweetAnalyzer = terms.getAnalyzer();
 
         // Filter out simple retweets and non-English tweets
-        if (tweet.text.startsWith("RT")) {
-            return new FilterDecision(tweet.id, 0.0, false);
+        if (tweetAnalyzer.isRetweet()) {
+            decision.set(tweet.id, 0.0, false);
+            return;
         }
-        if (hasNonEnglishChars(tweet)) {
-            return new FilterDecision(tweet.id, 0.0, false);
+        if (tweetAnalyzer.hasNonEnglishChars()) {
+            decision.set(tweet.id, 0.0, false);
+            return;
         }
 
-        tokenizer.tokenize(preprocessText(tweet.text));
-
+        // Only terms in the expanded query have membership bits, and
+        // stopwords never get any
         double score = 0.0;
-        while (tokenizer.hasMoreElements()) {
-            String term = normalize(tokenizer.nextElement());
-            if (!isStopword(term) && expandedQuery.containsKey(term)) {
-                score += expandedQuery.get(term);
+        int knownCount = terms.getKnownCount();
+        for (int k = 0; k < knownCount; k++) {
+            int termId = terms.getKnownId(k);
+            if (termId < membership.length && membership[termId] != 0) {
+                score += expandedWeights[membership[termId]];
             }
         }
         score /= expandedTotalWeight;  // Normalize score
         boolean retrieve = (score > scoreThreshold);
-        return new FilterDecision(tweet.id, score, retrieve);
+        decision.set(tweet.id, score, retrieve);
     }
 
     @Override
     public void feedback(Tweet tweet, int relevance) {
 
-        tokenizer.tokenize(preprocessText(tweet.text));
+        terms.analyze(tweet);
 
         if (relevance >= Constants.MINREL) {
 
             // Update relevant tweet vector
-            while (tokenizer.hasMoreElements()) {
-                String term = normalize(tokenizer.nextElement());
-                if (!isStopword(term))
-                    addTermToVector(relDocSum, term, 1);
-            }
+            addTermsToVector(relDocSum, IN_REL);
             relDocCount++;
 
         } else {
 
             // Update non-relevant tweet vector
-            while (tokenizer.hasMoreElements()) {
-                String term = normalize(tokenizer.nextElement());
-                if (!isStopword(term))
-                    addTermToVector(nonrelDocSum, term, 1);
-            }
+            addTermsToVector(nonrelDocSum, IN_NONREL);
             nonrelDocCount++;
         }
 
-        // Update expanded query
-        expandedQuery = new HashMap<String,Double>();
-        addToVector(expandedQuery, origQuery, alpha);
-
-        if (relDocCount > 0)
-            addToVector(expandedQuery, relDocSum, beta / relDocCount);
-        if (nonrelDocCount > 0)
-            addToVector(expandedQuery, nonrelDocSum, gamma / nonrelDocCount);
-
-        // Clip negative weights
-        for (Map.Entry<String,Double> entry : expandedQuery.entrySet()) {
-            if (entry.getValue() < 0) {
-                expandedQuery.put(entry.getKey(), 0.0);
+        // Update expanded query, adding the weights in the same order as
+        // alpha * orig + beta * rel + gamma * nonrel
+        double relWeight = (relDocCount > 0) ? beta / relDocCount : 0;
+        double nonrelWeight
+            = (nonrelDocCount > 0) ? gamma / nonrelDocCount : 0;
+        expandedTotalWeight = 0;
+        for (int m = 1; m < expandedWeights.length; m++) {
+            double w = 0.0;
+            if ((m & IN_ORIG) != 0)
+                w += alpha;
+            if ((m & IN_REL) != 0)
+                w += relWeight;
+            if ((m & IN_NONREL) != 0)
+                w += nonrelWeight;
+
+            // Clip negative weights
+            if (w < 0) {
+                w = 0.0;
             }
+            expandedWeights[m] = w;
+
+            // Total weight for normalization
+            expandedTotalWeight += termCounts[m] * w;
         }
 
         if (log != null) {
             logExpandedQuery();
         }
+    }
 
-        // Calculate total weight for normalization
-        expandedTotalWeight = 0;
-        for (double w : expandedQuery.values()) {
-            expandedTotalWeight += w;
+    /**
+     * The snapshot holds the terms by ID, so that restoring it works even if
+     * the filter's TopicTerms gives them different IDs.
+     */
+    @Override
+    public Serializable getState() {
+        TermDictionary dictionary = terms.getDictionary();
+        int numTerms = dictionary.size();
+        State state = new State();
+        state.terms = new String[numTerms];
+        state.membership = new byte[numTerms];
+        state.origQuery = new double[numTerms];
+        state.relDocSum = new double[numTerms];
+        state.nonrelDocSum = new double[numTerms];
+        for (int termId = 0; termId < numTerms; termId++) {
+            state.terms[termId] = dictionary.getTerm(termId);
+            if (termId < membership.length) {
+                state.membership[termId] = membership[termId];
+            }
+            state.origQuery[termId] = origQuery.get(termId);
+            state.relDocSum[termId] = relDocSum.get(termId);
+            state.nonrelDocSum[termId] = nonrelDocSum.get(termId);
         }
+        state.relDocCount = relDocCount;
+        state.nonrelDocCount = nonrelDocCount;
+        state.termCounts = termCounts;
+        state.expandedWeights = expandedWeights;
+        state.expandedTotalWeight = expandedTotalWeight;
+        return state;
     }
 
-    // Add the term vector 'vecToAdd' to the term vector 'vec' with the given
-    // weight
-    private void addToVector(
-            HashMap<String,Double> vec,
-            HashMap<String,Double> vecToAdd,
-            double weight) {
-        for (Map.Entry<String,Double> entry : vecToAdd.entrySet()) {
-            addTermToVector(vec, entry.getKey(), weight);
+    @Override
+    public void setState(Serializable snapshot) {
+        State state = (State) snapshot;
+        membership = new byte[Math.max(64, state.terms.length)];
+        loggedTerms = null;
+        origQuery = new TermVector();
+        relDocSum = new TermVector();
+        nonrelDocSum = new TermVector();
+        for (int i = 0; i < state.terms.length; i++) {
+            int termId = terms.addTerm(state.terms[i]);
+            if (termId >= membership.length) {
+                membership = Arrays.copyOf(membership,
+                        Math.max(termId + 1, 2 * membership.length));
+            }
+            membership[termId] = state.membership[i];
+            origQuery.add(termId, state.origQuery[i]);
+            relDocSum.add(termId, state.relDocSum[i]);
+            nonrelDocSum.add(termId, state.nonrelDocSum[i]);
         }
+        relDocCount = state.relDocCount;
+        nonrelDocCount = state.nonrelDocCount;
+        termCounts = state.termCounts;
+        expandedWeights = state.expandedWeights;
+        expandedTotalWeight = state.expandedTotalWeight;
     }
 
-    // Add a term to the given term vector with the given weight
-    private void addTermToVector(HashMap<String,Double> vec, String term,
-            double weight) {
-        Double existingWeight = vec.get(term);
-        if (existingWeight == null) {
-            existingWeight = new Double(0);
+    // Add the non-stopword terms of the analyzed tweet to the given document
+    // sum vector, which has the given membership bit
+    private void addTermsToVector(TermVector vec, int bit) {
+        TextAnalyzer tweetAnalyzer = terms.getAnalyzer();
+        for (int i = 0; i < tweetAnalyzer.getTermCount(); i++) {
+            if (!isStopword(tweetAnalyzer.getTerm(i))) {
+                int termId = terms.addTerm(i);
+                if (vec.add(termId, 1) == 1) {
+                    addMembership(termId, bit);
+                }
+            }
         }
-        vec.put(term, existingWeight + weight);
     }
 
-    // Perform pre-tokenization processing
-    private String preprocessText(String text) {
-        String processed = text
-            .replaceAll("http\\S+", "http") // Replace links with "http"
-            .replaceAll("\\p{Punct}", " "); // Replace punctuation with space
-        return processed;
+    // Record that a term has been added to the vector with the given
+    // membership bit
+    private void addMembership(int termId, int bit) {
+        if (termId >= membership.length) {
+            membership = Arrays.copyOf(membership,
+                    Math.max(termId + 1, 2 * membership.length));
+        }
+        if (membership[termId] != 0) {
+            termCounts[membership[termId]]--;
+        }
+        if (membership[termId] == 0 && loggedTerms != null) {
+            loggedTerms.put(terms.getDictionary().getTerm(termId), termId);
+        }
+        membership[termId] |= bit;
+        termCounts[membership[termId]]++;
     }
 
     private boolean isStopword(String token) {
@@ -182,34 +295,74 @@ public class FeedbackFilter extends QueryFilter {
         return stopwords.contains(token);
     }
 
-    // Output the Rocchio-expanded query to the log file
+    // Output the Rocchio-expanded query to the log file, by descending term
+    // weight, then term. Terms with the same membership have the same
+    // weight, so there is one pass over the terms in order for each distinct
+    // weight, rather than a sort of the whole vector after every judgment.
     private void logExpandedQuery() {
+        if (loggedTerms == null) {
+            loggedTerms = new TreeMap<>();
+            TermDictionary dictionary = terms.getDictionary();
+            for (int termId = 0; termId < dictionary.size()
+                    && termId < membership.length; termId++) {
+                if (membership[termId] != 0) {
+                    loggedTerms.put(dictionary.getTerm(termId), termId);
+                }
+            }
+        }
 
-        // Sort the vector entries by descending term weight, then term
-        ArrayList<Map.Entry<String,Double>> entries
-            = new ArrayList<Map.Entry<String,Double>>(expandedQuery.entrySet());
-        Collections.sort(entries, new TermVectorComparator());
-        
         log.println("Expanded query:");
-        for (Map.Entry<String,Double> entry : entries) {
-            log.printf("%12s\t%2.4f\n", entry.getKey(), entry.getValue());
-        }
-    }
+        boolean[] done = new boolean[expandedWeights.length];
+        while (true) {
+
+            // Find the highest weight not yet output
+            double weight = 0.0;
+            boolean found = false;
+            for (int m = 1; m < expandedWeights.length; m++) {
+                if (!done[m] && termCounts[m] > 0
+                        && (!found || expandedWeights[m] > weight)) {
+                    weight = expandedWeights[m];
+                    found = true;
+                }
+            }
+            if (!found) {
+                break;
+            }
+            for (int m = 1; m < expandedWeights.length; m++) {
+                if (expandedWeights[m] == weight) {
+                    done[m] = true;
+                }
+            }
 
-    // Allows sorting term vectors by descending term weight, then term
-    private class TermVectorComparator
-            implements Comparator<Map.Entry<String,Double>> {
-        
-        public int compare(Map.Entry<String,Double> entry1,
-                Map.Entry<String,Double> entry2) {
-
-            if (entry1.getValue() > entry2.getValue()) {
-                return -1;
-            } else if (entry1.getValue() < entry2.getValue()) {
-                return 1;
-            } else {
-                return entry1.getKey().compareTo(entry2.getKey());
+            // Output the terms with that weight, formatting it only once
+            String formattedWeight = String.format("\t%2.4f\n", weight);
+            for (Map.Entry<String,Integer> entry : loggedTerms.entrySet()) {
+                if (expandedWeights[membership[entry.getValue()]] == weight) {
+                    String term = entry.getKey();
+                    for (int i = term.length(); i < 12; i++) {
+                        log.print(' ');
+                    }
+                    log.print(term);
+                    log.print(formattedWeight);
+                }
             }
         }
     }
+
+    // Snapshot of the vectors and weights, with the vectors and membership
+    // bits indexed by term ID
+    private static class State implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        String[] terms;
+        byte[] membership;
+        double[] origQuery;
+        double[] relDocSum;
+        double[] nonrelDocSum;
+        int relDocCount;
+        int nonrelDocCount;
+        int[] termCounts;
+        double[] expandedWeights;
+        double expandedTotalWeight;
+    }
 }
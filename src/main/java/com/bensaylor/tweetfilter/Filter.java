@@ -1,6 +1,7 @@
 package com.bensaylor.tweetfilter;
 
 import java.io.PrintWriter;
+import java.io.Serializable;
 
 /**
  * Baseline tweet filter.
@@ -24,12 +25,42 @@ public class Filter {
 
     /**
      * Assign a score and retrieval decision for the given tweet.
+     * This allocates a new FilterDecision; subclasses override
+     * decide(Tweet, FilterDecision) instead.
      *
      * @param tweet The tweet to evaluate
      * @return The score and retrieval decision
      */
     public FilterDecision decide(Tweet tweet) {
-        return new FilterDecision(tweet.id, 1.0, true);
+        FilterDecision decision = new FilterDecision();
+        decide(tweet, decision);
+        return decision;
+    }
+
+    /**
+     * Assign a score and retrieval decision for the given tweet, setting
+     * them in a decision that the caller reuses for every tweet, so that
+     * filtering a tweet need not allocate anything.
+     * The tweet may be a view that is reused for the next tweet (see
+     * TweetSource.next(Tweet)), so it must not be kept.
+     *
+     * @param tweet The tweet to evaluate
+     * @param decision Set to the score and retrieval decision
+     */
+    public void decide(Tweet tweet, FilterDecision decision) {
+        decision.set(tweet.id, 1.0, true);
+    }
+
+    /**
+     * Get the fields of the tweets, other than id and text, that decide()
+     * and feedback() use, so that the tweet store can leave the others
+     * unread (see TweetStore.setFields()). Subclasses that use other fields
+     * must override this. The baseline filter uses only the ID.
+     *
+     * @return A combination of the Tweet field constants
+     */
+    public int getTweetFields() {
+        return Tweet.ID_AND_TEXT;
     }
 
     /**
@@ -37,6 +68,7 @@ public class Filter {
      * This should only be called if the tweet received a positive retrieval
      * decision by the filter, or if it is the first relevant tweet for the
      * topic. The baseline filter ignores the relevance judgment.
+     * As with decide(), the tweet must not be kept.
      *
      * @param tweet The tweet for which feedback is being provided
      * @param relevance The relevance value for the tweet
@@ -45,6 +77,29 @@ public class Filter {
     public void feedback(Tweet tweet, int relevance) {
     }
 
+    /**
+     * Take a snapshot of the filter's model for the current topic, so that
+     * an interrupted run can be resumed from a checkpoint (see
+     * FilterController.setCheckpoint()). The snapshot may share objects with
+     * the filter, so it must be serialized before the filter is used again.
+     * The baseline filter has no model.
+     *
+     * @return The snapshot, or null if the filter keeps nothing but its topic
+     */
+    public Serializable getState() {
+        return null;
+    }
+
+    /**
+     * Restore a snapshot taken by getState() of a filter of the same class
+     * and parameters. setTopic() must first be called with the topic the
+     * snapshot was taken for.
+     *
+     * @param state The snapshot
+     */
+    public void setState(Serializable state) {
+    }
+
     /**
      * Set the PrintWriter to be used for logging.
      *
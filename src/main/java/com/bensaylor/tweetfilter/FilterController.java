@@ -1,15 +1,34 @@
 package com.bensaylor.tweetfilter;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 /**
  * The FilterController performs the work common to all filters.
@@ -32,26 +51,39 @@ public class FilterController {
     // * UPDATE: FETCHMODE_ALL seems to be the correct one to use. The 2012
     //   guidelines state that the system should be provided a relevance value
     //   of 0 for a retreived, unjudged tweet.
-    private static final int FETCHMODE_ALL = 0;
-    private static final int FETCHMODE_QRELS = 1;
+    // The judged tweets are fetched FETCH_BATCH_SIZE at a time.
+    public static final int FETCHMODE_ALL = 0;
+    public static final int FETCHMODE_QRELS = 1;
     private int fetchMode = FETCHMODE_ALL;
+    private static final int FETCH_BATCH_SIZE = 256;
+
+    // Tweets per block, and blocks queued per worker, in runSweep()
+    private static final int SWEEP_BLOCK_SIZE = 1024;
+    private static final int SWEEP_QUEUE_SIZE = 4;
 
     private ArrayList<Topic> topics = null;
-    private TweetDatabase db = null;
+    private TweetStore db = null;
     private Filter filter = null;
+    private FilterFactory filterFactory = null;
+    private RunMetrics metrics = null;
+    private Evaluation evaluation = null;
+
+    // Where run() saves its progress, or null, and how often within a topic
+    private File checkpointFile = null;
+    private long checkpointIntervalNanos = 0;
+    private boolean resume = false;
 
-    // Maps topic number to set of relevance judgments,
-    // where each set of relevance judgments is a map from tweet ID to relevance
-    // value. The relevance values are defined in Constants.
-    private TreeMap<Integer, TreeMap<Long, Integer>> judgments = null;
+    // Relevance judgments by topic number and tweet ID. The relevance values
+    // are defined in Constants.
+    private Qrels judgments = null;
 
     public FilterController() {
     }
 
     /**
-     * @param db the TweetDatabase to set
+     * @param db the TweetStore to read tweets from
      */
-    public void setDatabase(TweetDatabase db) {
+    public void setDatabase(TweetStore db) {
         this.db = db;
     }
 
@@ -62,6 +94,70 @@ public class FilterController {
         this.filter = filter;
     }
 
+    /**
+     * Set the factory used to create filters. This is required by
+     * runSinglePass(), which needs a separate filter instance per topic.
+     * If no filter has been set with setFilter(), run() also uses the factory
+     * to create one.
+     *
+     * @param filterFactory the FilterFactory to set
+     */
+    public void setFilterFactory(FilterFactory filterFactory) {
+        this.filterFactory = filterFactory;
+    }
+
+    /**
+     * Set how run() and runParallel() iterate over the tweets of a topic.
+     * See the explanation given with the fetch mode constants.
+     *
+     * @param fetchMode FETCHMODE_ALL (the default) or FETCHMODE_QRELS
+     */
+    public void setFetchMode(int fetchMode) {
+        this.fetchMode = fetchMode;
+    }
+
+    /**
+     * Have run() save its progress to a checkpoint file at the end of each
+     * topic, and at the given interval within topics, so that an interrupted
+     * run can be resumed (see Checkpoint). The file is deleted when the run
+     * finishes. The output and log files must not be compressed.
+     *
+     * @param file The checkpoint file, or null to save no checkpoints
+     * @param intervalSeconds Seconds between checkpoints within a topic, or
+     * 0 to save them only at the end of each topic
+     * @param resume Whether to continue from the checkpoint in the file, if
+     * there is one, instead of starting from the first topic
+     */
+    public void setCheckpoint(File file, double intervalSeconds,
+            boolean resume) {
+        this.checkpointFile = file;
+        this.checkpointIntervalNanos = (long) (intervalSeconds * 1e9);
+        this.resume = resume;
+    }
+
+    /**
+     * Set the metrics to record the run in. Each run method records its
+     * topics and tweet store calls in them, but does not start or finish
+     * them.
+     *
+     * @param metrics The RunMetrics, or null to record no metrics
+     */
+    void setMetrics(RunMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Set the evaluation to add the results of each topic to. Each run method
+     * adds its topics in topic order once they are finished, working out the
+     * results from the decisions and the relevance judgments as the topics
+     * run, without reading the output.
+     *
+     * @param evaluation The Evaluation, or null to evaluate nothing
+     */
+    void setEvaluation(Evaluation evaluation) {
+        this.evaluation = evaluation;
+    }
+
     /**
      * Read the topics from a topics XML file given as an InputStream.
      * This allows reading the topics from a resource returned by
@@ -78,31 +174,22 @@ public class FilterController {
      * Read the relevance judgments from a qrels file given as an InputStream.
      * This allows reading the qrels from a resource returned by
      * Class.getResourceAsStream(), or from a file on the filesystem.
+     * The file may be in the TREC text form or the binary form written by
+     * writeQrels().
      *
      * @param inputStream An InputStream for reading the qrels file
+     * @return true if the qrels were read, false if there was an error
      */
-    public void readQrels(InputStream inputStream) {
-        judgments = new TreeMap<>();
-        BufferedReader reader
-            = new BufferedReader(new InputStreamReader(inputStream));
-        try {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] tokens = line.split(" ");
-                Integer topicNumber = new Integer(tokens[0]);
-                Long tweetId = new Long(tokens[2]);
-                Integer relevance = new Integer(tokens[3]);
-                if (!judgments.containsKey(topicNumber)) {
-                    judgments.put(topicNumber, new TreeMap<Long, Integer>());
-                }
-                judgments.get(topicNumber).put(tweetId, relevance);
-            }
+    public boolean readQrels(InputStream inputStream) {
+        try (InputStream in = inputStream) {
+            judgments = Qrels.read(in);
         } catch (IOException e) {
             System.err.println("Error reading qrels file: "
                     + e.getMessage());
             judgments = null;
-            return;
+            return false;
         }
+        return true;
     }
 
     /**
@@ -129,8 +216,16 @@ public class FilterController {
      * information. In this implementation, a decision is only written to the
      * file if the retrieval decision is positive.
      *
+     * The output and log are written by a background thread (see
+     * AsyncOutput) and flushed at the end of each topic. Either file is
+     * compressed with gzip if its name ends in ".gz".
+     *
+     * If setCheckpoint() was called, progress is saved as the run goes, and
+     * the run may continue from where an earlier one was interrupted. The
+     * output and log are then the same as those of an uninterrupted run.
+     *
      * Before calling this method, readTopics(), readJudgments(), setDatabase(),
-     * and setFilter() must be called.
+     * and setFilter() or setFilterFactory() must be called.
      *
      * @param runTag A label identifying this run, to be included in the output
      * @param outputFile Name of the output file
@@ -140,144 +235,1135 @@ public class FilterController {
         assert topics != null;
         assert judgments != null;
         assert db != null;
-        assert filter != null;
+        assert filter != null || filterFactory != null;
 
+        if (filter == null) {
+            filter = filterFactory.newFilter();
+        }
+        db.setFields(filter.getTweetFields());
+
+        // The progress so far, if saving checkpoints
+        Checkpoint checkpoint = null;
+        if (checkpointFile != null) {
+            checkpoint = startCheckpoint(runTag, outputFile, logFile);
+            if (checkpoint == null) {
+                return;
+            }
+        }
+
+        // When resuming, keep the output and log written before the
+        // checkpoint and drop anything written after it
+        AsyncOutput async = new AsyncOutput();
         PrintWriter writer;
         try {
-            writer = new PrintWriter(outputFile);
-        } catch (FileNotFoundException e) {
+            writer = (checkpoint == null)
+                ? async.open(outputFile)
+                : async.open(AsyncOutput.openFileAt(outputFile,
+                            checkpoint.outputLength));
+        } catch (IOException e) {
             System.err.println("Error opening output file: " + e.getMessage());
+            async.close();
             return;
         }
 
         PrintWriter log = null;
         if (logFile != null) {
             try {
-                log = new PrintWriter(logFile);
-            } catch (FileNotFoundException e) {
+                log = (checkpoint == null)
+                    ? async.open(logFile)
+                    : async.open(AsyncOutput.openFileAt(logFile,
+                                checkpoint.logLength));
+            } catch (IOException e) {
                 System.err.println("Error opening log file: " + e.getMessage());
                 writer.close();
+                async.close();
                 return;
             }
         }
         filter.setLog(log);
 
-        for (Topic topic : topics) {
+        Checkpointer checkpointer = (checkpoint == null) ? null
+            : new Checkpointer(checkpoint, outputFile, writer, logFile, log);
+
+        for (int t = 0; t < topics.size(); t++) {
+            Topic topic = topics.get(t);
+            if (checkpoint != null
+                    && t < checkpoint.finishedFeedbackCounts.size()) {
+                // Finished before the checkpoint; only evaluate it
+                TopicRun topicRun = new TopicRun(topic, filter,
+                        judgments.get(topic.number), runTag, writer);
+                topicRun.setFeedbackCounts(
+                        checkpoint.finishedFeedbackCounts.get(t));
+                evaluate(topicRun, evaluation);
+                continue;
+            }
+
             System.out.println("Running topic " + topic.number);
-            filter.setTopic(topic);
-            int[] feedbackCountByRelevance = new int[Constants.MAXREL + 1];
+            TopicRun topicRun = newTopicRun(topic, filter, runTag, writer);
+            long resumeAfter = -1;
+            if (checkpoint != null && checkpoint.lastTweetId >= 0) {
+                System.out.println("Resuming after tweet "
+                        + checkpoint.lastTweetId);
+                topicRun.resume(checkpoint.filterState,
+                        checkpoint.feedbackCounts);
+                resumeAfter = checkpoint.lastTweetId;
+            }
+            runTopic(topicRun, db, resumeAfter, checkpointer);
+            writer.flush();
+            if (log != null) {
+                log.flush();
+            }
+            topicRun.printFeedbackCounts(System.out);
+            evaluate(topicRun, evaluation);
+            if (checkpointer != null) {
+                checkpointer.topicFinished(topicRun);
+            }
+        }
+
+        writer.close();
+        if (log!= null) {
+            log.close();
+        }
+        async.close();
 
-            Tweet tweet = null;
-            Map<Long,Integer> topicJudgments = judgments.get(topic.number);
-            Iterator<Map.Entry<Long,Integer>> judgmentIterator = null;
-            Map.Entry<Long,Integer> judgment = null;
+        // The run is complete, so there is nothing to resume
+        if (checkpointFile != null && !writer.checkError()
+                && (log == null || !log.checkError())) {
+            checkpointFile.delete();
+        }
+    }
 
-            // See explanation given with the fetch mode variable declarations
+    /**
+     * Get the checkpoint to start run() from: the one in the checkpoint file
+     * if resuming and there is one, or else a new one.
+     *
+     * @param runTag A label identifying this run
+     * @param outputFile Name of the output file
+     * @param logFile Name of the log file, or null
+     * @return The checkpoint, or null if the run can't be checkpointed or
+     * resumed
+     */
+    private Checkpoint startCheckpoint(String runTag, String outputFile,
+            String logFile) {
+        if (outputFile.endsWith(".gz")
+                || (logFile != null && logFile.endsWith(".gz"))) {
+            System.err.println("Error: can't save checkpoints of a run"
+                    + " with compressed output");
+            return null;
+        }
+
+        int[] topicNumbers = new int[topics.size()];
+        for (int t = 0; t < topics.size(); t++) {
+            topicNumbers[t] = topics.get(t).number;
+        }
+
+        if (resume && checkpointFile.exists()) {
+            Checkpoint checkpoint;
+            try {
+                checkpoint = Checkpoint.read(checkpointFile);
+            } catch (IOException e) {
+                System.err.println("Error reading checkpoint: "
+                        + e.getMessage());
+                return null;
+            }
+            if (!checkpoint.runTag.equals(runTag)
+                    || !checkpoint.filterClass.equals(
+                        filter.getClass().getName())
+                    || !Arrays.equals(checkpoint.topicNumbers, topicNumbers)
+                    || (checkpoint.logLength >= 0) != (logFile != null)) {
+                System.err.println("Error: " + checkpointFile + " is a"
+                        + " checkpoint of a different run");
+                return null;
+            }
+            System.out.println("Resuming from " + checkpointFile + " with "
+                    + checkpoint.finishedFeedbackCounts.size() + " of "
+                    + topicNumbers.length + " topics finished");
+            return checkpoint;
+        }
+        if (resume) {
+            System.out.println("No checkpoint at " + checkpointFile
+                    + "; starting from the first topic");
+        }
+
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.runTag = runTag;
+        checkpoint.filterClass = filter.getClass().getName();
+        checkpoint.topicNumbers = topicNumbers;
+        checkpoint.logLength = (logFile == null) ? -1 : 0;
+        return checkpoint;
+    }
+
+    // Saves the progress of run() to the checkpoint file
+    private class Checkpointer {
+        private final Checkpoint checkpoint;
+        private final File outputFile;
+        private final PrintWriter writer;
+        private final File logFile;
+        private final PrintWriter log;
+        private long lastSave = System.nanoTime();
+
+        Checkpointer(Checkpoint checkpoint, String outputFile,
+                PrintWriter writer, String logFile, PrintWriter log) {
+            this.checkpoint = checkpoint;
+            this.outputFile = new File(outputFile);
+            this.writer = writer;
+            this.logFile = (logFile == null) ? null : new File(logFile);
+            this.log = log;
+        }
+
+        // Whether a checkpoint is due within a topic
+        boolean isDue() {
+            return checkpointIntervalNanos > 0
+                && System.nanoTime() - lastSave >= checkpointIntervalNanos;
+        }
+
+        // Save the progress of a topic after processing the given tweet
+        void save(TopicRun topicRun, long lastTweetId) {
+            checkpoint.lastTweetId = lastTweetId;
+            checkpoint.filterState = topicRun.filter.getState();
+            checkpoint.feedbackCounts = topicRun.getFeedbackCounts();
+            write();
+        }
+
+        // Save the progress at the end of a topic
+        void topicFinished(TopicRun topicRun) {
+            checkpoint.finishedFeedbackCounts.add(
+                    topicRun.getFeedbackCounts());
+            checkpoint.lastTweetId = -1;
+            checkpoint.filterState = null;
+            checkpoint.feedbackCounts = null;
+            write();
+        }
+
+        private void write() {
+            // Everything written so far must be in the files
+            writer.flush();
+            if (log != null) {
+                log.flush();
+            }
+            checkpoint.outputLength = outputFile.length();
+            checkpoint.logLength = (log == null) ? -1 : logFile.length();
+            try {
+                checkpoint.save(checkpointFile);
+            } catch (IOException e) {
+                System.err.println("Error writing checkpoint: "
+                        + e.getMessage());
+            }
+            // The filter's snapshot may share its objects
+            checkpoint.filterState = null;
+            lastSave = System.nanoTime();
+        }
+    }
+
+    /**
+     * Feed a topic's tweets to its TopicRun, from queryTweetTime to
+     * queryNewestTweet, using the current fetch mode.
+     *
+     * @param topicRun The topic to run
+     * @param topicDb The database to read tweets from
+     */
+    private void runTopic(TopicRun topicRun, TweetStore topicDb) {
+        runTopic(topicRun, topicDb, -1, null);
+    }
+
+    /**
+     * Feed a topic's tweets to its TopicRun, saving checkpoints as they are
+     * due.
+     *
+     * @param topicRun The topic to run
+     * @param topicDb The database to read tweets from
+     * @param resumeAfter The last tweet processed before the topic was
+     * resumed with TopicRun.resume(), or -1 to start the topic
+     * @param checkpointer Where to save checkpoints, or null
+     */
+    private void runTopic(TopicRun topicRun, TweetStore topicDb,
+            long resumeAfter, Checkpointer checkpointer) {
+        Topic topic = topicRun.topic;
+        long firstId = (resumeAfter >= 0)
+            ? resumeAfter + 1 : topic.queryTweetTime;
+        Tweet tweet = null;
+        Qrels.TopicQrels topicJudgments = judgments.get(topic.number);
+        int judgment = 0;
+        Tweet[] batch = null;
+        int batchStart = 0;
+
+        // The tweets read by the scan, one at a time
+        Tweet view = new Tweet();
+
+        // See explanation given with the fetch mode variable declarations
+        switch (fetchMode) {
+            case FETCHMODE_QRELS:
+                // Judgments are in ascending order of tweet ID; start from
+                // the first tweet for the topic
+                judgment = topicJudgments.indexFrom(firstId);
+                batchStart = judgment;
+                batch = fetchBatch(topicDb, topicJudgments, batchStart);
+                tweet = (batch.length > 0) ? batch[0] : null;
+                break;
+            case FETCHMODE_ALL:
+            default:
+                topicDb.startRange(firstId, topic.queryNewestTweet);
+                // Get the first tweet for the topic
+                tweet = next(topicDb, view);
+        }
+
+        if (resumeAfter < 0) {
+            topicRun.start(tweet);
+        }
+
+        // Main filtering loop
+        while (topicRun.accepts(tweet)) {
+            topicRun.process(tweet);
+            if (checkpointer != null && checkpointer.isDue()) {
+                checkpointer.save(topicRun, tweet.id);
+            }
+
+            // Fetch the next tweet
             switch (fetchMode) {
                 case FETCHMODE_QRELS:
-                    // Because topicJudgments is a TreeMap, the iterator returns
-                    // judgments in ascending order of tweet ID
-                    judgmentIterator = topicJudgments.entrySet().iterator();
-                    // Advance to the first tweet for the topic
-                    do {
-                        judgment = judgmentIterator.next();
-                    } while (judgment.getKey() < topic.queryTweetTime);
-                    tweet = db.fetchTweet(judgment.getKey());
+                    judgment++;
+                    if (judgment == batchStart + batch.length) {
+                        batchStart = judgment;
+                        batch = fetchBatch(topicDb, topicJudgments, batchStart);
+                    }
+                    tweet = (judgment < batchStart + batch.length)
+                        ? batch[judgment - batchStart] : null;
                     break;
                 case FETCHMODE_ALL:
                 default:
-                    db.startFromTweetId(topic.queryTweetTime);
-                    // Get the first tweet for the topic
-                    tweet = db.next();
-            }
-
-            if (tweet == null || tweet.id != topic.queryTweetTime) {
-                System.err.println("Warning: topic " + topic.number +
-                        ": oldest known relevant tweet is not in database");
-                // TODO: How to handle this?
-            } else {
-                // Provide the first relevant tweet to the filter
-                filter.feedback(tweet, topicJudgments.get(tweet.id));
-            }
-
-            // Main filtering loop
-            while (tweet != null && tweet.id <= topic.queryNewestTweet) {
-                FilterDecision decision = filter.decide(tweet);
-                if (decision.retrieve) {
-                    writer.printf("MB%03d %d %.3f yes %s\n",
-                            topic.number,
-                            tweet.id,
-                            decision.score,
-                            runTag);
-                    int relevance;
-                    if (topicJudgments.containsKey(tweet.id)) {
-                        relevance = topicJudgments.get(tweet.id);
-                    } else {
-                        // Treat unjudged tweets as nonrelevant
-                        relevance = 0;
+                    tweet = next(topicDb, view);
+            }
+        }
+        topicRun.finish();
+    }
+
+    /**
+     * Run the current filter with topics running in parallel on the given
+     * number of threads, and save the output to outputFile.
+     *
+     * Each topic gets its own filter instance from the filter factory and its
+     * own instance of the tweet store, since neither filters nor database
+     * connections can be shared between threads. Topics with the widest
+     * range of tweet IDs are started first. Output for each topic is buffered
+     * in a temporary file and copied to the output file in topic order, so
+     * the output and log files are identical to those written by run(),
+     * including gzip compression if their names end in ".gz".
+     *
+     * Before calling this method, readTopics(), readJudgments(), setDatabase(),
+     * and setFilterFactory() must be called.
+     *
+     * @param runTag A label identifying this run, to be included in the output
+     * @param outputFile Name of the output file
+     * @param logFile Name of the log file, or null to disable logging
+     * @param numThreads Number of topics to run at a time
+     */
+    public void runParallel(String runTag, String outputFile,
+            String logFile, int numThreads) {
+        assert topics != null;
+        assert judgments != null;
+        assert db != null;
+        assert filterFactory != null;
+
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+
+        try (
+                AsyncOutput async = new AsyncOutput();
+                OutputStream output = AsyncOutput.openFile(outputFile);
+                OutputStream log = (logFile == null)
+                    ? null : AsyncOutput.openFile(logFile);
+                TopicOutputFiles parts = new TopicOutputFiles(
+                    topics.size(), logFile != null, async)) {
+
+            ArrayList<TopicRun> topicRuns = newTopicRuns(runTag, parts);
+            db.setFields(getTweetFields(topicRuns));
+
+            // Submit the longest topics first so that a long topic doesn't
+            // end up running alone at the end
+            ArrayList<TopicRun> queue = new ArrayList<>(topicRuns);
+            Collections.sort(queue, new Comparator<TopicRun>() {
+                public int compare(TopicRun run1, TopicRun run2) {
+                    return Long.compare(
+                            run2.topic.queryNewestTweet
+                            - run2.topic.queryTweetTime,
+                            run1.topic.queryNewestTweet
+                            - run1.topic.queryTweetTime);
+                }
+            });
+
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (final TopicRun topicRun : queue) {
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        System.out.println("Running topic "
+                                + topicRun.topic.number);
+                        // Database connections are confined to the thread
+                        // that opened them
+                        TweetStore topicDb = db.reopen();
+                        try {
+                            runTopic(topicRun, topicDb);
+                        } finally {
+                            topicDb.close();
+                        }
                     }
-                    filter.feedback(tweet, relevance);
-                    feedbackCountByRelevance[Math.max(0, relevance)]++;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    System.err.println("Error running topic: "
+                            + e.getCause());
+                    e.getCause().printStackTrace(System.err);
+                    return;
+                } catch (InterruptedException e) {
+                    System.err.println("Interrupted");
+                    return;
+                }
+            }
+
+            // Assemble the output and log files in topic order
+            for (int i = 0; i < topicRuns.size(); i++) {
+                System.out.print("Topic " + topicRuns.get(i).topic.number
+                        + ": ");
+                topicRuns.get(i).printFeedbackCounts(System.out);
+                evaluate(topicRuns.get(i), evaluation);
+                parts.copyTo(i, output, log);
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error writing output: " + e.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the current filter over all topics in a single pass through the
+     * database, and save the output to outputFile.
+     *
+     * Where run() re-reads the database from each topic's queryTweetTime,
+     * this method reads tweets once in ID order, from the oldest
+     * queryTweetTime to the newest queryNewestTweet, and hands each tweet to
+     * every topic whose range covers it. Each topic gets its own filter
+     * instance from the filter factory. Output for each topic is buffered in a
+     * temporary file and copied to the output file in topic order, so the
+     * output and log files are identical to those written by run(),
+     * including gzip compression if their names end in ".gz".
+     *
+     * Only FETCHMODE_ALL is supported.
+     *
+     * Before calling this method, readTopics(), readJudgments(), setDatabase(),
+     * and setFilterFactory() must be called.
+     *
+     * @param runTag A label identifying this run, to be included in the output
+     * @param outputFile Name of the output file
+     * @param logFile Name of the log file, or null to disable logging
+     */
+    public void runSinglePass(String runTag, String outputFile,
+            String logFile) {
+        assert topics != null;
+        assert judgments != null;
+        assert db != null;
+        assert filterFactory != null;
+
+        try (
+                AsyncOutput async = new AsyncOutput();
+                OutputStream output = AsyncOutput.openFile(outputFile);
+                OutputStream log = (logFile == null)
+                    ? null : AsyncOutput.openFile(logFile);
+                TopicOutputFiles parts = new TopicOutputFiles(
+                    topics.size(), logFile != null, async)) {
+
+            ArrayList<TopicRun> topicRuns = newTopicRuns(runTag, parts);
+            db.setFields(getTweetFields(topicRuns));
+
+            System.out.println("Running " + topicRuns.size()
+                    + " topics in a single pass");
+            if (!topicRuns.isEmpty()) {
+                long start = Long.MAX_VALUE;
+                for (TopicRun topicRun : topicRuns) {
+                    start = Math.min(start, topicRun.topic.queryTweetTime);
+                }
+                db.startFromTweetId(start);
+            }
+            runOnePass(topicRuns, db, null);
+
+            // Assemble the output and log files in topic order
+            for (int i = 0; i < topicRuns.size(); i++) {
+                System.out.print("Topic " + topicRuns.get(i).topic.number
+                        + ": ");
+                topicRuns.get(i).printFeedbackCounts(System.out);
+                evaluate(topicRuns.get(i), evaluation);
+                parts.copyTo(i, output, log);
+            }
+
+        } catch (IOException e) {
+            System.err.println("Error writing output: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run the current filter over all topics on a stream of tweets, such as
+     * newline-delimited JSON files or standard input, without a database.
+     *
+     * Tweets are filtered as they arrive, in the same way as by
+     * runSinglePass(): each tweet is handed to every topic whose range covers
+     * it, and each topic has its own filter instance. The stream must be in
+     * ascending ID order. Retrieved tweets are written to the output as soon
+     * as each tweet has been decided, so output lines are in arrival order
+     * rather than topic order, and log entries of different topics are
+     * interleaved. Only the current tweet is held in memory. Reading stops
+     * once every topic's range is finished. The log is written by a
+     * background thread and is not flushed until the end.
+     *
+     * When the stream ends, the throughput in tweets per second and the
+     * distribution of decision latency (from reading a tweet's line to
+     * writing and flushing its decisions) are printed.
+     *
+     * Before calling this method, readTopics(), readJudgments() and
+     * setFilterFactory() must be called.
+     *
+     * @param runTag A label identifying this run, to be included in the output
+     * @param stream The tweets
+     * @param outputFile Name of the output file, or "-" for standard output
+     * @param logFile Name of the log file, or null to disable logging
+     */
+    void runStream(String runTag, final JsonTweetStream stream,
+            String outputFile, String logFile) {
+        assert topics != null;
+        assert judgments != null;
+        assert filterFactory != null;
+
+        // Status goes to stderr if the output goes to stdout
+        PrintStream status = outputFile.equals("-") ? System.err : System.out;
+
+        try (
+                AsyncOutput async = new AsyncOutput();
+                PrintWriter output = outputFile.equals("-")
+                    ? new PrintWriter(System.out)
+                    : new PrintWriter(outputFile);
+                PrintWriter log = (logFile == null)
+                    ? null : async.open(logFile)) {
+
+            final PrintWriter streamOutput = output;
+            ArrayList<TopicRun> topicRuns = new ArrayList<>();
+            for (Topic topic : topics) {
+                Filter topicFilter = filterFactory.newFilter();
+                topicFilter.setLog(log);
+                topicRuns.add(newTopicRun(topic, topicFilter, runTag, output));
+            }
+
+            status.println("Running " + topicRuns.size()
+                    + " topics on a stream");
+            final LatencyHistogram latencies = new LatencyHistogram();
+            long startTime = System.nanoTime();
+
+            runOnePass(topicRuns, stream, new TweetListener() {
+                public void tweetDone(Tweet tweet) {
+                    streamOutput.flush();
+                    latencies.record(
+                            System.nanoTime() - stream.getLastReadTime());
                 }
+            });
+
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            for (TopicRun topicRun : topicRuns) {
+                status.print("Topic " + topicRun.topic.number + ": ");
+                topicRun.printFeedbackCounts(status);
+                evaluate(topicRun, evaluation);
+            }
+            status.printf("%d tweets in %.1f s (%.0f tweets/s)\n",
+                    latencies.getCount(), seconds,
+                    latencies.getCount() / seconds);
+            status.println("Decision latency: " + latencies);
+
+        } catch (IOException e) {
+            System.err.println("Error writing output: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run several filter configurations side by side in a single pass through
+     * the database, writing one output file per configuration and a summary.
+     *
+     * Tweets are read once, from the oldest queryTweetTime to the newest
+     * queryNewestTweet. The text of each tweet is analyzed once, unless the
+     * store already provides its analysis, and attached to the tweet as
+     * TweetTerms, so the query-based filters of all configurations use it
+     * instead of tokenizing and stemming the text themselves. The topics are
+     * divided among the worker threads, widest range of tweet IDs first, and
+     * each worker runs all configurations of its topics as runSinglePass()
+     * does, on blocks of tweets handed to it by the reading thread. Filters
+     * of the same topic are therefore always driven from the same thread, one
+     * tweet at a time, and may share per-topic state (see TopicTerms).
+     *
+     * Each configuration's output is the same as that of runSinglePass()
+     * with its filter. It is held in memory until the end, so this is meant
+     * for filters that retrieve a small fraction of the tweets. The output
+     * files are named after the configurations, and the summary, in
+     * summary.txt, gives the number of tweets each configuration retrieved,
+     * how many of them are judged relevant, and its mean precision, recall,
+     * F0.5 and T11SU over the topics (see Evaluation). Filters get no log.
+     *
+     * Before calling this method, readTopics(), readJudgments() and
+     * setDatabase() must be called.
+     *
+     * @param runTag A label identifying this run, to be included in the output
+     * @param configurations Factories for the filters of each configuration,
+     * by name, in the order to list them in the summary
+     * @param outputDir Directory to write the output files and summary to
+     * @param numThreads Number of worker threads
+     */
+    void runSweep(String runTag, Map<String,FilterFactory> configurations,
+            File outputDir, int numThreads) {
+        assert topics != null;
+        assert judgments != null;
+        assert db != null;
+
+        ArrayList<String> names = new ArrayList<>(configurations.keySet());
+        int numWorkers = Math.max(1, Math.min(numThreads, topics.size()));
+
+        // Deal the topics out to the workers, widest range first
+        ArrayList<Topic> byRange = new ArrayList<>(topics);
+        Collections.sort(byRange, new Comparator<Topic>() {
+            public int compare(Topic topic1, Topic topic2) {
+                return Long.compare(
+                        topic2.queryNewestTweet - topic2.queryTweetTime,
+                        topic1.queryNewestTweet - topic1.queryTweetTime);
+            }
+        });
+        int[] workerOfTopic = new int[topics.size()];
+        for (int i = 0; i < byRange.size(); i++) {
+            workerOfTopic[topics.indexOf(byRange.get(i))] = i % numWorkers;
+        }
+
+        // TopicRuns of each configuration, writing to memory, and those of
+        // each worker
+        ArrayList<ArrayList<TopicRun>> configurationRuns = new ArrayList<>();
+        ArrayList<ArrayList<StringWriter>> configurationOutputs
+            = new ArrayList<>();
+        ArrayList<ArrayList<TopicRun>> workerRuns = new ArrayList<>();
+        for (int w = 0; w < numWorkers; w++) {
+            workerRuns.add(new ArrayList<TopicRun>());
+        }
+        for (int c = 0; c < names.size(); c++) {
+            FilterFactory factory = configurations.get(names.get(c));
+            ArrayList<TopicRun> topicRuns = new ArrayList<>();
+            ArrayList<StringWriter> outputs = new ArrayList<>();
+            for (int t = 0; t < topics.size(); t++) {
+                StringWriter output = new StringWriter();
+                outputs.add(output);
+                TopicRun topicRun = newTopicRun(topics.get(t),
+                        factory.newFilter(), runTag, new PrintWriter(output));
+                topicRuns.add(topicRun);
+                workerRuns.get(workerOfTopic[t]).add(topicRun);
+            }
+            configurationRuns.add(topicRuns);
+            configurationOutputs.add(outputs);
+        }
+        int fields = Tweet.ID_AND_TEXT;
+        for (ArrayList<TopicRun> topicRuns : configurationRuns) {
+            fields |= getTweetFields(topicRuns);
+        }
+        db.setFields(fields);
+
+        System.out.println("Running " + names.size() + " configurations of "
+                + topics.size() + " topics in a single pass, on "
+                + numWorkers + " threads");
+        long startTime = System.nanoTime();
 
-                writer.flush();
-                if (log != null)
-                    log.flush();
-
-                // Fetch the next tweet
-                switch (fetchMode) {
-                    case FETCHMODE_QRELS:
-                        if (judgmentIterator.hasNext()) {
-                            judgment = judgmentIterator.next();
-                            tweet = db.fetchTweet(judgment.getKey());
-                        } else {
-                            tweet = null;
+        ExecutorService executor = Executors.newFixedThreadPool(numWorkers);
+        try {
+            ArrayList<BlockingQueue<Tweet[]>> queues = new ArrayList<>();
+            ArrayList<Future<?>> futures = new ArrayList<>();
+            for (int w = 0; w < numWorkers; w++) {
+                final ArrayList<TopicRun> topicRuns = workerRuns.get(w);
+                final BlockingQueue<Tweet[]> queue
+                    = new ArrayBlockingQueue<>(SWEEP_QUEUE_SIZE);
+                queues.add(queue);
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        TweetBlockSource source = new TweetBlockSource(queue);
+                        try {
+                            runOnePass(topicRuns, source, null);
+                        } finally {
+                            // Don't leave the reading thread waiting
+                            source.drain();
                         }
-                        break;
-                    case FETCHMODE_ALL:
-                    default:
-                        tweet = db.next();
+                    }
+                }));
+            }
+
+            long count;
+            try {
+                count = readBlocks(queues);
+            } catch (InterruptedException e) {
+                System.err.println("Interrupted");
+                return;
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    System.err.println("Error running configurations: "
+                            + e.getCause());
+                    e.getCause().printStackTrace(System.err);
+                    return;
+                } catch (InterruptedException e) {
+                    System.err.println("Interrupted");
+                    return;
                 }
             }
 
-            System.out.print("Feedback count by relevance:  ");
-            for (int i = 0; i < feedbackCountByRelevance.length; i++) {
-                System.out.print(i + ": " + feedbackCountByRelevance[i] + "  ");
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            System.out.printf("%d tweets in %.1f s (%.0f tweets/s)\n",
+                    count, seconds, count / seconds);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        outputDir.mkdirs();
+        File summaryFile = new File(outputDir, "summary.txt");
+        try (PrintWriter summary = new PrintWriter(summaryFile)) {
+            summary.printf("%-50s %9s %9s %9s %9s %9s %9s\n",
+                    "configuration", "retrieved", "relret", "precision",
+                    "recall", "F0.5", "T11SU");
+            for (int c = 0; c < names.size(); c++) {
+                File outputFile = new File(outputDir, names.get(c) + ".txt");
+                try (PrintWriter output = new PrintWriter(outputFile)) {
+                    for (StringWriter topicOutput
+                            : configurationOutputs.get(c)) {
+                        output.write(topicOutput.toString());
+                    }
+                    if (output.checkError()) {
+                        throw new IOException("Error writing " + outputFile);
+                    }
+                }
+
+                int retrieved = 0;
+                int relevantRetrieved = 0;
+                Evaluation configurationEvaluation
+                    = new Evaluation(Evaluation.DEFAULT_BETA);
+                for (TopicRun topicRun : configurationRuns.get(c)) {
+                    retrieved += topicRun.getRetrieved();
+                    relevantRetrieved += topicRun.getRelevantRetrieved();
+                    evaluate(topicRun, configurationEvaluation);
+                }
+                summary.printf("%-50s %9d %9d %9.4f %9.4f %9.4f %9.4f\n",
+                        names.get(c), retrieved, relevantRetrieved,
+                        configurationEvaluation.getMeanPrecision(),
+                        configurationEvaluation.getMeanRecall(),
+                        configurationEvaluation.getMeanFBeta(),
+                        configurationEvaluation.getMeanT11SU());
+            }
+            if (summary.checkError()) {
+                throw new IOException("Error writing " + summaryFile);
             }
-            System.out.println();
+        } catch (IOException e) {
+            System.err.println("Error writing output: " + e.getMessage());
+            return;
         }
+        System.out.println("Summary written to " + summaryFile);
+    }
 
-        writer.close();
-        if (log!= null) {
-            log.close();
+    /**
+     * Read the tweets of all topics' ranges from the database, analyze them,
+     * and put them on each of the queues in blocks, followed by an empty
+     * block.
+     *
+     * @param queues The queues of the worker threads
+     * @return The number of tweets read
+     *
+     * @throws InterruptedException
+     */
+    private long readBlocks(ArrayList<BlockingQueue<Tweet[]>> queues)
+            throws InterruptedException {
+        long start = Long.MAX_VALUE;
+        long end = Long.MIN_VALUE;
+        for (Topic topic : topics) {
+            start = Math.min(start, topic.queryTweetTime);
+            end = Math.max(end, topic.queryNewestTweet);
+        }
+
+        TextAnalyzer analyzer = new TextAnalyzer();
+        long count = 0;
+        boolean more = !topics.isEmpty();
+        if (more) {
+            db.startFromTweetId(start);
+        }
+        while (more) {
+            // Each block has its own dictionary, which is not changed once
+            // the block is handed to the workers
+            TermDictionary dictionary = new TermDictionary();
+            Tweet[] block = new Tweet[SWEEP_BLOCK_SIZE];
+            int size = 0;
+            while (size < block.length) {
+                Tweet tweet = next(db);
+                if (tweet == null) {
+                    more = false;
+                    break;
+                }
+                if (tweet.terms == null) {
+                    tweet.terms = analyzer.analyzeToTerms(tweet.text,
+                            dictionary);
+                }
+                block[size++] = tweet;
+
+                // The first tweet past the end finishes the last topics
+                if (tweet.id > end) {
+                    more = false;
+                    break;
+                }
+            }
+            if (size > 0) {
+                if (size < block.length) {
+                    block = Arrays.copyOf(block, size);
+                }
+                for (BlockingQueue<Tweet[]> queue : queues) {
+                    queue.put(block);
+                }
+                count += size;
+            }
+        }
+        for (BlockingQueue<Tweet[]> queue : queues) {
+            queue.put(new Tweet[0]);
         }
+        return count;
+    }
+
+    // Tweets handed to a worker thread by runSweep() in blocks, ending with
+    // an empty block
+    private static class TweetBlockSource implements TweetSource {
+
+        private final BlockingQueue<Tweet[]> queue;
+        private Tweet[] block = new Tweet[0];
+        private int position = 0;
+        private boolean ended = false;
+
+        TweetBlockSource(BlockingQueue<Tweet[]> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public Tweet next() {
+            while (position == block.length) {
+                if (ended || !take()) {
+                    return null;
+                }
+            }
+            return block[position++];
+        }
+
+        @Override
+        public Tweet next(Tweet view) {
+            return next();
+        }
+
+        // Take and discard the remaining blocks
+        void drain() {
+            while (!ended && take()) {
+            }
+        }
+
+        // Take the next block, returning false at the end
+        private boolean take() {
+            try {
+                block = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ended = true;
+                return false;
+            }
+            position = 0;
+            ended = (block.length == 0);
+            return !ended;
+        }
+    }
+
+    // Called after each tweet of a pass has been handed to the active topics
+    private interface TweetListener {
+        void tweetDone(Tweet tweet);
+    }
+
+    /**
+     * Read tweets from the source once, in ID order, handing each to every
+     * topic whose range covers it, until every topic's range is finished or
+     * there are no more tweets. Topics are started at the first tweet with an
+     * ID of at least their queryTweetTime.
+     *
+     * @param topicRuns The topics to run
+     * @param source The tweets, positioned at or before the earliest
+     * queryTweetTime
+     * @param listener Called after each tweet, or null
+     */
+    private void runOnePass(ArrayList<TopicRun> topicRuns, TweetSource source,
+            TweetListener listener) {
+
+        // Topics not yet started, in order of queryTweetTime
+        ArrayList<TopicRun> pending = new ArrayList<>(topicRuns);
+        Collections.sort(pending, new Comparator<TopicRun>() {
+            public int compare(TopicRun run1, TopicRun run2) {
+                return Long.compare(run1.topic.queryTweetTime,
+                        run2.topic.queryTweetTime);
+            }
+        });
+        int nextPending = 0;
+
+        // Topics that have been started and whose range is not finished
+        LinkedList<TopicRun> active = new LinkedList<>();
+
+        Tweet view = new Tweet();
+        Tweet tweet;
+        while ((nextPending < pending.size() || !active.isEmpty())
+                && (tweet = next(source, view)) != null) {
+
+            // Start the topics whose range begins at or before this tweet
+            while (nextPending < pending.size() && tweet.id
+                    >= pending.get(nextPending).topic.queryTweetTime) {
+                TopicRun topicRun = pending.get(nextPending++);
+                topicRun.start(tweet);
+                active.add(topicRun);
+            }
+
+            Iterator<TopicRun> activeIterator = active.iterator();
+            while (activeIterator.hasNext()) {
+                TopicRun topicRun = activeIterator.next();
+                if (topicRun.accepts(tweet)) {
+                    topicRun.process(tweet);
+                } else {
+                    topicRun.finish();
+                    activeIterator.remove();
+                }
+            }
+
+            if (listener != null) {
+                listener.tweetDone(tweet);
+            }
+        }
+
+        for (TopicRun topicRun : active) {
+            topicRun.finish();
+        }
+
+        // Any topics not yet started begin after the last tweet
+        while (nextPending < pending.size()) {
+            TopicRun topicRun = pending.get(nextPending++);
+            topicRun.start(null);
+            topicRun.finish();
+        }
+    }
+
+    /**
+     * Create a TopicRun, recording it in the metrics if there are any.
+     *
+     * @param topic The topic to run
+     * @param topicFilter The filter to use
+     * @param runTag A label identifying this run, to be included in the output
+     * @param writer Where to write retrieved tweets
+     * @return The TopicRun
+     */
+    private TopicRun newTopicRun(Topic topic, Filter topicFilter,
+            String runTag, PrintWriter writer) {
+        TopicRun topicRun = new TopicRun(topic, topicFilter,
+                judgments.get(topic.number), runTag, writer);
+        if (metrics != null) {
+            topicRun.setMetrics(metrics.newTopic(topic));
+        }
+        return topicRun;
+    }
+
+    /**
+     * Add the results of a finished topic to an evaluation.
+     *
+     * @param topicRun The topic
+     * @param topicEvaluation The evaluation, or null to do nothing
+     */
+    private void evaluate(TopicRun topicRun, Evaluation topicEvaluation) {
+        if (topicEvaluation == null) {
+            return;
+        }
+        topicEvaluation.addTopic(topicRun.topic.number,
+                topicRun.getRelevantRetrieved(),
+                topicRun.getRetrieved() - topicRun.getRelevantRetrieved(),
+                countRelevant(topicRun.topic.number));
+    }
+
+    // The number of tweets judged relevant for a topic
+    private int countRelevant(int topicNumber) {
+        Qrels.TopicQrels topicJudgments = judgments.get(topicNumber);
+        return (topicJudgments == null) ? 0 : topicJudgments.countRelevant();
+    }
+
+    // source.next(), timed if there are metrics
+    private Tweet next(TweetSource source) {
+        return next(source, null);
+    }
+
+    // source.next(view), or source.next() if view is null, timed if there
+    // are metrics
+    private Tweet next(TweetSource source, Tweet view) {
+        if (metrics == null) {
+            return (view == null) ? source.next() : source.next(view);
+        }
+        long start = System.nanoTime();
+        Tweet tweet = (view == null) ? source.next() : source.next(view);
+        metrics.nextTweetRead(System.nanoTime() - start);
+        return tweet;
+    }
+
+    // The next batch of up to FETCH_BATCH_SIZE judged tweets of a topic,
+    // starting from the given judgment, fetched with topicDb.fetchTweets()
+    // and timed if there are metrics
+    private Tweet[] fetchBatch(TweetStore topicDb,
+            Qrels.TopicQrels topicJudgments, int from) {
+        int count = Math.min(FETCH_BATCH_SIZE, topicJudgments.size() - from);
+        if (metrics == null) {
+            return topicDb.fetchTweets(topicJudgments.getIds(), from, count);
+        }
+        long start = System.nanoTime();
+        Tweet[] tweets = topicDb.fetchTweets(topicJudgments.getIds(), from,
+                count);
+        metrics.tweetsFetched(System.nanoTime() - start, count);
+        return tweets;
+    }
+
+    /**
+     * Create a TopicRun for each topic, each with its own filter from the
+     * filter factory and writing to its own temporary files.
+     *
+     * @param runTag A label identifying this run, to be included in the output
+     * @param parts The temporary files to write to
+     * @return The TopicRuns, in topic order
+     */
+    private ArrayList<TopicRun> newTopicRuns(String runTag,
+            TopicOutputFiles parts) {
+        ArrayList<TopicRun> topicRuns = new ArrayList<>();
+        for (int i = 0; i < topics.size(); i++) {
+            Topic topic = topics.get(i);
+            Filter topicFilter = filterFactory.newFilter();
+            topicFilter.setLog(parts.getLog(i));
+            topicRuns.add(newTopicRun(topic, topicFilter, runTag,
+                        parts.getWriter(i)));
+        }
+        return topicRuns;
+    }
+
+    // The fields of the tweets that the topic runs' filters use
+    private static int getTweetFields(ArrayList<TopicRun> topicRuns) {
+        int fields = Tweet.ID_AND_TEXT;
+        for (TopicRun topicRun : topicRuns) {
+            fields |= topicRun.filter.getTweetFields();
+        }
+        return fields;
+    }
+
+    /**
+     * Evaluate a run file written by one of the run methods, adding the
+     * results of each topic to the evaluation in topic order. Lines other
+     * than "yes" decisions, and repeated decisions, are ignored. The file
+     * may be compressed with gzip, if its name ends in ".gz".
+     *
+     * Before calling this method, readTopics() and readJudgments() must be
+     * called.
+     *
+     * @param runFile Name of the run file
+     * @param runEvaluation The evaluation to add the results to
+     * @return true if the file was read, false if there was an error
+     */
+    public boolean evaluateRun(String runFile, Evaluation runEvaluation) {
+        assert topics != null;
+        assert judgments != null;
+
+        // Retrieved tweet IDs by topic number
+        HashMap<Integer,HashSet<Long>> retrieved = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        openInput(runFile)))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 4 || !tokens[3].equals("yes")) {
+                    continue;
+                }
+                Integer topicNumber = Integer.valueOf(tokens[0].substring(2));
+                if (!retrieved.containsKey(topicNumber)) {
+                    retrieved.put(topicNumber, new HashSet<Long>());
+                }
+                retrieved.get(topicNumber).add(Long.valueOf(tokens[1]));
+            }
+        } catch (IOException | NumberFormatException
+                | StringIndexOutOfBoundsException e) {
+            System.err.println("Error reading run file: " + e.getMessage());
+            return false;
+        }
+
+        for (Topic topic : topics) {
+            Qrels.TopicQrels topicJudgments = judgments.get(topic.number);
+            int relevantRetrieved = 0;
+            int nonrelevantRetrieved = 0;
+            if (retrieved.containsKey(topic.number)) {
+                for (long tweetId : retrieved.get(topic.number)) {
+                    int relevance = (topicJudgments == null)
+                        ? 0 : topicJudgments.getRelevanceOf(tweetId, 0);
+                    if (relevance >= Constants.MINREL) {
+                        relevantRetrieved++;
+                    } else {
+                        nonrelevantRetrieved++;
+                    }
+                }
+            }
+            runEvaluation.addTopic(topic.number, relevantRetrieved,
+                    nonrelevantRetrieved, countRelevant(topic.number));
+        }
+        return true;
+    }
+
+    // Open a file for reading, decompressing it if its name ends in ".gz"
+    private static InputStream openInput(String filename) throws IOException {
+        InputStream in = new FileInputStream(filename);
+        if (filename.endsWith(".gz")) {
+            try {
+                in = new GZIPInputStream(in, 65536);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+        return new BufferedInputStream(in, 65536);
     }
 
     /**
      * Write the relevance judgments to a qrels file with the given name.
      * This is mostly for testing that the input qrels file was read correctly.
+     * If the filename ends in ".bin", the qrels are written in a binary form
+     * that readQrels() loads much faster than the text form.
      *
      * @param filename The output qrels filename
      */
     public void writeQrels(String filename) {
+        if (filename.endsWith(".bin")) {
+            try (OutputStream out = new BufferedOutputStream(
+                        new FileOutputStream(filename))) {
+                judgments.save(out);
+            } catch (IOException e) {
+                System.err.println("Error writing qrels file: "
+                        + e.getMessage());
+            }
+            return;
+        }
         try (PrintWriter writer = new PrintWriter(filename)) {
 
             // Loop over topic numbers in ascending order
-            for (Map.Entry<Integer,TreeMap<Long,Integer>> topicEntry
-                    : judgments.entrySet()) {
-
-                Integer topicNumber = topicEntry.getKey();
-                TreeMap<Long,Integer> topicMap = topicEntry.getValue();
+            for (int t = 0; t < judgments.getTopicCount(); t++) {
+                int topicNumber = judgments.getTopicNumber(t);
+                Qrels.TopicQrels topicJudgments = judgments.get(topicNumber);
 
                 // Loop over tweet IDs in descending order
-                for (Map.Entry<Long,Integer> tweetEntry
-                        : topicMap.descendingMap().entrySet()) {
-
-                    Long tweetId = tweetEntry.getKey();
-                    Integer relevance = tweetEntry.getValue();
-
-                    writer.printf("%d 0 %d %d\n",
-                            topicNumber, tweetId, relevance);
+                for (int i = topicJudgments.size() - 1; i >= 0; i--) {
+                    writer.printf("%d 0 %d %d\n", topicNumber,
+                            topicJudgments.getId(i),
+                            topicJudgments.getRelevance(i));
                 }
             }
         } catch (Exception e) {
@@ -294,17 +1380,26 @@ public class FilterController {
                 writer.println("Topic " + topic.number + ": " + topic.title);
                 writer.println("---------------------------------------------");
 
-                Map<Long,Integer> topicJudgments = judgments.get(topic.number);
+                Qrels.TopicQrels topicJudgments = judgments.get(topic.number);
 
-                // Print all relevant tweets
-                for (Map.Entry<Long,Integer> judgment
-                        : topicJudgments.entrySet()) {
-                    if (judgment.getValue() >= Constants.MINREL) {
-                        Tweet tweet = db.fetchTweet(judgment.getKey());
-                        writer.println("RELEVANCE = " + judgment.getValue());
-                        writer.println(tweet.toString());
+                // Fetch all relevant tweets in one batch
+                long[] ids = new long[topicJudgments.size()];
+                int[] relevance = new int[topicJudgments.size()];
+                int count = 0;
+                for (int i = 0; i < topicJudgments.size(); i++) {
+                    if (topicJudgments.getRelevance(i) >= Constants.MINREL) {
+                        ids[count] = topicJudgments.getId(i);
+                        relevance[count] = topicJudgments.getRelevance(i);
+                        count++;
                     }
                 }
+                Tweet[] tweets = db.fetchTweets(ids, 0, count);
+
+                // Print all relevant tweets
+                for (int i = 0; i < count; i++) {
+                    writer.println("RELEVANCE = " + relevance[i]);
+                    writer.println(tweets[i].toString());
+                }
             }
         } catch (Exception e) {
             System.err.println("Error writing qrels file: " + e.getMessage());
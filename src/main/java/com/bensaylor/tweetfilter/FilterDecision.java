@@ -8,6 +8,25 @@ package com.bensaylor.tweetfilter;
 public class FilterDecision {
 
     public FilterDecision(long tweetId, double score, boolean retrieve) {
+        set(tweetId, score, retrieve);
+    }
+
+    /**
+     * Create an empty decision, to be filled in by
+     * Filter.decide(Tweet, FilterDecision).
+     */
+    public FilterDecision() {
+    }
+
+    /**
+     * Replace the decision, so that one instance can be reused for many
+     * tweets.
+     *
+     * @param tweetId Tweet ID
+     * @param score Filter-specific score for the tweet
+     * @param retrieve Retrieval decision for the tweet
+     */
+    public void set(long tweetId, double score, boolean retrieve) {
         this.tweetId = tweetId;
         this.score = score;
         this.retrieve = retrieve;
@@ -0,0 +1,16 @@
+package com.bensaylor.tweetfilter;
+
+/**
+ * Creates filter instances.
+ * Filters keep per-topic state, so running several topics at once requires
+ * a separate instance for each topic.
+ *
+ * @author Ben Saylor
+ */
+public interface FilterFactory {
+
+    /**
+     * @return A new, independent filter instance
+     */
+    public Filter newFilter();
+}
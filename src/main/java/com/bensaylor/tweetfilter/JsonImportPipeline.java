@@ -0,0 +1,287 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.google.gson.Gson;
+
+/**
+ * Imports compressed JSON files into a TweetDatabase, or the shards of a
+ * ShardedTweetStore, using a three-stage
+ * pipeline, so that decompression, JSON decoding and database inserts run
+ * at the same time:
+ *
+ *   reader threads --lines--> decoder threads --tweets--> writer
+ *
+ * Reader threads each take the next file from the list, decompress it and
+ * read it in batches of lines. Decoder threads turn each batch of lines into
+ * a batch of Tweets. The writer runs in the calling thread, since the
+ * database connection is confined to the thread that opened it, and commits
+ * a transaction every transactionSize tweets; when importing into shards, it
+ * instead hands the tweets to the shards' own threads (see
+ * ShardedTweetStore.Importer). The stages are connected by
+ * bounded queues, so memory use does not depend on the size of the input.
+ *
+ * Batches from different files are inserted in whatever order they are
+ * decoded, so if the same tweet ID occurs more than once, which copy is kept
+ * is not defined.
+ *
+ * @author Ben Saylor
+ */
+class JsonImportPipeline {
+
+    // Number of lines or tweets passed between stages at a time
+    private static final int BATCH_SIZE = 1000;
+
+    // Number of batches each queue can hold
+    private static final int QUEUE_CAPACITY = 64;
+
+    // Marks the end of the input on a queue
+    private static final List<String> END_OF_LINES = new ArrayList<>();
+    private static final List<Tweet> END_OF_TWEETS = new ArrayList<>();
+
+    private TweetDatabase db = null;
+    private ShardedTweetStore.Importer shardImporter = null;
+    private int numReaders;
+    private int numDecoders;
+    private int transactionSize;
+
+    private BlockingQueue<List<String>> lineQueue;
+    private BlockingQueue<List<Tweet>> tweetQueue;
+
+    /**
+     * @param db The database to import into
+     * @param numReaders Number of reader/decompressor threads
+     * @param numDecoders Number of JSON decoder threads
+     * @param transactionSize Number of tweets to insert per transaction
+     */
+    JsonImportPipeline(TweetDatabase db, int numReaders, int numDecoders,
+            int transactionSize) {
+        this.db = db;
+        this.numReaders = Math.max(1, numReaders);
+        this.numDecoders = Math.max(1, numDecoders);
+        this.transactionSize = Math.max(1, transactionSize);
+    }
+
+    /**
+     * @param shardImporter Where to write the tweets of a sharded import
+     * @param numReaders Number of reader/decompressor threads
+     * @param numDecoders Number of JSON decoder threads
+     */
+    JsonImportPipeline(ShardedTweetStore.Importer shardImporter,
+            int numReaders, int numDecoders) {
+        this.shardImporter = shardImporter;
+        this.numReaders = Math.max(1, numReaders);
+        this.numDecoders = Math.max(1, numDecoders);
+    }
+
+    /**
+     * Import the given files, returning when all of them have been imported
+     * or a database error has occurred.
+     *
+     * @param filenames The names of the *.json.gz files to import
+     */
+    void importFiles(final String[] filenames) {
+        lineQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        tweetQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        final AtomicInteger nextFile = new AtomicInteger(0);
+        final AtomicInteger readersRunning = new AtomicInteger(numReaders);
+        final AtomicInteger decodersRunning = new AtomicInteger(numDecoders);
+
+        ExecutorService executor
+            = Executors.newFixedThreadPool(numReaders + numDecoders);
+
+        for (int i = 0; i < numReaders; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    boolean aborted = false;
+                    try {
+                        int fileIndex;
+                        while ((fileIndex = nextFile.getAndIncrement())
+                                < filenames.length) {
+                            System.out.println("Importing file "
+                                    + (fileIndex + 1) + " of "
+                                    + filenames.length + ": "
+                                    + filenames[fileIndex]);
+                            readFile(filenames[fileIndex]);
+                        }
+                    } catch (InterruptedException e) {
+                        // Import was aborted
+                        aborted = true;
+                    } finally {
+                        // The last reader to finish tells the decoders, even
+                        // if it failed
+                        if (readersRunning.decrementAndGet() == 0
+                                && !aborted) {
+                            for (int j = 0; j < numDecoders; j++) {
+                                putEnd(lineQueue, END_OF_LINES);
+                            }
+                        }
+                    }
+                }
+            });
+        }
+
+        for (int i = 0; i < numDecoders; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    boolean aborted = false;
+                    try {
+                        decode();
+                    } catch (InterruptedException e) {
+                        // Import was aborted
+                        aborted = true;
+                    } finally {
+                        // The last decoder to finish tells the writer, even
+                        // if it failed
+                        if (decodersRunning.decrementAndGet() == 0
+                                && !aborted) {
+                            putEnd(tweetQueue, END_OF_TWEETS);
+                        }
+                    }
+                }
+            });
+        }
+
+        try {
+            if (shardImporter != null) {
+                writeShards();
+            } else {
+                write();
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Import interrupted");
+        } finally {
+            // Stop the other stages if the writer finished early
+            executor.shutdownNow();
+        }
+    }
+
+    // Put an end marker on a queue, unless the import is aborted first
+    private static <T> void putEnd(BlockingQueue<List<T>> queue,
+            List<T> end) {
+        try {
+            queue.put(end);
+        } catch (InterruptedException e) {
+            // Import was aborted
+        }
+    }
+
+    // Reader stage: decompress a file and queue its lines in batches
+    private void readFile(String filename) throws InterruptedException {
+        try (
+                InputStream fileStream = new FileInputStream(filename);
+                InputStream gzipStream = new GZIPInputStream(
+                    fileStream, 65536);
+                BufferedReader buffered = new BufferedReader(
+                    new InputStreamReader(gzipStream, "UTF-8"), 65536)) {
+
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            String line;
+            while ((line = buffered.readLine()) != null) {
+                batch.add(line);
+                if (batch.size() == BATCH_SIZE) {
+                    lineQueue.put(batch);
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                lineQueue.put(batch);
+            }
+
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error reading " + filename + ": "
+                    + e.getMessage());
+        }
+    }
+
+    // Decoder stage: decode batches of lines into batches of tweets
+    private void decode() throws InterruptedException {
+        Gson gson = new Gson();
+        List<String> lines;
+        while ((lines = lineQueue.take()) != END_OF_LINES) {
+            List<Tweet> tweets = new ArrayList<>(lines.size());
+            for (String line : lines) {
+                try {
+                    Tweet tweet = gson.fromJson(line, Tweet.class);
+                    if (tweet != null) {
+                        tweets.add(tweet);
+                    }
+                } catch (RuntimeException e) {
+                    // Usually a JsonParseException, but skip the line
+                    // whatever went wrong
+                    System.err.println("Error decoding tweet: "
+                            + e.getMessage());
+                }
+            }
+            tweetQueue.put(tweets);
+        }
+    }
+
+    // Writer stage: insert tweets, committing every transactionSize tweets
+    private void write() throws InterruptedException {
+        int uncommitted = 0;
+        try {
+            db.begin();
+            List<Tweet> tweets;
+            while ((tweets = tweetQueue.take()) != END_OF_TWEETS) {
+                for (Tweet tweet : tweets) {
+                    try {
+                        db.insertTweet(tweet);
+                    } catch (RuntimeException e) {
+                        // Such as a tweet without a user; skip it
+                        System.err.println("Error inserting tweet "
+                                + tweet.id + ": " + e);
+                        continue;
+                    }
+                    uncommitted++;
+                    if (uncommitted == transactionSize) {
+                        db.commit();
+                        printProgress();
+                        db.begin();
+                        uncommitted = 0;
+                    }
+                }
+            }
+        } catch (SQLiteException e) {
+            System.err.println("Error inserting tweet: " + e.getMessage());
+        } finally {
+            try {
+                db.commit();
+            } catch (SQLiteException e) {
+                System.err.println(e.getMessage());
+            }
+            printProgress();
+        }
+    }
+
+    // Writer stage of a sharded import: split the tweets by shard
+    private void writeShards() throws InterruptedException {
+        try {
+            List<Tweet> tweets;
+            while ((tweets = tweetQueue.take()) != END_OF_TWEETS) {
+                shardImporter.insert(tweets);
+            }
+        } finally {
+            shardImporter.finish();
+        }
+    }
+
+    private void printProgress() {
+        System.out.print(db.getTweetsImported() + " tweets imported, ");
+        System.out.println(db.getDuplicates()
+                + " duplicate tweet IDs ignored");
+    }
+}
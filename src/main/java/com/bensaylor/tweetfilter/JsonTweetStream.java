@@ -0,0 +1,148 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Tweets decoded one at a time from newline-delimited JSON, in the format
+ * read by createdb, without loading them into a database.
+ *
+ * The input is a list of files, read in order, or standard input. Files
+ * whose names end in ".gz" are decompressed. Only one line is held in memory
+ * at a time. Lines that cannot be decoded are reported and skipped, as are
+ * files that cannot be read.
+ *
+ * @author Ben Saylor
+ */
+class JsonTweetStream implements TweetSource, Closeable {
+
+    private List<String> filenames;
+    private int nextFile = 0;
+    private BufferedReader reader;
+    private Gson gson = new Gson();
+    private long lastReadTime;
+
+    /**
+     * @param filenames Names of the files to read, or an empty list to read
+     * standard input. The name "-" also means standard input.
+     */
+    JsonTweetStream(List<String> filenames) {
+        this.filenames = filenames;
+        if (filenames.isEmpty()) {
+            reader = new BufferedReader(new InputStreamReader(
+                        System.in, StandardCharsets.UTF_8), 65536);
+        }
+    }
+
+    /**
+     * Read and decode the next tweet, blocking until a line is available.
+     *
+     * @return The next tweet, or null at the end of the input
+     */
+    @Override
+    public Tweet next() {
+        while (true) {
+            String line = null;
+            if (reader != null) {
+                try {
+                    line = reader.readLine();
+                } catch (IOException e) {
+                    System.err.println("Error reading tweets: "
+                            + e.getMessage());
+                }
+            }
+            if (line == null) {
+                if (!openNextFile()) {
+                    return null;
+                }
+                continue;
+            }
+            lastReadTime = System.nanoTime();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                Tweet tweet = gson.fromJson(line, Tweet.class);
+                if (tweet != null) {
+                    return tweet;
+                }
+            } catch (JsonParseException e) {
+                System.err.println("Error decoding tweet: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Tweets are decoded from JSON, so the view is not used.
+     */
+    @Override
+    public Tweet next(Tweet view) {
+        return next();
+    }
+
+    /**
+     * @return The System.nanoTime() at which the line of the last tweet
+     * returned by next() was read
+     */
+    long getLastReadTime() {
+        return lastReadTime;
+    }
+
+    @Override
+    public void close() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+            reader = null;
+        }
+        nextFile = filenames.size();
+    }
+
+    // Close the current file and open the next readable one.
+    // Returns false if there are no more files.
+    private boolean openNextFile() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+            reader = null;
+        }
+        while (nextFile < filenames.size()) {
+            String filename = filenames.get(nextFile++);
+            try {
+                InputStream in = filename.equals("-")
+                    ? System.in : new FileInputStream(filename);
+                if (filename.endsWith(".gz")) {
+                    try {
+                        in = new GZIPInputStream(in, 65536);
+                    } catch (IOException e) {
+                        in.close();
+                        throw e;
+                    }
+                }
+                reader = new BufferedReader(new InputStreamReader(
+                            in, StandardCharsets.UTF_8), 65536);
+                return true;
+            } catch (IOException e) {
+                System.err.println("Error reading " + filename + ": "
+                        + e.getMessage());
+            }
+        }
+        return false;
+    }
+}
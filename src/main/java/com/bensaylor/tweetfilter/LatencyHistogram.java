@@ -0,0 +1,118 @@
+package com.bensaylor.tweetfilter;
+
+/**
+ * Histogram of latencies in nanoseconds, in constant memory.
+ *
+ * Each power of two is split into 16 linear buckets, so percentiles are
+ * reported to within about 6% of the true value. Count, mean and maximum are
+ * exact. Methods are synchronized, so a histogram can be read while another
+ * thread records into it.
+ *
+ * @author Ben Saylor
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private long[] counts = new long[64 * SUB_BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /**
+     * @param nanos A latency in nanoseconds
+     */
+    synchronized void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts[bucket(nanos)]++;
+        count++;
+        sum += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * @return The number of latencies recorded
+     */
+    synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The mean latency in nanoseconds, or 0 if none were recorded
+     */
+    synchronized double getMean() {
+        return (count == 0) ? 0.0 : ((double) sum) / count;
+    }
+
+    /**
+     * @return The maximum latency in nanoseconds
+     */
+    synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @param fraction A fraction between 0 and 1, such as 0.99
+     * @return The latency in nanoseconds that the given fraction of the
+     * recorded latencies do not exceed, rounded up to the end of its bucket
+     */
+    synchronized long getPercentile(double fraction) {
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(max, bucketEnd(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Add the latencies recorded by another histogram to this one.
+     *
+     * @param other The histogram to add
+     */
+    synchronized void add(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            max = Math.max(max, other.max);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("mean %.3f ms, p50 %.3f ms, p99 %.3f ms,"
+                + " max %.3f ms",
+                getMean() / 1e6, getPercentile(0.5) / 1e6,
+                getPercentile(0.99) / 1e6, max / 1e6);
+    }
+
+    // Values below SUB_BUCKETS get a bucket each; above that, each power of
+    // two gets SUB_BUCKETS buckets
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS))
+            & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // The largest value that falls in the given bucket
+    private static long bucketEnd(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((SUB_BUCKETS + subBucket + 1) << shift) - 1;
+    }
+}
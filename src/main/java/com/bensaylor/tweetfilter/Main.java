@@ -2,13 +2,19 @@ package com.bensaylor.tweetfilter;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 /**
@@ -24,6 +30,8 @@ import java.util.Scanner;
  */
 public class Main {
     final private static File dbfile = new File("data/tweets.sqlite");
+    final private static File segmentsDir = new File("data/segments");
+    final private static File shardsDir = new File("data/shards");
     final private static String trainingTopicsFile =
         "/2012.topics.MB1-50.filtering.training.pruned.txt";
     final private static String trainingQrelsFile =
@@ -33,11 +41,29 @@ public class Main {
     final private static String testQrelsFile =
         "/filtering-qrels.test.pruned";
 
-    private static TweetDatabase db = null;
+    // Seconds between checkpoints of a resumed run without -checkpoint
+    final private static double DEFAULT_CHECKPOINT_INTERVAL = 60;
+
+    private static TweetStore db = null;
 
     private static String topicsFile = trainingTopicsFile;
     private static String qrelsFile = trainingQrelsFile;
+    private static String qrelsPath = null; // Overrides qrelsFile if set
     private static String logFile = null;
+    private static boolean singlePass = false;
+    private static int fetchMode = FilterController.FETCHMODE_ALL;
+    private static boolean useSegments = false;
+    private static boolean useShards = false;
+    private static int numThreads = 0; // 0 = not specified
+    private static String metricsFile = null;
+    private static long metricsInterval = 10;
+    private static boolean evaluate = false;
+    private static double fBeta = Evaluation.DEFAULT_BETA;
+    private static double checkpointInterval = -1; // -1 = no checkpoints
+    private static boolean resume = false;
+    private static int prefetchBatchSize = 0; // 0 = no prefetching
+    private static int prefetchDepth
+        = PrefetchingTweetStore.DEFAULT_QUEUE_DEPTH;
 
     public static void main(String[] args) {
 
@@ -48,6 +74,13 @@ public class Main {
             if (option.equals("-test")) {
                 topicsFile = testTopicsFile;
                 qrelsFile = testQrelsFile;
+            } else if (option.equals("-qrels")) {
+                i++;
+                if (i >= args.length) {
+                    printUsage();
+                    return;
+                }
+                qrelsPath = args[i];
             } else if (option.equals("-log")) {
                 i++;
                 if (i >= args.length) {
@@ -55,6 +88,90 @@ public class Main {
                     return;
                 }
                 logFile = args[i];
+            } else if (option.equals("-segments")) {
+                useSegments = true;
+            } else if (option.equals("-shards")) {
+                useShards = true;
+            } else if (option.equals("-normcache")) {
+                i++;
+                if (i >= args.length) {
+                    printUsage();
+                    return;
+                }
+                NormalizationCache.setShared(
+                        new NormalizationCache(Integer.parseInt(args[i])));
+            } else if (option.equals("-singlepass")) {
+                singlePass = true;
+            } else if (option.equals("-fetchmode")) {
+                i++;
+                if (i >= args.length) {
+                    printUsage();
+                    return;
+                }
+                if (args[i].equals("all")) {
+                    fetchMode = FilterController.FETCHMODE_ALL;
+                } else if (args[i].equals("qrels")) {
+                    fetchMode = FilterController.FETCHMODE_QRELS;
+                } else {
+                    printUsage();
+                    return;
+                }
+            } else if (option.equals("-threads")) {
+                i++;
+                if (i >= args.length) {
+                    printUsage();
+                    return;
+                }
+                numThreads = Integer.parseInt(args[i]);
+                if (numThreads <= 0) {
+                    numThreads = Runtime.getRuntime().availableProcessors();
+                }
+            } else if (option.equals("-metrics")) {
+                i++;
+                if (i >= args.length) {
+                    printUsage();
+                    return;
+                }
+                metricsFile = args[i];
+            } else if (option.equals("-metricsinterval")) {
+                i++;
+                if (i >= args.length) {
+                    printUsage();
+                    return;
+                }
+                metricsInterval = Long.parseLong(args[i]);
+            } else if (option.equals("-evaluate")) {
+                evaluate = true;
+            } else if (option.equals("-fbeta")) {
+                i++;
+                if (i >= args.length) {
+                    printUsage();
+                    return;
+                }
+                fBeta = Double.parseDouble(args[i]);
+            } else if (option.equals("-checkpoint")) {
+                i++;
+                if (i >= args.length) {
+                    printUsage();
+                    return;
+                }
+                checkpointInterval = Double.parseDouble(args[i]);
+            } else if (option.equals("-resume")) {
+                resume = true;
+            } else if (option.equals("-prefetch")) {
+                i++;
+                if (i >= args.length) {
+                    printUsage();
+                    return;
+                }
+                prefetchBatchSize = Integer.parseInt(args[i]);
+            } else if (option.equals("-prefetchdepth")) {
+                i++;
+                if (i >= args.length) {
+                    printUsage();
+                    return;
+                }
+                prefetchDepth = Integer.parseInt(args[i]);
             }
         }
         args = Arrays.copyOfRange(args, i, args.length);
@@ -64,10 +181,25 @@ public class Main {
             if (args[0].equals("createdb")) {
                 if (args.length < 2) {
                     printUsage();
+                } else if (args.length < 3) {
+                    createdb(args[1], 50000);
+                } else {
+                    createdb(args[1], Integer.parseInt(args[2]));
+                }
+
+            } else if (args[0].equals("migratedb")) {
+                migratedb();
+
+            } else if (args[0].equals("createsegments")) {
+                if (args.length < 2) {
+                    createsegments(1000000);
                 } else {
-                    createdb(args[1]);
+                    createsegments(Integer.parseInt(args[1]));
                 }
 
+            } else if (args[0].equals("analyzesegments")) {
+                analyzesegments();
+
             } else if (args[0].equals("run")) {
                 if (args.length < 4) {
                     printUsage();
@@ -75,6 +207,29 @@ public class Main {
                     run(args[1], args[2], args[3]);
                 }
 
+            } else if (args[0].equals("run-stream")) {
+                if (args.length < 4) {
+                    printUsage();
+                } else {
+                    runStream(args[1], args[2], args[3], Arrays.asList(
+                                Arrays.copyOfRange(args, 4, args.length)));
+                }
+
+            } else if (args[0].equals("sweep")) {
+                if (args.length < 3) {
+                    printUsage();
+                } else {
+                    sweep(args[1], args[2], Arrays.asList(
+                                Arrays.copyOfRange(args, 3, args.length)));
+                }
+
+            } else if (args[0].equals("evaluate")) {
+                if (args.length < 2) {
+                    printUsage();
+                } else {
+                    evaluate(args[1]);
+                }
+
             } else if (args[0].equals("stepfrom")) {
                 if (args.length < 2) {
                     printUsage();
@@ -125,15 +280,97 @@ public class Main {
      * Print out the help text.
      */
     public static void printUsage() {
-        System.err.println("\nUsage: tweet-filter [-test] [-log <logfile>] <command> [arguments]");
+        System.err.println("\nUsage: tweet-filter [-test] [-log <logfile>] [-segments] [-shards]\n"
+                + "    [-singlepass] [-fetchmode <all|qrels>] [-qrels <file>]\n"
+                + "    [-threads <n>] [-normcache <size>] [-metrics <file>]"
+                + " [-metricsinterval <seconds>]\n"
+                + "    [-evaluate] [-fbeta <beta>] [-checkpoint <seconds>]"
+                + " [-resume]\n"
+                + "    [-prefetch <batch-size>] [-prefetchdepth <batches>]"
+                + " <command> [arguments]");
         System.err.println("  -test: use the test topics (otherwise, training topics will be used");
         System.err.println("  -log <logfile>: log filter messages to the given file");
+        System.err.println("  -segments: read tweets from ./data/segments instead of"
+                + " ./data/tweets.sqlite");
+        System.err.println("  -shards: read tweets from, and have createdb import"
+                + " into, the one-day shards\n"
+                + "    in ./data/shards instead of ./data/tweets.sqlite");
+        System.err.println("  -singlepass: run all topics in one pass through the database");
+        System.err.println("  -fetchmode <all|qrels>: have run give each topic all"
+                + " tweets in its range (default)\n"
+                + "    or only its judged tweets, fetched in batches"
+                + " (not with -singlepass)");
+        System.err.println("  -qrels <file>: read the qrels from <file>, in the text"
+                + " form or the binary form\n"
+                + "    written by writeqrels, instead of the training/test"
+                + " qrels");
+        System.err.println("  -normcache <size>: cache up to <size> normalized terms"
+                + " (default " + NormalizationCache.DEFAULT_SIZE + ", 0 = no cache)");
+        System.err.println("  -threads <n>: run <n> topics in parallel, run sweep on <n>"
+                + " threads, or use <n> threads\n"
+                + "    to decode JSON in createdb (0 = one per CPU)");
+        System.err.println("  -metrics <file>: write throughput, latency and memory"
+                + " metrics of run and run-stream\n"
+                + "    to <file>, as CSV if it ends in .csv and JSON otherwise");
+        System.err.println("  -metricsinterval <seconds>: rewrite the metrics file"
+                + " at this interval during the run\n"
+                + "    (default 10, 0 = only at the end)");
+        System.err.println("  -evaluate: print the precision, recall, F-beta and"
+                + " T11SU of each topic\n"
+                + "    at the end of run and run-stream");
+        System.err.println("  -fbeta <beta>: beta of F-beta in evaluations"
+                + " (default " + Evaluation.DEFAULT_BETA + ")");
+        System.err.println("  -checkpoint <seconds>: have run save its progress to"
+                + " <output-file>.checkpoint\n"
+                + "    at the end of each topic and at this interval"
+                + " (0 = only at the end of each topic)");
+        System.err.println("  -resume: have run continue from <output-file>.checkpoint,"
+                + " if it exists, saving\n"
+                + "    checkpoints every " + DEFAULT_CHECKPOINT_INTERVAL
+                + " seconds unless -checkpoint is given\n"
+                + "    (not with -singlepass or -threads)");
+        System.err.println("  -prefetch <batch-size>: read ahead of the filters"
+                + " in ./data/tweets.sqlite on a\n"
+                + "    background thread, <batch-size> tweets at a time"
+                + "\n    (suggested "
+                + PrefetchingTweetStore.DEFAULT_BATCH_SIZE
+                + ", default 0 = no read-ahead). This needs a second"
+                + " CPU to help,\n"
+                + "    adds a thread and an SQLite connection per scan"
+                + " (per topic with -threads),\n"
+                + "    and allocates a tweet per row instead of reusing"
+                + " one");
+        System.err.println("  -prefetchdepth <batches>: number of batches read"
+                + " ahead (default "
+                + PrefetchingTweetStore.DEFAULT_QUEUE_DEPTH + ")");
         System.err.println();
         System.err.println("Commands:\n");
 
-        System.err.println("createdb <input-list-file>\n"
+        System.err.println("createdb <input-list-file> [<transaction-size>]\n"
                 + "  Import the .json.gz files listed in <input-list-file>"
-                + " into ./data/tweets.sqlite\n");
+                + " into ./data/tweets.sqlite,\n"
+                + "  committing every <transaction-size> tweets"
+                + " (default 50000), and update the tweet ID index\n"
+                + "  ./data/tweets.sqlite.ids; with -shards, import into the"
+                + " shards in ./data/shards\n"
+                + "  on a thread per shard\n");
+
+        System.err.println("migratedb\n"
+                + "  Convert ./data/tweets.sqlite, or with -shards each shard"
+                + " in ./data/shards, in place\n"
+                + "  to the current schema, with tweets stored in ID order"
+                + " (needs free disk space\n"
+                + "  of about twice the size of the database)\n");
+
+        System.err.println("createsegments [<segment-size>]\n"
+                + "  Copy ./data/tweets.sqlite into memory-mapped segments in"
+                + " ./data/segments,\n"
+                + "  with <segment-size> tweets per segment (default 1000000)\n");
+
+        System.err.println("analyzesegments\n"
+                + "  Store the tokenized, stemmed text of each tweet in"
+                + " ./data/segments as term IDs,\n"
+                + "  for use by the query and feedback filters\n");
 
         System.err.println("run <filter> <run-tag> <output-file>\n"
                 + "  Run the given filter with the training/test topics"
@@ -145,8 +382,35 @@ public class Main {
                 + "    query: filter using query-based scoring only (no feedback)\n"
                 + "    feedback: adds feedback to 'query' filter using Rocchio algorithm\n"
                 + "    bayes: naive Bayes filter\n"
+                + "    bayes-weka: the same naive Bayes filter, using Weka\n"
                 );
 
+        System.err.println("run-stream <filter> <run-tag> <output-file>"
+                + " [<json-file> ...]\n"
+                + "  Run the given filter on tweets read as they arrive from"
+                + " the given .json or .json.gz files,\n"
+                + "  or from standard input, without the database."
+                + " Tweets must be in ID order.\n"
+                + "  Results are written to <output-file> (- for standard"
+                + " output) as each tweet is decided.\n");
+
+        System.err.println("sweep <run-tag> <output-dir> [<parameter>=<values> ...]\n"
+                + "  Run the feedback filter with every combination of the"
+                + " given parameter values in one pass\n"
+                + "  through the database, on -threads threads (default one"
+                + " per CPU). Writes one output file\n"
+                + "  per combination and a summary.txt to <output-dir>.\n"
+                + "  Parameters: alpha, beta, gamma, threshold"
+                + " (defaults 1, 0.75, 0.15, 0.5)\n"
+                + "  Values: a comma-separated list of numbers and"
+                + " <first>:<last>:<step> ranges,\n"
+                + "    e.g. beta=0.5:1:0.25 threshold=0.4,0.5\n");
+
+        System.err.println("evaluate <run-file>\n"
+                + "  Print the precision, recall, F-beta and T11SU of each"
+                + " training/test topic in <run-file>,\n"
+                + "  and their means\n");
+
         System.err.println("showtweet <tweet-id>\n"
                 + "  Show the tweet with the given ID\n");
 
@@ -162,19 +426,23 @@ public class Main {
 
         System.err.println("writeqrels <filename>\n"
                 + "  Write the training/test qrels to the given file"
-                + " (mostly for testing that they were read correctly)\n");
+                + " (mostly for testing that they were read correctly),\n"
+                + "  in the binary form if <filename> ends in .bin\n");
 
         System.err.println("pruneqrels <infile> <outfile>\n"
                 + "  Read qrels from <infile>, remove tweets not in DB,"
-                + " write to <outfile>\n");
+                + " write to <outfile>\n"
+                + "  (the tweet ID index ./data/tweets.sqlite.ids is built"
+                + " first if needed)\n");
     }
 
     /**
      * Command: Create the tweet database and populate it from the listed files.
      *
      * @param inputListFile Filename containing names of .json.gz files
+     * @param transactionSize Number of tweets to insert per transaction
      */
-    public static void createdb(String inputListFile) {
+    public static void createdb(String inputListFile, int transactionSize) {
         ArrayList<String> filenameList = new ArrayList<>();
         try (
                 BufferedReader reader = new BufferedReader(
@@ -192,9 +460,93 @@ public class Main {
         String[] filenames = new String[0];
         filenames = filenameList.toArray(filenames);
 
+        int importThreads = (numThreads > 0)
+            ? numThreads : Runtime.getRuntime().availableProcessors();
+        if (useShards) {
+            ShardedTweetStore shards = new ShardedTweetStore(shardsDir);
+            shards.importJsonFiles(filenames, importThreads, transactionSize);
+            db = shards;
+            return;
+        }
+        TweetDatabase database = new TweetDatabase(dbfile);
+        database.createTable();
+        database.importJsonFiles(filenames, importThreads, transactionSize);
+        db = database;
+    }
+
+    /**
+     * Command: Convert the tweet database, or each shard, to the current
+     * schema version.
+     */
+    public static void migratedb() {
+        if (useSegments) {
+            System.err.println("Error: segments have no schema to migrate");
+            return;
+        }
+        if (!useShards && !dbfile.exists()) {
+            System.err.println("Error: " + dbfile + " does not exist");
+            return;
+        }
+        long start = System.nanoTime();
+        boolean migrated;
+        if (useShards) {
+            ShardedTweetStore shards = new ShardedTweetStore(shardsDir);
+            migrated = shards.migrate();
+            shards.close();
+        } else {
+            migrated = new TweetDatabase(dbfile).migrate();
+        }
+        if (migrated) {
+            System.out.printf("Migrated in %.1f s\n",
+                    (System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    /**
+     * Command: Copy the tweet database into memory-mapped segments.
+     *
+     * @param segmentSize Number of tweets per segment
+     */
+    public static void createsegments(int segmentSize) {
         db = new TweetDatabase(dbfile);
-        db.createTable();
-        db.importJsonFiles(filenames);
+        try {
+            long count = SegmentWriter.copy(db, segmentsDir, segmentSize);
+            System.out.println(count + " tweets written to " + segmentsDir);
+        } catch (IOException e) {
+            System.err.println("Error writing segments: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Command: Store the analyzed text of the tweets in the segments.
+     */
+    public static void analyzesegments() {
+        try {
+            long count = SegmentAnalyzer.analyze(segmentsDir);
+            System.out.println(count + " tweets analyzed");
+        } catch (IOException e) {
+            System.err.println("Error analyzing segments: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Open the tweet store selected by the command-line options.
+     *
+     * @return The SQLite database, read ahead if -prefetch was given,
+     * or the segment store if -segments was given, or the sharded store
+     * (which reads ahead itself) if -shards was given
+     */
+    private static TweetStore openStore() {
+        if (useSegments) {
+            return new SegmentStore(segmentsDir);
+        } else if (useShards) {
+            return new ShardedTweetStore(shardsDir);
+        } else if (prefetchBatchSize > 0) {
+            return new PrefetchingTweetStore(new TweetDatabase(dbfile),
+                    prefetchBatchSize, prefetchDepth);
+        } else {
+            return new TweetDatabase(dbfile);
+        }
     }
 
     /**
@@ -205,30 +557,274 @@ public class Main {
      * @param outputFile Name of output file
      */
     public static void run(String filterName, String runTag, String outputFile) {
-        Filter filter;
-        if (filterName.equals("baseline")) {
-            filter = new Filter();
-        } else if (filterName.equals("boolean-or")) {
-            filter = new BooleanOrFilter();
-        } else if (filterName.equals("bayes")) {
-            filter = new BayesFilter();
-        } else if (filterName.equals("query")) {
-            filter = new QueryFilter();
-        } else if (filterName.equals("feedback")) {
-            filter = new FeedbackFilter();
+        NamedFilterFactory filterFactory
+            = NamedFilterFactory.forName(filterName);
+        if (filterFactory == null) {
+            printUsage();
+            return;
+        }
+        if (singlePass && fetchMode != FilterController.FETCHMODE_ALL) {
+            System.err.println("Error: -singlepass reads every tweet;"
+                    + " it can't be used with -fetchmode qrels");
+            return;
+        }
+        if (singlePass) {
+            // All topics see each tweet in turn, so they can share one index
+            filterFactory.shareQueryIndex();
+        }
+        boolean checkpoint = (checkpointInterval >= 0 || resume);
+        if (checkpoint && (singlePass || numThreads > 1)) {
+            System.err.println("Error: checkpoints can only be saved by a run"
+                    + " of one topic at a time");
+            return;
+        }
+        db = openStore();
+        FilterController controller = new FilterController();
+        controller.setDatabase(db);
+        controller.setFilterFactory(filterFactory);
+        controller.setFetchMode(fetchMode);
+        if (checkpoint) {
+            controller.setCheckpoint(new File(outputFile + ".checkpoint"),
+                    (checkpointInterval >= 0)
+                    ? checkpointInterval : DEFAULT_CHECKPOINT_INTERVAL,
+                    resume);
+        }
+        controller.readTopics(controller.getClass().getResourceAsStream(
+                    topicsFile));
+        if (!readQrels(controller)) {
+            return;
+        }
+        RunMetrics metrics = startMetrics(controller);
+        Evaluation evaluation = startEvaluation(controller);
+        if (singlePass) {
+            controller.runSinglePass(runTag, outputFile, logFile);
+        } else if (numThreads > 1) {
+            controller.runParallel(runTag, outputFile, logFile, numThreads);
         } else {
+            controller.run(runTag, outputFile, logFile);
+        }
+        if (metrics != null) {
+            metrics.finish();
+        }
+        if (evaluation != null) {
+            evaluation.print(System.out);
+        }
+        System.out.println("Normalization cache: "
+                + NormalizationCache.getShared());
+    }
+
+    /**
+     * Start recording metrics for the controller's run, if -metrics was given.
+     *
+     * @param controller The controller that will do the run
+     * @return The metrics, to be finished after the run, or null
+     */
+    private static RunMetrics startMetrics(FilterController controller) {
+        if (metricsFile == null) {
+            return null;
+        }
+        RunMetrics metrics = new RunMetrics(metricsFile, metricsInterval);
+        controller.setMetrics(metrics);
+        metrics.start();
+        return metrics;
+    }
+
+    /**
+     * Have the controller evaluate its run, if -evaluate was given.
+     *
+     * @param controller The controller that will do the run
+     * @return The evaluation, to be printed after the run, or null
+     */
+    private static Evaluation startEvaluation(FilterController controller) {
+        if (!evaluate) {
+            return null;
+        }
+        Evaluation evaluation = new Evaluation(fBeta);
+        controller.setEvaluation(evaluation);
+        return evaluation;
+    }
+
+    /**
+     * Command: Run the given filter on all training/test topics, on a stream
+     * of tweets instead of the database.
+     *
+     * @param filterName Name of the filter to run (see program usage message)
+     * @param runTag String to include at end of each output line
+     * @param outputFile Name of output file, or "-" for standard output
+     * @param jsonFiles Files of newline-delimited JSON tweets, or an empty
+     * list to read standard input
+     */
+    public static void runStream(String filterName, String runTag,
+            String outputFile, List<String> jsonFiles) {
+        NamedFilterFactory filterFactory
+            = NamedFilterFactory.forName(filterName);
+        if (filterFactory == null) {
             printUsage();
             return;
         }
-        db = new TweetDatabase(dbfile);
+
+        // All topics see each tweet in turn, so they can share one index
+        filterFactory.shareQueryIndex();
+
+        FilterController controller = new FilterController();
+        controller.setFilterFactory(filterFactory);
+        controller.readTopics(controller.getClass().getResourceAsStream(
+                    topicsFile));
+        if (!readQrels(controller)) {
+            return;
+        }
+        RunMetrics metrics = startMetrics(controller);
+        Evaluation evaluation = startEvaluation(controller);
+        try (JsonTweetStream stream = new JsonTweetStream(jsonFiles)) {
+            controller.runStream(runTag, stream, outputFile, logFile);
+        }
+        if (metrics != null) {
+            metrics.finish();
+        }
+        PrintStream status = outputFile.equals("-") ? System.err : System.out;
+        if (evaluation != null) {
+            evaluation.print(status);
+        }
+        status.println("Normalization cache: "
+                + NormalizationCache.getShared());
+    }
+
+    /**
+     * Command: Run the feedback filter with every combination of the given
+     * parameter values on all training/test topics, in one pass.
+     *
+     * @param runTag String to include at end of each output line
+     * @param outputDir Directory to write the output files and summary to
+     * @param grid Arguments of the form parameter=values (see program usage
+     * message)
+     */
+    public static void sweep(String runTag, String outputDir,
+            List<String> grid) {
+        String[] parameters = {"alpha", "beta", "gamma", "threshold"};
+        List<List<BigDecimal>> values = new ArrayList<>();
+        values.add(Arrays.asList(BigDecimal.ONE));
+        values.add(Arrays.asList(new BigDecimal("0.75")));
+        values.add(Arrays.asList(new BigDecimal("0.15")));
+        values.add(Arrays.asList(new BigDecimal("0.5")));
+        for (String argument : grid) {
+            String[] parts = argument.split("=", 2);
+            int p = Arrays.asList(parameters).indexOf(parts[0]);
+            if (parts.length < 2 || p < 0) {
+                printUsage();
+                return;
+            }
+            try {
+                values.set(p, parseValues(parts[1]));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid parameter values: " + argument);
+                return;
+            }
+        }
+
+        // Name each combination after its values, such as
+        // alpha1-beta0.75-gamma0.15-threshold0.5
+        // Filters of the same topic share its term IDs
+        TopicTerms.Pool termsPool = new TopicTerms.Pool();
+        Map<String,FilterFactory> configurations = new LinkedHashMap<>();
+        for (BigDecimal alpha : values.get(0)) {
+            for (BigDecimal beta : values.get(1)) {
+                for (BigDecimal gamma : values.get(2)) {
+                    for (BigDecimal threshold : values.get(3)) {
+                        String name = parameters[0] + format(alpha)
+                            + "-" + parameters[1] + format(beta)
+                            + "-" + parameters[2] + format(gamma)
+                            + "-" + parameters[3] + format(threshold);
+                        configurations.put(name, feedbackFilterFactory(
+                                    alpha.doubleValue(), beta.doubleValue(),
+                                    gamma.doubleValue(),
+                                    threshold.doubleValue(), termsPool));
+                    }
+                }
+            }
+        }
+
+        db = openStore();
         FilterController controller = new FilterController();
         controller.setDatabase(db);
-        controller.setFilter(filter);
         controller.readTopics(controller.getClass().getResourceAsStream(
                     topicsFile));
-        controller.readQrels(controller.getClass().getResourceAsStream(
-                    qrelsFile));
-        controller.run(runTag, outputFile, logFile);
+        if (!readQrels(controller)) {
+            return;
+        }
+        controller.runSweep(runTag, configurations, new File(outputDir),
+                (numThreads > 0)
+                ? numThreads : Runtime.getRuntime().availableProcessors());
+        System.out.println("Normalization cache: "
+                + NormalizationCache.getShared());
+    }
+
+    /**
+     * Parse a list of parameter values for sweep.
+     *
+     * @param list Comma-separated numbers and first:last:step ranges
+     * @return The values
+     *
+     * @throws NumberFormatException if the list is not valid
+     */
+    private static List<BigDecimal> parseValues(String list) {
+        ArrayList<BigDecimal> result = new ArrayList<>();
+        for (String item : list.split(",")) {
+            String[] range = item.split(":");
+            if (range.length == 1) {
+                result.add(new BigDecimal(item));
+            } else if (range.length == 3) {
+                BigDecimal last = new BigDecimal(range[1]);
+                BigDecimal step = new BigDecimal(range[2]);
+                if (step.signum() <= 0) {
+                    throw new NumberFormatException("Step must be positive");
+                }
+                for (BigDecimal value = new BigDecimal(range[0]);
+                        value.compareTo(last) <= 0; value = value.add(step)) {
+                    result.add(value);
+                }
+            } else {
+                throw new NumberFormatException("Invalid range: " + item);
+            }
+        }
+        if (result.isEmpty()) {
+            throw new NumberFormatException("No values: " + list);
+        }
+        return result;
+    }
+
+    // A parameter value as it appears in a sweep configuration name
+    private static String format(BigDecimal value) {
+        return (value.signum() == 0)
+            ? "0" : value.stripTrailingZeros().toPlainString();
+    }
+
+    private static FilterFactory feedbackFilterFactory(final double alpha,
+            final double beta, final double gamma, final double threshold,
+            final TopicTerms.Pool termsPool) {
+        return new FilterFactory() {
+            public Filter newFilter() {
+                return new FeedbackFilter(alpha, beta, gamma, threshold,
+                        termsPool);
+            }
+        };
+    }
+
+    /**
+     * Command: Evaluate a run file against the training/test qrels.
+     *
+     * @param runFile Name of the run file
+     */
+    public static void evaluate(String runFile) {
+        FilterController controller = new FilterController();
+        controller.readTopics(controller.getClass().getResourceAsStream(
+                    topicsFile));
+        if (!readQrels(controller)) {
+            return;
+        }
+        Evaluation evaluation = new Evaluation(fBeta);
+        if (controller.evaluateRun(runFile, evaluation)) {
+            evaluation.print(System.out);
+        }
     }
 
     /**
@@ -238,7 +834,7 @@ public class Main {
      */
     public static void showtweet(String tweetIdString) {
         long tweetId = Long.parseLong(tweetIdString);
-        db = new TweetDatabase(dbfile);
+        db = openStore();
         Tweet tweet = db.fetchTweet(tweetId);
         if (tweet != null) {
             System.out.println(tweet.toString());
@@ -252,7 +848,7 @@ public class Main {
      */
     public static void stepfrom(String tweetIdString) {
         long tweetId = Long.parseLong(tweetIdString);
-        db = new TweetDatabase(dbfile);
+        db = openStore();
         db.startFromTweetId(tweetId);
         System.out.println("Press enter to retrieve each next tweet.");
         Scanner input = new Scanner(System.in);
@@ -281,13 +877,14 @@ public class Main {
      * Command: Output the list of relevant tweets.
      */
     public static void writeRelevantTweets(String filename) {
-        db = new TweetDatabase(dbfile);
+        db = openStore();
         FilterController controller = new FilterController();
         controller.setDatabase(db);
         controller.readTopics(controller.getClass().getResourceAsStream(
                     topicsFile));
-        controller.readQrels(controller.getClass().getResourceAsStream(
-                    qrelsFile));
+        if (!readQrels(controller)) {
+            return;
+        }
         controller.writeRelevantTweets(filename);
     }
 
@@ -298,10 +895,26 @@ public class Main {
      */
     public static void writeqrels(String filename) {
         FilterController controller = new FilterController();
-        InputStream inputStream = controller.getClass()
-            .getResourceAsStream(qrelsFile);
-        controller.readQrels(inputStream);
-        controller.writeQrels(filename);
+        if (readQrels(controller)) {
+            controller.writeQrels(filename);
+        }
+    }
+
+    // Read the qrels given by -qrels, or the training/test qrels
+    private static boolean readQrels(FilterController controller) {
+        InputStream inputStream;
+        if (qrelsPath == null) {
+            inputStream = controller.getClass().getResourceAsStream(qrelsFile);
+        } else {
+            try {
+                inputStream = new FileInputStream(qrelsPath);
+            } catch (FileNotFoundException e) {
+                System.err.println("Error reading qrels file: "
+                        + e.getMessage());
+                return false;
+            }
+        }
+        return controller.readQrels(inputStream);
     }
 
     /**
@@ -316,7 +929,7 @@ public class Main {
                     new FileReader(infile));
                 PrintWriter writer = new PrintWriter(outfile)) {
             
-            db = new TweetDatabase(dbfile);
+            db = openStore();
 
             String line;
             while ((line = reader.readLine()) != null) {
@@ -0,0 +1,398 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Filters tweets with a multinomial naive Bayes text classifier, kept as
+ * per-class term counts in primitive arrays.
+ *
+ * This makes the same decisions as BayesFilter, which uses Weka's
+ * NaiveBayesMultinomialText with its default settings and lowercased tokens:
+ * tweets are tokenized with WordTokenizer's default delimiters, each distinct
+ * token of an example adds 1 to its count for the example's class (counts
+ * start at 1, for Laplace smoothing), and example weights only affect the
+ * class priors. Unlike BayesFilter, memory grows only with the vocabulary of
+ * the examples, not with the number of tweets seen.
+ *
+ * decide() makes one pass over the text, lowercasing and hashing each token
+ * as it goes and looking it up in an open-addressing table of the
+ * vocabulary, then adds up the logs of the counts, which are kept up to date
+ * as examples are added. Deciding on a tweet allocates nothing.
+ *
+ * @author Ben Saylor
+ */
+public class MultinomialBayesFilter extends Filter {
+
+    private static final int NONRELEVANT = 0;
+    private static final int RELEVANT = 1;
+    private static final int NUM_CLASSES = 2;
+
+    // Whether lowercasing an ASCII character with String.toLowerCase() in the
+    // default locale only maps A-Z to a-z
+    private static final boolean ASCII_LOWERCASE
+        = !Arrays.asList("tr", "az").contains(
+                Locale.getDefault().getLanguage());
+
+    // Log probabilities further apart than this decide the class without
+    // computing the normalized distribution
+    private static final double CLEAR_MARGIN = 1e-6;
+
+    // Weight of training instances
+    private double queryWeight = 4.0;
+    private double[] relevanceWeights = {2.0, 1.0, 2.0};
+
+    // The vocabulary: term characters, stored one after another, and for each
+    // term ID its offset, length and hash. The table holds term ID + 1 at the
+    // slot for the term's hash, or 0 for an empty slot.
+    private char[] termChars;
+    private int[] termOffsets;
+    private int[] termLengths;
+    private int[] termHashes;
+    private int numTerms;
+    private int[] table;
+
+    // The current token, lowercased
+    private char[] token = new char[64];
+
+    // By class: the total example weight (starting at 1), the total of the
+    // term counts, their logs, and the count and log count of each term
+    private double[] classWeights = new double[NUM_CLASSES];
+    private double[] classTermTotals = new double[NUM_CLASSES];
+    private double[] logClassWeights = new double[NUM_CLASSES];
+    private double[] logClassTermTotals = new double[NUM_CLASSES];
+    private int[][] termCounts = new int[NUM_CLASSES][];
+    private double[][] logTermCounts = new double[NUM_CLASSES][];
+
+    // The distinct known terms of the last text analyzed, in order of first
+    // occurrence, and the text each term was last seen in
+    private int[] textTerms = new int[32];
+    private int numTextTerms;
+    private int[] lastSeen;
+    private int textNumber;
+
+    // Number of relevant and nonrelevant examples provided to the filter via
+    // the feedback() method
+    private int numRelevantExamples;
+    private int numNonRelevantExamples;
+
+    @Override
+    public void setTopic(Topic topic) {
+        termChars = new char[1024];
+        termOffsets = new int[128];
+        termLengths = new int[128];
+        termHashes = new int[128];
+        numTerms = 0;
+        table = new int[256];
+        for (int c = 0; c < NUM_CLASSES; c++) {
+            classWeights[c] = 1.0;
+            classTermTotals[c] = 0.0;
+            logClassWeights[c] = 0.0;
+            termCounts[c] = new int[128];
+            logTermCounts[c] = new double[128];
+        }
+        lastSeen = new int[128];
+        textNumber = 0;
+
+        numRelevantExamples = 0;
+        numNonRelevantExamples = 0;
+
+        // Initialize the classifier with the query
+        learn(topic.title, RELEVANT, queryWeight);
+    }
+
+    @Override
+    public void decide(Tweet tweet, FilterDecision decision) {
+        if (numRelevantExamples == 0 || numNonRelevantExamples == 0) {
+            decision.set(tweet.id, 1.0, true);
+            return;
+        }
+
+        // The classifier has been given at least one positive and one
+        // negative example, so let it decide
+        analyze(tweet.text, false);
+        boolean retrieve = isRelevantMoreLikely(
+                logProbability(NONRELEVANT), logProbability(RELEVANT));
+        decision.set(tweet.id, 2.0, retrieve);
+
+        // score = 1.0 means it's being retrieved without classification
+        // score = 2.0 means it went through the classifier
+    }
+
+    @Override
+    public void feedback(Tweet tweet, int relevance) {
+        int c = (relevance >= Constants.MINREL) ? RELEVANT : NONRELEVANT;
+        learn(tweet.text, c, relevanceWeights[Math.max(0, relevance)]);
+        if (c == RELEVANT) {
+            numRelevantExamples++;
+        } else {
+            numNonRelevantExamples++;
+        }
+    }
+
+    @Override
+    public Serializable getState() {
+        State state = new State();
+        state.termChars = termChars;
+        state.termOffsets = termOffsets;
+        state.termLengths = termLengths;
+        state.termHashes = termHashes;
+        state.numTerms = numTerms;
+        state.table = table;
+        state.classWeights = classWeights;
+        state.classTermTotals = classTermTotals;
+        state.logClassWeights = logClassWeights;
+        state.logClassTermTotals = logClassTermTotals;
+        state.termCounts = termCounts;
+        state.logTermCounts = logTermCounts;
+        state.lastSeen = lastSeen;
+        state.textNumber = textNumber;
+        state.numRelevantExamples = numRelevantExamples;
+        state.numNonRelevantExamples = numNonRelevantExamples;
+        return state;
+    }
+
+    @Override
+    public void setState(Serializable snapshot) {
+        State state = (State) snapshot;
+        termChars = state.termChars;
+        termOffsets = state.termOffsets;
+        termLengths = state.termLengths;
+        termHashes = state.termHashes;
+        numTerms = state.numTerms;
+        table = state.table;
+        classWeights = state.classWeights;
+        classTermTotals = state.classTermTotals;
+        logClassWeights = state.logClassWeights;
+        logClassTermTotals = state.logClassTermTotals;
+        termCounts = state.termCounts;
+        logTermCounts = state.logTermCounts;
+        lastSeen = state.lastSeen;
+        textNumber = state.textNumber;
+        numRelevantExamples = state.numRelevantExamples;
+        numNonRelevantExamples = state.numNonRelevantExamples;
+    }
+
+    // The unnormalized log probability of the analyzed text for a class, in
+    // the same order of operations as Weka
+    private double logProbability(int c) {
+        double logProb = logClassWeights[c];
+        double[] logCounts = logTermCounts[c];
+        for (int i = 0; i < numTextTerms; i++) {
+            logProb += logCounts[textTerms[i]];
+        }
+        if (classTermTotals[c] > 0) {
+            logProb -= numTextTerms * logClassTermTotals[c];
+        }
+        return logProb;
+    }
+
+    // Whether the relevant class has the higher probability. Near-ties are
+    // broken as Weka's classifyInstance() breaks them, by comparing the
+    // normalized distribution.
+    private static boolean isRelevantMoreLikely(double logNonrelevant,
+            double logRelevant) {
+        if (logRelevant - logNonrelevant > CLEAR_MARGIN) {
+            return true;
+        } else if (logNonrelevant - logRelevant > CLEAR_MARGIN) {
+            return false;
+        }
+        double max = Math.max(logNonrelevant, logRelevant);
+        double nonrelevant = Math.exp(logNonrelevant - max);
+        double relevant = Math.exp(logRelevant - max);
+        double sum = nonrelevant + relevant;
+        return relevant / sum > nonrelevant / sum;
+    }
+
+    // Add an example of the given class to the counts
+    private void learn(String text, int c, double weight) {
+        classWeights[c] += weight;
+        analyze(text, true);
+        for (int i = 0; i < numTextTerms; i++) {
+            addCount(c, textTerms[i]);
+            classTermTotals[c] += 1.0;
+        }
+        for (int k = 0; k < NUM_CLASSES; k++) {
+            logClassWeights[k] = Math.log(classWeights[k]);
+            logClassTermTotals[k] = Math.log(classTermTotals[k]);
+        }
+    }
+
+    // Add 1 to the count of a term for a class
+    private void addCount(int c, int termId) {
+        termCounts[c][termId]++;
+        logTermCounts[c][termId] = Math.log(termCounts[c][termId]);
+    }
+
+    // Find the distinct terms of the text that are in the vocabulary, adding
+    // them to it first if add is true. Tokens are those of WordTokenizer,
+    // lowercased as by String.toLowerCase().
+    private void analyze(String text, boolean add) {
+        textNumber++;
+        numTextTerms = 0;
+        int length = text.length();
+        if (token.length < length) {
+            token = new char[Math.max(length, 2 * token.length)];
+        }
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (TweetTokenizer.isDelimiter(c)) {
+                i++;
+                continue;
+            }
+
+            // Copy the token, lowercasing and hashing it
+            int tokenStart = i;
+            int tokenLength = 0;
+            int hash = 0;
+            boolean ascii = true;
+            do {
+                if (c >= 128) {
+                    ascii = false;
+                } else if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                }
+                token[tokenLength++] = c;
+                hash = 31 * hash + c;
+                if (++i == length) {
+                    break;
+                }
+                c = text.charAt(i);
+            } while (!TweetTokenizer.isDelimiter(c));
+
+            if (!ascii || !ASCII_LOWERCASE) {
+                String lowercase = text.substring(tokenStart, i).toLowerCase();
+                tokenLength = lowercase.length();
+                if (token.length < tokenLength) {
+                    token = new char[tokenLength];
+                }
+                lowercase.getChars(0, tokenLength, token, 0);
+                hash = lowercase.hashCode();
+            }
+            addTextTerm(hash, tokenLength, add);
+        }
+    }
+
+    // Look up the current token and add it to the text's terms if it is new
+    // to the text
+    private void addTextTerm(int hash, int length, boolean add) {
+        int termId = findTerm(hash, length);
+        if (termId < 0) {
+            if (!add) {
+                return;
+            }
+            termId = addTerm(hash, length);
+        }
+        if (lastSeen[termId] != textNumber) {
+            lastSeen[termId] = textNumber;
+            if (numTextTerms == textTerms.length) {
+                textTerms = Arrays.copyOf(textTerms, 2 * numTextTerms);
+            }
+            textTerms[numTextTerms++] = termId;
+        }
+    }
+
+    // The ID of the current token, or -1 if it is not in the vocabulary
+    private int findTerm(int hash, int length) {
+        int mask = table.length - 1;
+        for (int slot = mix(hash) & mask; table[slot] != 0;
+                slot = (slot + 1) & mask) {
+            int termId = table[slot] - 1;
+            if (termHashes[termId] == hash && termLengths[termId] == length
+                    && tokenEquals(termOffsets[termId], length)) {
+                return termId;
+            }
+        }
+        return -1;
+    }
+
+    private boolean tokenEquals(int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (termChars[offset + i] != token[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Add the current token to the vocabulary, giving it a count of 1 in
+    // every class
+    private int addTerm(int hash, int length) {
+        int termId = numTerms++;
+        if (termId == termOffsets.length) {
+            int size = 2 * termId;
+            termOffsets = Arrays.copyOf(termOffsets, size);
+            termLengths = Arrays.copyOf(termLengths, size);
+            termHashes = Arrays.copyOf(termHashes, size);
+            lastSeen = Arrays.copyOf(lastSeen, size);
+            for (int c = 0; c < NUM_CLASSES; c++) {
+                termCounts[c] = Arrays.copyOf(termCounts[c], size);
+                logTermCounts[c] = Arrays.copyOf(logTermCounts[c], size);
+            }
+        }
+        int offset = (termId == 0)
+            ? 0 : termOffsets[termId - 1] + termLengths[termId - 1];
+        if (offset + length > termChars.length) {
+            termChars = Arrays.copyOf(termChars,
+                    Math.max(offset + length, 2 * termChars.length));
+        }
+        System.arraycopy(token, 0, termChars, offset, length);
+        termOffsets[termId] = offset;
+        termLengths[termId] = length;
+        termHashes[termId] = hash;
+
+        // Keep the table at most half full
+        if (2 * numTerms > table.length) {
+            table = new int[2 * table.length];
+            for (int id = 0; id < termId; id++) {
+                insert(id);
+            }
+        }
+        insert(termId);
+
+        for (int c = 0; c < NUM_CLASSES; c++) {
+            addCount(c, termId);
+            classTermTotals[c] += 1.0;
+        }
+        return termId;
+    }
+
+    private void insert(int termId) {
+        int mask = table.length - 1;
+        int slot = mix(termHashes[termId]) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = termId + 1;
+    }
+
+    // Spread the bits of a String-style hash over the table index
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    // Snapshot of the model: the fields of the same names
+    private static class State implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        char[] termChars;
+        int[] termOffsets;
+        int[] termLengths;
+        int[] termHashes;
+        int numTerms;
+        int[] table;
+        double[] classWeights;
+        double[] classTermTotals;
+        double[] logClassWeights;
+        double[] logClassTermTotals;
+        int[][] termCounts;
+        double[][] logTermCounts;
+        int[] lastSeen;
+        int textNumber;
+        int numRelevantExamples;
+        int numNonRelevantExamples;
+    }
+}
@@ -0,0 +1,65 @@
+package com.bensaylor.tweetfilter;
+
+/**
+ * FilterFactory for the filters selectable by name on the command line.
+ *
+ * @author Ben Saylor
+ */
+public class NamedFilterFactory implements FilterFactory {
+
+    private String filterName;
+
+    // Indexes shared by the filters created, or null for a private index each
+    private QueryIndex termIndex;
+    private QueryIndex tokenIndex;
+
+    private NamedFilterFactory(String filterName) {
+        this.filterName = filterName;
+    }
+
+    /**
+     * Get a factory for the filter with the given name.
+     *
+     * @param filterName Name of the filter (see program usage message)
+     * @return The factory, or null if there is no filter with that name
+     */
+    public static NamedFilterFactory forName(String filterName) {
+        NamedFilterFactory factory = new NamedFilterFactory(filterName);
+        if (factory.newFilter() == null) {
+            return null;
+        }
+        return factory;
+    }
+
+    /**
+     * Have the query-based filters created from now on share one QueryIndex,
+     * so that each tweet is matched against all of their topics at once.
+     * The filters must then all be driven from one thread, one tweet at a
+     * time, as in FilterController.runSinglePass().
+     */
+    public void shareQueryIndex() {
+        termIndex = new QueryIndex(true);
+        tokenIndex = new QueryIndex(false);
+    }
+
+    @Override
+    public Filter newFilter() {
+        if (filterName.equals("baseline")) {
+            return new Filter();
+        } else if (filterName.equals("boolean-or")) {
+            return (tokenIndex == null)
+                ? new BooleanOrFilter() : new BooleanOrFilter(tokenIndex);
+        } else if (filterName.equals("bayes")) {
+            return new MultinomialBayesFilter();
+        } else if (filterName.equals("bayes-weka")) {
+            return new BayesFilter();
+        } else if (filterName.equals("query")) {
+            return (termIndex == null)
+                ? new QueryFilter() : new QueryFilter(termIndex);
+        } else if (filterName.equals("feedback")) {
+            return new FeedbackFilter();
+        } else {
+            return null;
+        }
+    }
+}
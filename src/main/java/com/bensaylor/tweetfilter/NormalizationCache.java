@@ -0,0 +1,234 @@
+package com.bensaylor.tweetfilter;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache from raw tokens to normalized (lowercased and stemmed) terms,
+ * shared by all TextAnalyzers.
+ *
+ * Tweet vocabulary is highly skewed, so a fairly small cache avoids most
+ * calls to the stemmer. The cache is split into stripes by token hash, each
+ * a least-recently-used map with its own lock, so threads normalizing
+ * different tokens rarely wait for each other.
+ *
+ * Tokens can be looked up by a Token, a reusable view of a range of chars,
+ * so that looking up a token found by TweetTokenizer allocates nothing.
+ *
+ * @author Ben Saylor
+ */
+public class NormalizationCache {
+
+    /** Default maximum number of entries in the shared cache */
+    public static final int DEFAULT_SIZE = 100000;
+
+    private static final int NUM_STRIPES = 16;
+
+    private static volatile NormalizationCache shared
+        = new NormalizationCache(DEFAULT_SIZE);
+
+    private Stripe[] stripes;
+
+    /**
+     * @param maxSize Maximum number of entries, or 0 to disable caching
+     */
+    public NormalizationCache(int maxSize) {
+        stripes = new Stripe[NUM_STRIPES];
+        int stripeSize = (maxSize + NUM_STRIPES - 1) / NUM_STRIPES;
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            stripes[i] = new Stripe(stripeSize);
+        }
+    }
+
+    /**
+     * @return The cache used by TextAnalyzers by default
+     */
+    public static NormalizationCache getShared() {
+        return shared;
+    }
+
+    /**
+     * Replace the shared cache. TextAnalyzers created before this call keep
+     * using the previous one.
+     *
+     * @param cache The new shared cache
+     */
+    public static void setShared(NormalizationCache cache) {
+        shared = cache;
+    }
+
+    /**
+     * @param token A raw token
+     * @return The cached normalized term, or null if it is not cached
+     */
+    public String get(String token) {
+        return get(new Token().set(token.toCharArray(), 0, token.length()));
+    }
+
+    /**
+     * @param token A raw token
+     * @param term The normalized term for the token
+     */
+    public void put(String token, String term) {
+        put(new Token().set(token.toCharArray(), 0, token.length()), term);
+    }
+
+    /**
+     * @param token A raw token
+     * @return The cached normalized term, or null if it is not cached
+     */
+    public String get(Token token) {
+        return stripeFor(token).get(token);
+    }
+
+    /**
+     * @param token A raw token, which is copied if it is added to the cache
+     * @param term The normalized term for the token
+     */
+    public void put(Token token, String term) {
+        stripeFor(token).put(token.copy(), term);
+    }
+
+    /**
+     * @return The number of calls to get() that found a cached term
+     */
+    public long getHits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return The total number of calls to get()
+     */
+    public long getLookups() {
+        long lookups = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                lookups += stripe.lookups;
+            }
+        }
+        return lookups;
+    }
+
+    /**
+     * @return The fraction of calls to get() that found a cached term
+     */
+    public double getHitRate() {
+        long lookups = getLookups();
+        return (lookups == 0) ? 0.0 : ((double) getHits()) / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits / %d lookups (%.1f%%)",
+                getHits(), getLookups(), 100 * getHitRate());
+    }
+
+    private Stripe stripeFor(Token token) {
+        // Spread the hash bits so similar tokens land in different stripes
+        int h = token.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % NUM_STRIPES];
+    }
+
+    // One lock-protected LRU map
+    private static class Stripe {
+        private LinkedHashMap<Token,String> map;
+        private long hits = 0;
+        private long lookups = 0;
+
+        Stripe(final int maxSize) {
+            map = new LinkedHashMap<Token,String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Token,String> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        synchronized String get(Token token) {
+            lookups++;
+            String term = map.get(token);
+            if (term != null) {
+                hits++;
+            }
+            return term;
+        }
+
+        synchronized void put(Token token, String term) {
+            map.put(token, term);
+        }
+    }
+
+    /**
+     * A token as a range of chars in a buffer. A Token used for lookups can
+     * be reused for each token; the cache keeps its own copies.
+     */
+    public static final class Token {
+        private char[] chars;
+        private int offset;
+        private int length;
+        private int hash;
+
+        /**
+         * Point this Token at a range of chars.
+         *
+         * @param chars The buffer holding the token
+         * @param offset Offset of the token's first char
+         * @param length Length of the token
+         * @return This Token
+         */
+        public Token set(char[] chars, int offset, int length) {
+            this.chars = chars;
+            this.offset = offset;
+            this.length = length;
+            // Same hash as String.hashCode()
+            int h = 0;
+            for (int i = offset; i < offset + length; i++) {
+                h = 31 * h + chars[i];
+            }
+            hash = h;
+            return this;
+        }
+
+        private Token copy() {
+            return new Token().set(
+                    Arrays.copyOfRange(chars, offset, offset + length),
+                    0, length);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Token)) {
+                return false;
+            }
+            Token other = (Token) o;
+            if (other.hash != hash || other.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (chars[offset + i] != other.chars[other.offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, offset, length);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.bensaylor.tweetfilter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A TweetStore whose scans are read ahead by a background thread, so that
+ * reading and decoding tweets overlaps with filtering them.
+ *
+ * Each scan is read by a thread of its own, through another instance of the
+ * wrapped store opened on that thread (see TweetStore.reopen()). The thread
+ * fills fixed-size batches of tweets into a bounded queue, and next() takes
+ * them from the queue. Starting another scan or closing the store stops the
+ * thread, even if the scan was not read to the end, such as when a topic
+ * ends at queryNewestTweet before a scan started with startFromTweetId().
+ * Fetches by ID go straight to the wrapped store, on the calling thread.
+ *
+ * The reading thread reads each row through a view (see
+ * TweetSource.next(Tweet)) and reads the view's other fields before handing
+ * it over. If every tweet of a batch was taken with next(Tweet), nothing
+ * can hold on to them once the batch is used up, so the batch and its
+ * tweets are handed back to the reading thread to be filled again. A scan
+ * read that way allocates no tweets once the first few batches have gone
+ * round. Tweets taken with next() are never reused.
+ *
+ * @author Ben Saylor
+ * @see ShardedTweetStore
+ */
+public class PrefetchingTweetStore implements TweetStore {
+
+    /** Default number of tweets passed from the reading thread at a time */
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /** Default number of batches the queue can hold */
+    public static final int DEFAULT_QUEUE_DEPTH = 16;
+
+    // Marks the end of a scan on the queue
+    private static final List<Tweet> END_OF_SCAN = new ArrayList<>();
+
+    private TweetStore store;
+    private int batchSize;
+    private int queueDepth;
+    private int fields = Tweet.ALL_FIELDS;
+
+    // The reading thread, and the instance of the store it reads with,
+    // which is only used on that thread
+    private ExecutorService executor = null;
+    private TweetStore reader = null;
+
+    // The current scan: its reading task and queue, and the position in the
+    // batch being consumed
+    private Future<?> task = null;
+    private BlockingQueue<List<Tweet>> queue = null;
+    private List<Tweet> batch = null;
+    private int position = 0;
+
+    // Whether every tweet of the current batch so far was taken as a view,
+    // and the used-up batches to be filled again by the reading thread
+    private boolean batchReusable = false;
+    private final BlockingQueue<List<Tweet>> freeBatches;
+
+    /**
+     * @param store The store to read from, which must have been opened on
+     * the thread that will use this instance
+     * @param batchSize Number of tweets passed from the reading thread at a
+     * time
+     * @param queueDepth Number of batches the queue can hold
+     */
+    public PrefetchingTweetStore(TweetStore store, int batchSize,
+            int queueDepth) {
+        this.store = store;
+        this.batchSize = Math.max(1, batchSize);
+        this.queueDepth = Math.max(1, queueDepth);
+        freeBatches = new ArrayBlockingQueue<>(this.queueDepth + 2);
+    }
+
+    @Override
+    public void startFromTweetId(long id) {
+        startRange(id, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void startRange(long firstId, long lastId) {
+        stopScan();
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "prefetch");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        // A stopped scan's task finishes before this one starts, since there
+        // is one thread
+        queue = new ArrayBlockingQueue<>(queueDepth);
+        batch = null;
+        position = 0;
+        task = executor.submit(new ScanReader(firstId, lastId, fields,
+                    queue));
+    }
+
+    @Override
+    public Tweet next() {
+        return next(false);
+    }
+
+    /**
+     * The view itself is not used, but the tweet returned is reused for a
+     * later one, like a view, if the rest of its batch is also taken with
+     * this method.
+     */
+    @Override
+    public Tweet next(Tweet view) {
+        return next(true);
+    }
+
+    // The next tweet, taken as a view or not
+    private Tweet next(boolean asView) {
+        if (queue == null) {
+            return null;
+        }
+        try {
+            while (batch == null || position == batch.size()) {
+                if (batch != null && batchReusable) {
+                    freeBatches.offer(batch);
+                }
+                batch = queue.take();
+                position = 0;
+                batchReusable = true;
+                if (batch == END_OF_SCAN) {
+                    // No more tweets
+                    task = null;
+                    queue = null;
+                    batch = null;
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Scan interrupted");
+            Thread.currentThread().interrupt();
+            stopScan();
+            return null;
+        }
+        if (!asView) {
+            batchReusable = false;
+        }
+        return batch.get(position++);
+    }
+
+    @Override
+    public Tweet fetchTweet(long id) {
+        return store.fetchTweet(id);
+    }
+
+    @Override
+    public Tweet[] fetchTweets(long[] ids, int offset, int count) {
+        return store.fetchTweets(ids, offset, count);
+    }
+
+    @Override
+    public boolean tweetExists(long id) {
+        return store.tweetExists(id);
+    }
+
+    /**
+     * The returned instance reads ahead in the same way, with its own
+     * thread.
+     */
+    @Override
+    public TweetStore reopen() {
+        PrefetchingTweetStore reopened = new PrefetchingTweetStore(
+                store.reopen(), batchSize, queueDepth);
+        reopened.fields = fields;
+        return reopened;
+    }
+
+    /**
+     * The reading thread's instance of the store is given the fields when
+     * the next scan starts.
+     */
+    @Override
+    public void setFields(int fields) {
+        stopScan();
+        this.fields = fields;
+        store.setFields(fields);
+    }
+
+    /**
+     * Stop the reading thread, closing its instance of the store on it, and
+     * close the wrapped store.
+     */
+    @Override
+    public void close() {
+        stopScan();
+        if (executor != null) {
+            executor.submit(new Runnable() {
+                public void run() {
+                    if (reader != null) {
+                        reader.close();
+                        reader = null;
+                    }
+                }
+            });
+            executor.shutdown();
+            executor = null;
+        }
+        store.close();
+    }
+
+    // Reads the tweets of a scan into its queue, on the reading thread
+    private class ScanReader implements Runnable {
+        final long firstId;
+        final long lastId;
+        final int scanFields;
+        final BlockingQueue<List<Tweet>> scanQueue;
+
+        ScanReader(long firstId, long lastId, int scanFields,
+                BlockingQueue<List<Tweet>> scanQueue) {
+            this.firstId = firstId;
+            this.lastId = lastId;
+            this.scanFields = scanFields;
+            this.scanQueue = scanQueue;
+        }
+
+        public void run() {
+            if (reader == null) {
+                reader = store.reopen();
+            }
+            try {
+                reader.setFields(scanFields);
+                reader.startRange(firstId, lastId);
+                List<Tweet> tweets = takeFreeBatch();
+                int size = 0;
+                while (true) {
+                    // Fill the tweets of a used-up batch, or new ones
+                    Tweet view = (size < tweets.size())
+                        ? tweets.get(size) : new Tweet();
+                    Tweet tweet = reader.next(view);
+                    if (tweet == null) {
+                        break;
+                    }
+                    // The fields can't be read from the row on the
+                    // consuming thread
+                    tweet.detach();
+                    if (size < tweets.size()) {
+                        tweets.set(size, tweet);
+                    } else {
+                        tweets.add(tweet);
+                    }
+                    size++;
+                    if (size == batchSize) {
+                        scanQueue.put(tweets);
+                        tweets = takeFreeBatch();
+                        size = 0;
+                    }
+                }
+                if (size > 0) {
+                    tweets.subList(size, tweets.size()).clear();
+                    scanQueue.put(tweets);
+                }
+                scanQueue.put(END_OF_SCAN);
+            } catch (InterruptedException e) {
+                // The scan was stopped
+            } catch (RuntimeException e) {
+                // End the scan rather than leave next() waiting
+                System.err.println("Error reading tweets: " + e);
+                try {
+                    scanQueue.put(END_OF_SCAN);
+                } catch (InterruptedException e2) {
+                    // The scan was stopped
+                }
+            }
+        }
+    }
+
+    // A used-up batch to fill again, if there is one, or else a new one
+    private List<Tweet> takeFreeBatch() {
+        List<Tweet> tweets = freeBatches.poll();
+        return (tweets != null) ? tweets : new ArrayList<Tweet>(batchSize);
+    }
+
+    // Stop the reading of the current scan, if any
+    private void stopScan() {
+        if (task != null) {
+            task.cancel(true);
+            task = null;
+        }
+        queue = null;
+        batch = null;
+    }
+}
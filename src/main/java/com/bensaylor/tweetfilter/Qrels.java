@@ -0,0 +1,454 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Relevance judgments (qrels) for a set of topics, held in primitive arrays.
+ *
+ * The judgments of each topic are kept as a sorted array of tweet IDs and a
+ * parallel array of relevance values, so looking up a tweet is a binary
+ * search with no boxing, and the judgments can be walked in ID order.
+ *
+ * Qrels are read from the TREC text format, one judgment per line:
+ *   topic-number 0 tweet-id relevance
+ * by a parser that works on the bytes directly, allocating only the arrays.
+ * If a tweet is judged more than once for a topic, the last judgment counts.
+ * They can also be saved in a binary form that loads with a few bulk copies;
+ * read() accepts either form.
+ *
+ * @author Ben Saylor
+ */
+class Qrels {
+
+    // Start of the binary form: "QRLS" and the format version
+    private static final int MAGIC = 0x51524C53;
+    private static final int VERSION = 1;
+
+    private int[] topicNumbers;   // Ascending
+    private TopicQrels[] topics;  // By position in topicNumbers
+
+    private Qrels(int[] topicNumbers, TopicQrels[] topics) {
+        this.topicNumbers = topicNumbers;
+        this.topics = topics;
+    }
+
+    /**
+     * @param topicNumber A topic number
+     * @return The judgments of the topic, or null if it has none
+     */
+    TopicQrels get(int topicNumber) {
+        int t = Arrays.binarySearch(topicNumbers, topicNumber);
+        return (t < 0) ? null : topics[t];
+    }
+
+    /**
+     * @return The number of topics with judgments
+     */
+    int getTopicCount() {
+        return topicNumbers.length;
+    }
+
+    /**
+     * @param t Position of a topic, from 0 to getTopicCount() - 1, in
+     * ascending order of topic number
+     * @return The topic's number
+     */
+    int getTopicNumber(int t) {
+        return topicNumbers[t];
+    }
+
+    /**
+     * Read qrels in either the text or the binary form.
+     *
+     * @param in The stream to read
+     * @return The qrels
+     *
+     * @throws IOException if the stream can't be read or is not valid
+     */
+    static Qrels read(InputStream in) throws IOException {
+        in = new BufferedInputStream(in, 65536);
+        in.mark(4);
+        int magic = 0;
+        for (int i = 0; i < 4; i++) {
+            int b = in.read();
+            magic = (magic << 8) | (b & 0xff);
+            if (b < 0) {
+                magic = 0;
+                break;
+            }
+        }
+        in.reset();
+        return (magic == MAGIC) ? load(in) : parse(in);
+    }
+
+    /**
+     * Write the qrels in the binary form read by read().
+     *
+     * @param out The stream to write to
+     *
+     * @throws IOException
+     */
+    void save(OutputStream out) throws IOException {
+        int total = 0;
+        for (TopicQrels topic : topics) {
+            total += topic.size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(
+                12 + 8 * topics.length + 9 * total);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(topics.length);
+        for (int t = 0; t < topics.length; t++) {
+            buffer.putInt(topicNumbers[t]).putInt(topics[t].size);
+        }
+        for (TopicQrels topic : topics) {
+            buffer.asLongBuffer().put(topic.ids, 0, topic.size);
+            buffer.position(buffer.position() + 8 * topic.size);
+        }
+        for (TopicQrels topic : topics) {
+            buffer.put(topic.relevance, 0, topic.size);
+        }
+        out.write(buffer.array());
+        out.flush();
+    }
+
+    // Read the binary form
+    private static Qrels load(InputStream in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(readAll(in));
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unsupported qrels format");
+            }
+            int numTopics = buffer.getInt();
+            int[] topicNumbers = new int[numTopics];
+            TopicQrels[] topics = new TopicQrels[numTopics];
+            for (int t = 0; t < numTopics; t++) {
+                topicNumbers[t] = buffer.getInt();
+                int size = buffer.getInt();
+                topics[t] = new TopicQrels(new long[size], new byte[size],
+                        size);
+            }
+            for (TopicQrels topic : topics) {
+                buffer.asLongBuffer().get(topic.ids);
+                buffer.position(buffer.position() + 8 * topic.size);
+            }
+            for (TopicQrels topic : topics) {
+                buffer.get(topic.relevance);
+            }
+            return new Qrels(topicNumbers, topics);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, IllegalArgumentException,
+            // NegativeArraySizeException
+            throw new IOException("Truncated or invalid qrels file");
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        byte[] bytes = new byte[65536];
+        int length = 0;
+        int n;
+        while ((n = in.read(bytes, length, bytes.length - length)) >= 0) {
+            length += n;
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, 2 * length);
+            }
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    // Parse the text form
+    private static Qrels parse(InputStream in) throws IOException {
+        // All judgments, in file order
+        int count = 0;
+        int[] lineTopics = new int[4096];
+        long[] lineIds = new long[4096];
+        byte[] lineRelevance = new byte[4096];
+
+        long[] fields = new long[4];
+        byte[] buffer = new byte[65536];
+        int length = 0;   // Bytes in the buffer
+        int position = 0; // Start of the current line
+        int lineNumber = 0;
+        boolean eof = false;
+        while (true) {
+            // Find the end of the line, reading more if needed
+            int end = position;
+            while (end < length && buffer[end] != '\n') {
+                end++;
+            }
+            if (end == length && !eof) {
+                // Move the partial line to the start and fill the rest
+                System.arraycopy(buffer, position, buffer, 0,
+                        length - position);
+                length -= position;
+                position = 0;
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, 2 * length);
+                }
+                int n = in.read(buffer, length, buffer.length - length);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    length += n;
+                }
+                continue;
+            }
+            if (position == length) {
+                break;
+            }
+            lineNumber++;
+
+            int numFields = parseLine(buffer, position, end, fields);
+            if (numFields != 0) {
+                if (numFields != 4 || fields[0] != (int) fields[0]
+                        || fields[3] != (byte) fields[3]) {
+                    throw new IOException("Invalid qrels line " + lineNumber);
+                }
+                if (count == lineTopics.length) {
+                    lineTopics = Arrays.copyOf(lineTopics, 2 * count);
+                    lineIds = Arrays.copyOf(lineIds, 2 * count);
+                    lineRelevance = Arrays.copyOf(lineRelevance, 2 * count);
+                }
+                lineTopics[count] = (int) fields[0];
+                lineIds[count] = fields[2];
+                lineRelevance[count] = (byte) fields[3];
+                count++;
+            }
+            position = Math.min(end + 1, length);
+        }
+        return group(count, lineTopics, lineIds, lineRelevance);
+    }
+
+    /**
+     * Parse the whitespace-separated integers of a line.
+     *
+     * @param bytes The text
+     * @param start Offset of the line
+     * @param end Offset just past the end of the line
+     * @param fields Where to put the values of the first fields.length fields
+     * @return The number of fields, or -1 if one is not an integer
+     */
+    private static int parseLine(byte[] bytes, int start, int end,
+            long[] fields) {
+        int numFields = 0;
+        int i = start;
+        while (true) {
+            while (i < end && bytes[i] <= ' ') {
+                i++;
+            }
+            if (i == end) {
+                return numFields;
+            }
+            boolean negative = bytes[i] == '-';
+            if (negative) {
+                i++;
+            }
+            int digitsStart = i;
+            long value = 0;
+            while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+                // Tweet IDs are well below the overflow limit of 18 digits
+                if (i - digitsStart == 18) {
+                    return -1;
+                }
+                value = 10 * value + (bytes[i] - '0');
+                i++;
+            }
+            if (i == digitsStart || (i < end && bytes[i] > ' ')) {
+                return -1;
+            }
+            if (numFields < fields.length) {
+                fields[numFields] = negative ? -value : value;
+            }
+            numFields++;
+        }
+    }
+
+    // Group the judgments by topic and sort each topic's by tweet ID
+    private static Qrels group(int count, int[] lineTopics, long[] lineIds,
+            byte[] lineRelevance) {
+        int[] sortedTopics = Arrays.copyOf(lineTopics, count);
+        Arrays.sort(sortedTopics);
+        int numTopics = unique(sortedTopics, count);
+        int[] topicNumbers = Arrays.copyOf(sortedTopics, numTopics);
+
+        // Collect each topic's judgments in file order
+        int[] topicOfLine = new int[count];
+        int[] sizes = new int[numTopics];
+        for (int i = 0; i < count; i++) {
+            topicOfLine[i] = Arrays.binarySearch(topicNumbers, lineTopics[i]);
+            sizes[topicOfLine[i]]++;
+        }
+        long[][] ids = new long[numTopics][];
+        byte[][] relevance = new byte[numTopics][];
+        for (int t = 0; t < numTopics; t++) {
+            ids[t] = new long[sizes[t]];
+            relevance[t] = new byte[sizes[t]];
+            sizes[t] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            int t = topicOfLine[i];
+            ids[t][sizes[t]] = lineIds[i];
+            relevance[t][sizes[t]] = lineRelevance[i];
+            sizes[t]++;
+        }
+
+        TopicQrels[] topics = new TopicQrels[numTopics];
+        for (int t = 0; t < numTopics; t++) {
+            topics[t] = sort(ids[t], relevance[t]);
+        }
+        return new Qrels(topicNumbers, topics);
+    }
+
+    // Sort a topic's judgments, given in file order, by tweet ID. Qrels files
+    // are usually already in ascending or descending order, which needs no
+    // searching.
+    private static TopicQrels sort(long[] ids, byte[] relevance) {
+        int size = ids.length;
+        boolean ascending = true;
+        boolean descending = true;
+        for (int i = 1; i < size; i++) {
+            ascending &= ids[i - 1] < ids[i];
+            descending &= ids[i - 1] > ids[i];
+        }
+        if (ascending) {
+            return new TopicQrels(ids, relevance, size);
+        }
+        if (descending) {
+            for (int i = 0, j = size - 1; i < j; i++, j--) {
+                long id = ids[i];
+                ids[i] = ids[j];
+                ids[j] = id;
+                byte r = relevance[i];
+                relevance[i] = relevance[j];
+                relevance[j] = r;
+            }
+            return new TopicQrels(ids, relevance, size);
+        }
+
+        // Fill in the relevance values in file order, so the last judgment
+        // of a tweet counts
+        long[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        TopicQrels topic = new TopicQrels(sortedIds, new byte[size],
+                unique(sortedIds, size));
+        for (int i = 0; i < size; i++) {
+            topic.relevance[topic.indexOf(ids[i])] = relevance[i];
+        }
+        return topic;
+    }
+
+    // Remove repeats from the start of a sorted array, returning the number
+    // of distinct values
+    private static int unique(int[] values, int count) {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size == 0 || values[i] != values[size - 1]) {
+                values[size++] = values[i];
+            }
+        }
+        return size;
+    }
+
+    private static int unique(long[] values, int count) {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size == 0 || values[i] != values[size - 1]) {
+                values[size++] = values[i];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The judgments of one topic, in ascending order of tweet ID.
+     */
+    static class TopicQrels {
+
+        private final long[] ids;
+        private final byte[] relevance;
+        private final int size;
+
+        private TopicQrels(long[] ids, byte[] relevance, int size) {
+            this.ids = ids;
+            this.relevance = relevance;
+            this.size = size;
+        }
+
+        /**
+         * @return The number of tweets judged
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return The tweet IDs, in ascending order in the first size()
+         * elements of the array, which must not be modified
+         */
+        long[] getIds() {
+            return ids;
+        }
+
+        /**
+         * @param i Position of a judgment, from 0 to size() - 1
+         * @return The tweet ID of the judgment
+         */
+        long getId(int i) {
+            return ids[i];
+        }
+
+        /**
+         * @param i Position of a judgment, from 0 to size() - 1
+         * @return The relevance value of the judgment
+         */
+        int getRelevance(int i) {
+            return relevance[i];
+        }
+
+        /**
+         * @param id A tweet ID
+         * @return The position of the tweet's judgment, or -1 if it is not
+         * judged
+         */
+        int indexOf(long id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            return (i < 0) ? -1 : i;
+        }
+
+        /**
+         * @param id A tweet ID
+         * @return The position of the first judgment with a tweet ID of at
+         * least id, or size() if there is none
+         */
+        int indexFrom(long id) {
+            int i = Arrays.binarySearch(ids, 0, size, id);
+            return (i < 0) ? -(i + 1) : i;
+        }
+
+        /**
+         * @param id A tweet ID
+         * @param unjudged The value to return if the tweet is not judged
+         * @return The tweet's relevance value
+         */
+        int getRelevanceOf(long id, int unjudged) {
+            int i = indexOf(id);
+            return (i < 0) ? unjudged : relevance[i];
+        }
+
+        /**
+         * @return The number of tweets judged relevant
+         */
+        int countRelevant() {
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (relevance[i] >= Constants.MINREL) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+}
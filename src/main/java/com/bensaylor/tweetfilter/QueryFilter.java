@@ -1,106 +1,75 @@
 package com.bensaylor.tweetfilter;
 
-import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
 import java.util.HashMap;
 import java.util.HashSet;
 
-// Using org.tartarus.snowball directly instead of
-// weka.core.stemmers.SnowballStemmer, which causes java.util.zip.ZipException
-import org.tartarus.snowball.SnowballStemmer;
-import org.tartarus.snowball.ext.porterStemmer;
-
-import weka.core.tokenizers.WordTokenizer;
-
 /**
  * Simple query-based filter.
  *
  * Tweets are scored based on the number of normalized terms they share with the
  * query, and retrieved if the score exceeds a threshold.
+ * Tweets are matched through a QueryIndex, which may be shared with the
+ * filters of other topics so that each tweet is matched once for all of them.
+ * If the tweet carries stored term IDs (see SegmentAnalyzer), they are used
+ * instead of tokenizing and stemming the text.
  *
  * @author Ben Sayor
  */
 public class QueryFilter extends Filter {
 
-    private WordTokenizer tokenizer;
-    private SnowballStemmer stemmer;
-    private HashSet<String> query;
-    private CharsetEncoder asciiEncoder;
-    private String allowedNonAsciiChars;
+    protected TextAnalyzer analyzer;
+    private QueryIndex index;
+    private int query = -1; // This filter's query number in the index
 
     public QueryFilter() {
-        tokenizer = new WordTokenizer();
-        stemmer = new porterStemmer();
-        asciiEncoder = Charset.forName("US-ASCII").newEncoder();
+        this(new QueryIndex(true));
+    }
 
-        allowedNonAsciiChars = new StringBuilder()
-            .append("\u00a0") // non-breaking space
-            .append("\u2018") // left single quote
-            .append("\u2019") // right single quote
-            .append("\u201C") // left double quote
-            .append("\u201D") // right double quote
-            .append("\u2026") // horizontal ellipsis
-            .append("\u2013") // en dash
-            .append("\u2014") // em dash
-            .toString();
+    /**
+     * @param index Index of normalized terms to add the query to
+     */
+    QueryFilter(QueryIndex index) {
+        this.index = index;
+        analyzer = new TextAnalyzer();
     }
 
     @Override
     public void setTopic(Topic topic) {
-        query = new HashSet<>();
-        tokenizer.tokenize(topic.title);
-        while (tokenizer.hasMoreElements()) {
-            query.add(normalize(tokenizer.nextElement()));
+        if (query >= 0) {
+            index.removeQuery(query);
         }
+        query = index.addQuery(
+                new HashSet<String>(analyzer.terms(topic.title)));
     }
 
     @Override
-    public FilterDecision decide(Tweet tweet) {
+    public void decide(Tweet tweet, FilterDecision decision) {
+        // Reject before matching, which normalizes every term
+        index.analyze(tweet);
+        TextAnalyzer tweetAnalyzer = index.getAnalyzer();
 
         // There are no tweets starting with RT that are judged relevant in the
         // training set. "RT" typically indicates a retweet with no information
         // beyond the original tweet.
-        if (tweet.text.startsWith("RT")) {
-            return new FilterDecision(tweet.id, 0.0, false);
+        if (tweetAnalyzer.isRetweet()) {
+            decision.set(tweet.id, 0.0, false);
+            return;
         }
 
-        if (hasNonEnglishChars(tweet)) {
-            return new FilterDecision(tweet.id, 0.0, false);
+        // Try to exclude most non-English tweets by filtering out non-ASCII
+        if (tweetAnalyzer.hasNonEnglishChars()) {
+            decision.set(tweet.id, 0.0, false);
+            return;
         }
 
-        tokenizer.tokenize(tweet.text);
-        HashMap<String,Integer> tfByTerm = new HashMap<>();
-        for (String term : query) {
-            tfByTerm.put(term, 0);
-        }
-        while (tokenizer.hasMoreElements()) {
-            String term = normalize(tokenizer.nextElement());
-            if (query.contains(term)) {
-                tfByTerm.put(term, tfByTerm.get(term) + 1);
-            }
-        }
-        int sharedTerms = 0;
-        for (Integer tf : tfByTerm.values()) {
-            if (tf > 0) {
-                sharedTerms++;
-            }
-        }
-        double score = ((double) sharedTerms) / query.size();
+        index.match(tweet);
+        int sharedTerms = index.getHits(query);
+        double score = ((double) sharedTerms) / index.getQuerySize(query);
         boolean retrieve = (score > 0.5);
-        return new FilterDecision(tweet.id, score, retrieve);
+        decision.set(tweet.id, score, retrieve);
     }
 
     protected String normalize(String term) {
-        stemmer.setCurrent(term.toLowerCase());
-        stemmer.stem();
-        return stemmer.getCurrent();
-    }
-
-    // Try to exclude most non-English tweets by filtering out non-ASCII
-    protected boolean hasNonEnglishChars(Tweet tweet) {
-        // First, preprocess to remove some non-ASCII chars that sometimes occur
-        // in English
-        String s = tweet.text.replaceAll("[" + allowedNonAsciiChars + "]", " ");
-        return !asciiEncoder.canEncode(s);
+        return analyzer.normalize(term);
     }
 }
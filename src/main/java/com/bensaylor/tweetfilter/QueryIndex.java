@@ -0,0 +1,209 @@
+package com.bensaylor.tweetfilter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Inverted index from query terms to the standing queries containing them,
+ * for matching each tweet against many topics at once.
+ *
+ * match() analyzes a tweet once and counts, for every query, the number of
+ * its distinct terms that occur in the tweet. The cost grows with the length
+ * of the tweet and the number of queries sharing terms with it, not with the
+ * total number of queries. The last tweet matched is remembered, so filters
+ * sharing an index (one per topic in a single-pass run) each ask for their
+ * own counts without the tweet being matched again. analyze() only analyzes
+ * the tweet, so that filters can reject it (as a retweet, for instance)
+ * before its terms are normalized for matching.
+ *
+ * The index holds either normalized terms, as used by QueryFilter, or raw
+ * tokens, as used by BooleanOrFilter. A QueryIndex is not thread-safe.
+ *
+ * @author Ben Saylor
+ */
+class QueryIndex {
+
+    private boolean normalized;
+    private TextAnalyzer analyzer;
+    private HashMap<String,Postings> postingsByTerm;
+    private String[][] queryTerms; // Terms of each query, or null if removed
+
+    // Hit counts of the last match; a query's count is only valid if its
+    // stamp equals matchNumber
+    private int[] hits;
+    private int[] hitStamps;
+    private int matchNumber;
+
+    // The last tweet analyzed, and whether it has been matched
+    private long lastTweetId;
+    private boolean haveLastTweet;
+    private boolean lastTweetMatched;
+
+    /**
+     * @param normalized true to index normalized terms, false to index raw
+     * tokens
+     */
+    QueryIndex(boolean normalized) {
+        this.normalized = normalized;
+        analyzer = new TextAnalyzer();
+        postingsByTerm = new HashMap<>();
+        queryTerms = new String[16][];
+        hits = new int[16];
+        hitStamps = new int[16];
+    }
+
+    /**
+     * @return The analyzer used by analyze() and match(), holding the
+     * analysis of the last tweet
+     */
+    TextAnalyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    /**
+     * Add a query to the index.
+     *
+     * @param terms The distinct terms of the query
+     * @return The query's number, for getHits() and removeQuery()
+     */
+    int addQuery(Set<String> terms) {
+        int query = 0;
+        while (query < queryTerms.length && queryTerms[query] != null) {
+            query++;
+        }
+        if (query == queryTerms.length) {
+            int length = 2 * queryTerms.length;
+            queryTerms = Arrays.copyOf(queryTerms, length);
+            hits = Arrays.copyOf(hits, length);
+            hitStamps = Arrays.copyOf(hitStamps, length);
+        }
+        queryTerms[query] = terms.toArray(new String[terms.size()]);
+        hitStamps[query] = 0;
+
+        for (String term : queryTerms[query]) {
+            Postings postings = postingsByTerm.get(term);
+            if (postings == null) {
+                postings = new Postings();
+                postingsByTerm.put(term, postings);
+            }
+            postings.add(query);
+        }
+        haveLastTweet = false;
+        return query;
+    }
+
+    /**
+     * Remove a query from the index. Its number may be reused.
+     *
+     * @param query The query's number
+     */
+    void removeQuery(int query) {
+        for (String term : queryTerms[query]) {
+            Postings postings = postingsByTerm.get(term);
+            postings.remove(query);
+            if (postings.size == 0) {
+                postingsByTerm.remove(term);
+            }
+        }
+        queryTerms[query] = null;
+        haveLastTweet = false;
+    }
+
+    /**
+     * @param query A query's number
+     * @return The number of distinct terms in the query
+     */
+    int getQuerySize(int query) {
+        return queryTerms[query].length;
+    }
+
+    /**
+     * Analyze the tweet, unless it is the tweet last analyzed, without
+     * matching it against the queries.
+     *
+     * @param tweet The tweet to analyze
+     */
+    void analyze(Tweet tweet) {
+        if (haveLastTweet && tweet.id == lastTweetId) {
+            return;
+        }
+        lastTweetId = tweet.id;
+        haveLastTweet = true;
+        lastTweetMatched = false;
+
+        if (normalized) {
+            analyzer.analyze(tweet, false);
+        } else {
+            // Raw tokens are never stored, so always analyze the text
+            analyzer.analyze(tweet.text, false);
+        }
+    }
+
+    /**
+     * Analyze the tweet and count its hits for every query, unless it is the
+     * tweet last matched.
+     *
+     * @param tweet The tweet to match
+     */
+    void match(Tweet tweet) {
+        analyze(tweet);
+        if (lastTweetMatched) {
+            return;
+        }
+        lastTweetMatched = true;
+        matchNumber++;
+
+        for (int i = 0; i < analyzer.getTermCount(); i++) {
+            String term = normalized
+                ? analyzer.getTerm(i) : analyzer.getToken(i);
+            Postings postings = postingsByTerm.get(term);
+
+            // Count each distinct term only once
+            if (postings == null || postings.matchNumber == matchNumber) {
+                continue;
+            }
+            postings.matchNumber = matchNumber;
+            for (int j = 0; j < postings.size; j++) {
+                int query = postings.queries[j];
+                if (hitStamps[query] != matchNumber) {
+                    hitStamps[query] = matchNumber;
+                    hits[query] = 0;
+                }
+                hits[query]++;
+            }
+        }
+    }
+
+    /**
+     * @param query A query's number
+     * @return The number of distinct query terms found in the last tweet
+     * matched
+     */
+    int getHits(int query) {
+        return (hitStamps[query] == matchNumber) ? hits[query] : 0;
+    }
+
+    // The queries containing a term
+    private static class Postings {
+        int[] queries = new int[4];
+        int size = 0;
+        int matchNumber = 0; // Last match in which the term was seen
+
+        void add(int query) {
+            if (size == queries.length) {
+                queries = Arrays.copyOf(queries, 2 * size);
+            }
+            queries[size++] = query;
+        }
+
+        void remove(int query) {
+            for (int i = 0; i < size; i++) {
+                if (queries[i] == query) {
+                    queries[i] = queries[--size];
+                    return;
+                }
+            }
+        }
+    }
+}
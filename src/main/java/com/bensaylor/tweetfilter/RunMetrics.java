@@ -0,0 +1,308 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Metrics for a filtering run: tweets per second overall and per topic,
+ * latency of the tweet store's next() and fetchTweets(), latency of the
+ * filters' decide() and feedback(), the fraction of tweets retrieved, and
+ * allocation and heap use per topic (see TopicMetrics).
+ *
+ * The metrics are written to a file, as JSON or, if the filename ends in
+ * ".csv", as CSV with one row per topic and a final row for the whole run,
+ * which gives the heap in use at the time of writing instead of a delta.
+ * The file is rewritten at a fixed interval while the run is in progress
+ * and once more at the end. Each write replaces the file atomically, so the
+ * file can be read at any time.
+ *
+ * @author Ben Saylor
+ */
+class RunMetrics {
+
+    private final File file;
+    private final long intervalSeconds;
+    private final ArrayList<TopicMetrics> topics = new ArrayList<>();
+    // Latencies of next(), in a histogram per reading thread so that the
+    // threads of a parallel run don't contend for one lock, merged when the
+    // metrics are written
+    private final ArrayList<LatencyHistogram> nextLatencies
+        = new ArrayList<>();
+    private final ThreadLocal<LatencyHistogram> threadNextLatencies
+        = new ThreadLocal<LatencyHistogram>() {
+            @Override
+            protected LatencyHistogram initialValue() {
+                LatencyHistogram latencies = new LatencyHistogram();
+                synchronized (RunMetrics.this) {
+                    nextLatencies.add(latencies);
+                }
+                return latencies;
+            }
+        };
+    private final LatencyHistogram fetchLatencies = new LatencyHistogram();
+    private final AtomicLong tweetsFetched = new AtomicLong();
+    private long startTime = 0;
+    private ScheduledExecutorService scheduler = null;
+
+    /**
+     * @param filename Name of the file to write the metrics to
+     * @param intervalSeconds Seconds between writes during the run, or 0 to
+     * write only at the end
+     */
+    RunMetrics(String filename, long intervalSeconds) {
+        this.file = new File(filename);
+        this.intervalSeconds = intervalSeconds;
+    }
+
+    /**
+     * Create the metrics for a topic.
+     *
+     * @param topic The topic
+     * @return The topic's metrics, included in every write from now on
+     */
+    synchronized TopicMetrics newTopic(Topic topic) {
+        TopicMetrics topicMetrics = new TopicMetrics(topic.number);
+        topics.add(topicMetrics);
+        return topicMetrics;
+    }
+
+    /**
+     * @param nanos Time taken by a call to the tweet source's next()
+     */
+    void nextTweetRead(long nanos) {
+        threadNextLatencies.get().record(nanos);
+    }
+
+    /**
+     * @param nanos Time taken by a call to the tweet store's fetchTweets()
+     * @param count Number of tweets asked for
+     */
+    void tweetsFetched(long nanos, int count) {
+        fetchLatencies.record(nanos);
+        tweetsFetched.addAndGet(count);
+    }
+
+    /**
+     * Start the clock for the run, and start writing the metrics at the
+     * interval given to the constructor.
+     */
+    synchronized void start() {
+        startTime = System.nanoTime();
+        if (intervalSeconds > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "metrics");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    write(false);
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop the interval writes and write the final metrics.
+     */
+    void finish() {
+        ScheduledExecutorService stopping;
+        synchronized (this) {
+            stopping = scheduler;
+            scheduler = null;
+        }
+        if (stopping != null) {
+            stopping.shutdown();
+            try {
+                stopping.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        write(true);
+    }
+
+    // Write the metrics to a temporary file and move it into place
+    private synchronized void write(boolean complete) {
+        File parent = file.getAbsoluteFile().getParentFile();
+        File temp = null;
+        try {
+            temp = File.createTempFile(file.getName(), ".tmp", parent);
+            try (PrintWriter writer = new PrintWriter(temp, "UTF-8")) {
+                if (file.getName().endsWith(".csv")) {
+                    writeCsv(writer);
+                } else {
+                    writeJson(writer, complete);
+                }
+                if (writer.checkError()) {
+                    throw new IOException("Error writing " + temp);
+                }
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing metrics: " + e.getMessage());
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    private void writeJson(PrintWriter writer, boolean complete) {
+        Map<String,Object> run = new LinkedHashMap<>();
+        double seconds = getSeconds();
+        LatencyHistogram next = mergeNextLatencies();
+        run.put("complete", complete);
+        run.put("seconds", seconds);
+        run.put("tweetsRead", next.getCount() + tweetsFetched.get());
+        run.put("tweetsReadPerSecond", rate(next.getCount()
+                    + tweetsFetched.get(), seconds));
+        run.put("heapUsedBytes", TopicMetrics.heapUsed());
+        run.put("next", histogram(next));
+        run.put("fetchTweets", histogram(fetchLatencies));
+
+        LatencyHistogram decide = new LatencyHistogram();
+        LatencyHistogram feedback = new LatencyHistogram();
+        long tweets = 0;
+        long retrieved = 0;
+        ArrayList<Map<String,Object>> topicList = new ArrayList<>();
+        for (TopicMetrics topic : topics) {
+            decide.add(topic.decideLatencies);
+            feedback.add(topic.feedbackLatencies);
+            tweets += topic.getTweets();
+            retrieved += topic.getRetrieved();
+
+            Map<String,Object> entry = new LinkedHashMap<>();
+            entry.put("topic", topic.topicNumber);
+            entry.put("finished", topic.isFinished());
+            entry.put("seconds", topic.getSeconds());
+            entry.put("tweets", topic.getTweets());
+            entry.put("tweetsPerSecond",
+                    rate(topic.getTweets(), topic.getSeconds()));
+            entry.put("retrieved", topic.getRetrieved());
+            entry.put("retrieveRate",
+                    rate(topic.getRetrieved(), topic.getTweets()));
+            entry.put("allocatedBytes", topic.getAllocatedBytes());
+            entry.put("heapUsedDelta", topic.getHeapUsedDelta());
+            entry.put("decide", histogram(topic.decideLatencies));
+            entry.put("feedback", histogram(topic.feedbackLatencies));
+            topicList.add(entry);
+        }
+        run.put("tweets", tweets);
+        run.put("tweetsPerSecond", rate(tweets, seconds));
+        run.put("retrieved", retrieved);
+        run.put("retrieveRate", rate(retrieved, tweets));
+        run.put("decide", histogram(decide));
+        run.put("feedback", histogram(feedback));
+        run.put("topics", topicList);
+
+        writer.println(new GsonBuilder().setPrettyPrinting().create()
+                .toJson(run));
+    }
+
+    private void writeCsv(PrintWriter writer) {
+        writer.println("topic,finished,seconds,tweets,tweets_per_second,"
+                + "retrieved,retrieve_rate,allocated_bytes,heap_used_delta,"
+                + "heap_used,"
+                + histogramHeader("decide") + ","
+                + histogramHeader("feedback") + ","
+                + histogramHeader("next") + ","
+                + histogramHeader("fetch"));
+
+        LatencyHistogram decide = new LatencyHistogram();
+        LatencyHistogram feedback = new LatencyHistogram();
+        long tweets = 0;
+        long retrieved = 0;
+        boolean finished = true;
+        for (TopicMetrics topic : topics) {
+            decide.add(topic.decideLatencies);
+            feedback.add(topic.feedbackLatencies);
+            tweets += topic.getTweets();
+            retrieved += topic.getRetrieved();
+            finished &= topic.isFinished();
+            writer.printf(Locale.ROOT, "%d,%b,%.3f,%d,%.1f,%d,%.4f,%d,%d,,"
+                    + "%s,%s,,,,,,,,,,\n",
+                    topic.topicNumber, topic.isFinished(), topic.getSeconds(),
+                    topic.getTweets(),
+                    rate(topic.getTweets(), topic.getSeconds()),
+                    topic.getRetrieved(),
+                    rate(topic.getRetrieved(), topic.getTweets()),
+                    topic.getAllocatedBytes(), topic.getHeapUsedDelta(),
+                    histogramFields(topic.decideLatencies),
+                    histogramFields(topic.feedbackLatencies));
+        }
+
+        double seconds = getSeconds();
+        writer.printf(Locale.ROOT, "all,%b,%.3f,%d,%.1f,%d,%.4f,,,%d,"
+                + "%s,%s,%s,%s\n",
+                finished, seconds, tweets, rate(tweets, seconds),
+                retrieved, rate(retrieved, tweets), TopicMetrics.heapUsed(),
+                histogramFields(decide), histogramFields(feedback),
+                histogramFields(mergeNextLatencies()),
+                histogramFields(fetchLatencies));
+    }
+
+    // The latencies of next() recorded by all threads
+    private synchronized LatencyHistogram mergeNextLatencies() {
+        LatencyHistogram merged = new LatencyHistogram();
+        for (LatencyHistogram latencies : nextLatencies) {
+            merged.add(latencies);
+        }
+        return merged;
+    }
+
+    private synchronized double getSeconds() {
+        return (startTime == 0) ? 0.0 : (System.nanoTime() - startTime) / 1e9;
+    }
+
+    private static double rate(long count, double total) {
+        return (total == 0) ? 0.0 : count / total;
+    }
+
+    private static Map<String,Object> histogram(LatencyHistogram latencies) {
+        Map<String,Object> entry = new LinkedHashMap<>();
+        entry.put("count", latencies.getCount());
+        entry.put("meanMs", latencies.getMean() / 1e6);
+        entry.put("p50Ms", latencies.getPercentile(0.5) / 1e6);
+        entry.put("p99Ms", latencies.getPercentile(0.99) / 1e6);
+        entry.put("maxMs", latencies.getMax() / 1e6);
+        return entry;
+    }
+
+    private static String histogramHeader(String name) {
+        return name + "_count," + name + "_mean_ms," + name + "_p50_ms,"
+            + name + "_p99_ms," + name + "_max_ms";
+    }
+
+    private static String histogramFields(LatencyHistogram latencies) {
+        return String.format(Locale.ROOT, "%d,%.4f,%.4f,%.4f,%.4f",
+                latencies.getCount(), latencies.getMean() / 1e6,
+                latencies.getPercentile(0.5) / 1e6,
+                latencies.getPercentile(0.99) / 1e6,
+                latencies.getMax() / 1e6);
+    }
+}
@@ -0,0 +1,335 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One immutable, memory-mapped segment of a SegmentStore.
+ *
+ * A segment holds a run of tweets in ascending ID order, stored column by
+ * column in files sharing a common prefix:
+ *
+ *   prefix.ids                   long[n]  sorted tweet IDs
+ *   prefix.text.offsets          int[n+1] byte offsets into prefix.text
+ *   prefix.text                  UTF-8 tweet texts, concatenated
+ *   prefix.created_at.offsets    (same layout as text)
+ *   prefix.created_at
+ *   prefix.retweeted             byte[n]
+ *   prefix.retweet_count         long[n]
+ *   prefix.favorited             byte[n]
+ *   prefix.user_id               long[n]
+ *   prefix.user_screen_name.offsets
+ *   prefix.user_screen_name
+ *   prefix.user_name.offsets
+ *   prefix.user_name
+ *   prefix.requested_id          long[n]
+ *
+ * SegmentAnalyzer adds the stored text analysis (see TweetTerms):
+ *
+ *   prefix.flags                 byte[n]  bit 0: retweet, bit 1: non-English
+ *   prefix.terms.offsets         int[n+1] offsets into prefix.terms
+ *   prefix.terms                 int term IDs, concatenated
+ *   prefix.pterms.offsets        (same layout as terms, for the
+ *   prefix.pterms                 preprocessed terms)
+ *
+ * The analysis is ignored if it is older than prefix.ids or doesn't have a
+ * row for each tweet.
+ *
+ * Numbers are big-endian. Null strings are stored as empty strings.
+ * The IDs, text and analysis are mapped when the segment is opened; the other
+ * columns are mapped the first time a full tweet is read.
+ *
+ * @author Ben Saylor
+ * @see SegmentWriter
+ */
+class Segment {
+
+    private String prefix;
+    private int size;
+    private LongBuffer ids;
+    private StringColumn text;
+
+    // Stored text analysis, or null if the segment has not been analyzed
+    private ByteBuffer flags;
+    private IntColumn terms;
+    private IntColumn preprocessedTerms;
+
+    // Mapped on first use by getTweet()
+    private StringColumn createdAt;
+    private ByteBuffer retweeted;
+    private LongBuffer retweetCount;
+    private ByteBuffer favorited;
+    private LongBuffer userId;
+    private StringColumn userScreenName;
+    private StringColumn userName;
+    private LongBuffer requestedId;
+
+    /**
+     * Map a segment's ID and text columns.
+     *
+     * @param prefix Path of the segment's files, without the column suffix
+     *
+     * @throws IOException
+     */
+    Segment(String prefix) throws IOException {
+        this.prefix = prefix;
+        ids = map(".ids").asLongBuffer();
+        size = ids.limit();
+        text = new StringColumn(".text");
+        File flagsFile = new File(prefix + ".flags");
+        if (flagsFile.exists()) {
+            flags = map(".flags");
+            terms = new IntColumn(".terms");
+            preprocessedTerms = new IntColumn(".pterms");
+
+            // Analysis of an earlier copy of the segment would give the
+            // tweets the wrong terms
+            if (flagsFile.lastModified()
+                    < new File(prefix + ".ids").lastModified()
+                    || flags.limit() != size || terms.size() != size
+                    || preprocessedTerms.size() != size) {
+                System.err.println("Warning: ignoring the analysis of "
+                        + prefix + ", which doesn't match its tweets");
+                flags = null;
+                terms = null;
+                preprocessedTerms = null;
+            }
+        }
+    }
+
+    /**
+     * @return Path of the segment's files, without the column suffix
+     */
+    String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return true if the segment has stored text analysis
+     */
+    boolean isAnalyzed() {
+        return flags != null;
+    }
+
+    /**
+     * Read the stored text analysis of the tweet in the given row.
+     * The segment must have been analyzed.
+     *
+     * @param row Row number, from 0 to size() - 1
+     * @param dictionary The dictionary the segment's term IDs refer to
+     * @return The analysis
+     */
+    TweetTerms getTerms(int row, TermDictionary dictionary) {
+        TweetTerms tweetTerms = new TweetTerms();
+        readTerms(row, dictionary, tweetTerms);
+        return tweetTerms;
+    }
+
+    /**
+     * Read the stored text analysis of the tweet in the given row into an
+     * existing TweetTerms, reusing its arrays where they are large enough.
+     * The segment must have been analyzed.
+     *
+     * @param row Row number, from 0 to size() - 1
+     * @param dictionary The dictionary the segment's term IDs refer to
+     * @param tweetTerms The analysis to overwrite
+     */
+    void readTerms(int row, TermDictionary dictionary,
+            TweetTerms tweetTerms) {
+        byte rowFlags = flags.get(row);
+        tweetTerms.dictionary = dictionary;
+        tweetTerms.retweet = (rowFlags & SegmentAnalyzer.FLAG_RETWEET) != 0;
+        tweetTerms.nonEnglish
+            = (rowFlags & SegmentAnalyzer.FLAG_NON_ENGLISH) != 0;
+        tweetTerms.terms = terms.get(row, tweetTerms.terms);
+        tweetTerms.termCount = terms.count(row);
+        tweetTerms.preprocessedTerms = preprocessedTerms.get(row,
+                tweetTerms.preprocessedTerms);
+        tweetTerms.preprocessedTermCount = preprocessedTerms.count(row);
+    }
+
+    /**
+     * @return The number of tweets in the segment
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param row Row number, from 0 to size() - 1
+     * @return The ID of the tweet in the given row
+     */
+    long getId(int row) {
+        return ids.get(row);
+    }
+
+    /**
+     * @param row Row number, from 0 to size() - 1
+     * @return The text of the tweet in the given row
+     */
+    String getText(int row) {
+        return text.get(row);
+    }
+
+    /**
+     * @return The lowest tweet ID in the segment
+     */
+    long firstId() {
+        return ids.get(0);
+    }
+
+    /**
+     * @return The highest tweet ID in the segment
+     */
+    long lastId() {
+        return ids.get(size - 1);
+    }
+
+    /**
+     * Binary search for the first row whose ID is at least the given ID.
+     *
+     * @param id The tweet ID to search for
+     * @return The row number, or size() if all IDs are lower
+     */
+    int lowerBound(long id) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ids.get(mid) < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Read all fields of the tweet in the given row.
+     *
+     * @param row Row number, from 0 to size() - 1
+     * @return The tweet
+     *
+     * @throws IOException if the other columns could not be mapped
+     */
+    Tweet getTweet(int row) throws IOException {
+        Tweet tweet = new Tweet();
+        tweet.id = ids.get(row);
+        tweet.text = text.get(row);
+        readFields(row, tweet);
+        return tweet;
+    }
+
+    /**
+     * Read the fields other than id and text of the tweet in the given row,
+     * reusing the tweet's User if it has one.
+     *
+     * @param row Row number, from 0 to size() - 1
+     * @param tweet The tweet to read the fields into
+     *
+     * @throws IOException if the other columns could not be mapped
+     */
+    void readFields(int row, Tweet tweet) throws IOException {
+        mapAllColumns();
+        if (tweet.user == null) {
+            tweet.user = new User();
+        }
+        tweet.created_at = createdAt.get(row);
+        tweet.retweeted = retweeted.get(row) == 1;
+        tweet.retweet_count = retweetCount.get(row);
+        tweet.favorited = favorited.get(row) == 1;
+        tweet.user.id = userId.get(row);
+        tweet.user.screen_name = userScreenName.get(row);
+        tweet.user.name = userName.get(row);
+        tweet.requested_id = requestedId.get(row);
+    }
+
+    private synchronized void mapAllColumns() throws IOException {
+        if (requestedId != null) {
+            return;
+        }
+        createdAt = new StringColumn(".created_at");
+        retweeted = map(".retweeted");
+        retweetCount = map(".retweet_count").asLongBuffer();
+        favorited = map(".favorited");
+        userId = map(".user_id").asLongBuffer();
+        userScreenName = new StringColumn(".user_screen_name");
+        userName = new StringColumn(".user_name");
+        requestedId = map(".requested_id").asLongBuffer();
+    }
+
+    // Map the column file with the given suffix
+    private MappedByteBuffer map(String suffix) throws IOException {
+        try (
+                RandomAccessFile file
+                    = new RandomAccessFile(new File(prefix + suffix), "r");
+                FileChannel channel = file.getChannel()) {
+            return channel.map(FileChannel.MapMode.READ_ONLY,
+                    0, channel.size());
+        }
+    }
+
+    // A column of strings stored as an offsets file and a UTF-8 data file
+    private class StringColumn {
+        private IntBuffer offsets;
+        private ByteBuffer data;
+
+        StringColumn(String suffix) throws IOException {
+            offsets = map(suffix + ".offsets").asIntBuffer();
+            data = map(suffix);
+        }
+
+        String get(int row) {
+            int start = offsets.get(row);
+            byte[] bytes = new byte[offsets.get(row + 1) - start];
+            // Absolute bulk get on a duplicate, so readers in different
+            // threads don't share a position
+            ByteBuffer view = data.duplicate();
+            view.position(start);
+            view.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // A column of int arrays stored as an offsets file and a data file
+    private class IntColumn {
+        private IntBuffer offsets;
+        private IntBuffer data;
+
+        IntColumn(String suffix) throws IOException {
+            offsets = map(suffix + ".offsets").asIntBuffer();
+            data = map(suffix).asIntBuffer();
+        }
+
+        // The values of the row, in the given array if it is large enough
+        // (followed by whatever it held before), or else in a new array
+        int[] get(int row, int[] values) {
+            int start = offsets.get(row);
+            int count = count(row);
+            if (values == null || values.length < count) {
+                values = new int[count];
+            }
+            for (int i = 0; i < count; i++) {
+                values[i] = data.get(start + i);
+            }
+            return values;
+        }
+
+        int count(int row) {
+            return offsets.get(row + 1) - offsets.get(row);
+        }
+
+        // Number of rows
+        int size() {
+            return offsets.limit() - 1;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Offline analysis pass over a SegmentStore.
+ * Runs the TextAnalyzer over the text of every tweet once and stores the
+ * results next to each segment as term IDs, with the term dictionary saved
+ * in the segment directory. Filters can then score tweets from the stored
+ * term IDs instead of tokenizing and stemming the text for every topic.
+ * See Segment for the file layout.
+ *
+ * @author Ben Saylor
+ */
+public class SegmentAnalyzer {
+
+    /** Name of the term dictionary file in the segment directory */
+    public static final String DICTIONARY_FILE = "terms.dict";
+
+    /** Flag bit for TweetTerms.retweet */
+    static final int FLAG_RETWEET = 1;
+
+    /** Flag bit for TweetTerms.nonEnglish */
+    static final int FLAG_NON_ENGLISH = 2;
+
+    private SegmentAnalyzer() {
+    }
+
+    /**
+     * Analyze all segments in the given directory, replacing any previous
+     * analysis.
+     *
+     * @param dir Directory containing the segment files
+     * @return The number of tweets analyzed
+     *
+     * @throws IOException
+     */
+    public static long analyze(File dir) throws IOException {
+        TextAnalyzer analyzer = new TextAnalyzer();
+        TermDictionary dictionary = new TermDictionary();
+        long count = 0;
+
+        for (int i = 0; new File(SegmentStore.segmentPrefix(dir, i) + ".ids")
+                .exists(); i++) {
+            String prefix = SegmentStore.segmentPrefix(dir, i);
+            Segment segment = new Segment(prefix);
+            try (
+                    DataOutputStream flags = open(prefix + ".flags");
+                    IntColumnWriter terms = new IntColumnWriter(
+                        prefix + ".terms");
+                    IntColumnWriter preprocessedTerms = new IntColumnWriter(
+                        prefix + ".pterms")) {
+
+                for (int row = 0; row < segment.size(); row++) {
+                    String text = segment.getText(row);
+                    analyzer.analyze(text, false);
+                    int rowFlags = 0;
+                    if (analyzer.isRetweet()) {
+                        rowFlags |= FLAG_RETWEET;
+                    }
+                    if (analyzer.hasNonEnglishChars()) {
+                        rowFlags |= FLAG_NON_ENGLISH;
+                    }
+                    flags.writeByte(rowFlags);
+                    terms.write(analyzer, dictionary);
+                    analyzer.analyze(text, true);
+                    preprocessedTerms.write(analyzer, dictionary);
+                    count++;
+                }
+            }
+            System.out.println(count + " tweets analyzed, "
+                    + dictionary.size() + " terms");
+        }
+
+        dictionary.save(new File(dir, DICTIONARY_FILE));
+        return count;
+    }
+
+    private static DataOutputStream open(String filename) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(filename), 65536));
+    }
+
+    // Writes a column of term ID arrays as an offsets file and a data file
+    private static class IntColumnWriter implements AutoCloseable {
+        private DataOutputStream offsets;
+        private DataOutputStream data;
+        private int offset = 0;
+
+        IntColumnWriter(String filename) throws IOException {
+            offsets = open(filename + ".offsets");
+            data = open(filename);
+            offsets.writeInt(0);
+        }
+
+        // Write the terms of the text last analyzed by the analyzer
+        void write(TextAnalyzer analyzer, TermDictionary dictionary)
+                throws IOException {
+            for (int i = 0; i < analyzer.getTermCount(); i++) {
+                data.writeInt(dictionary.addTerm(analyzer.getTerm(i)));
+            }
+            offset += analyzer.getTermCount();
+            offsets.writeInt(offset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            offsets.close();
+            data.close();
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A tweet corpus stored as immutable, memory-mapped column segments, as an
+ * alternative to the SQLite TweetDatabase.
+ *
+ * Segments are created from an existing store with SegmentWriter.copy().
+ * Segments hold disjoint, ascending ranges of tweet IDs, so a scan from a
+ * given ID is a binary search for the starting segment and row followed by a
+ * sequential read of the mapped files. See Segment for the file layout.
+ *
+ * If the segments have been analyzed by SegmentAnalyzer, the tweets returned
+ * carry their stored analysis (Tweet.terms).
+ *
+ * The columns other than id and text are only read when a view uses them,
+ * so setFields() saves little but for fetches. Tweets are still marked as
+ * missing the fields it leaves out.
+ *
+ * @author Ben Saylor
+ */
+public class SegmentStore implements TweetStore {
+
+    private List<Segment> segments;
+
+    // Dictionary for the stored analysis, or null if there is none
+    private TermDictionary dictionary;
+
+    // The fields of the tweets returned, besides the id and text
+    private int fields = Tweet.ALL_FIELDS;
+
+    // Position of the current scan, or segment -1 if there is no scan
+    private int scanSegment = -1;
+    private int scanRow;
+    private long scanLastId = Long.MAX_VALUE;
+
+    private final SegmentFieldReader fieldReader = new SegmentFieldReader();
+
+    /**
+     * Map the segments in the given directory.
+     *
+     * @param dir Directory containing the segment files
+     */
+    public SegmentStore(File dir) {
+        segments = new ArrayList<>();
+        for (int i = 0; new File(segmentPrefix(dir, i) + ".ids").exists();
+                i++) {
+            Segment segment;
+            try {
+                segment = new Segment(segmentPrefix(dir, i));
+            } catch (IOException e) {
+                // Leave out only this segment, as with an overlapping one
+                System.err.println("Error opening segment "
+                        + segmentPrefix(dir, i) + ": " + e.getMessage()
+                        + "; ignoring it");
+                continue;
+            }
+            if (segment.size() == 0) {
+                continue;
+            }
+            // Scans and fetches rely on the segments' ranges being
+            // ascending and disjoint
+            if (!segments.isEmpty() && segment.firstId()
+                    <= segments.get(segments.size() - 1).lastId()) {
+                System.err.println("Error: segment "
+                        + segment.getPrefix() + " overlaps the segment"
+                        + " before it; ignoring it");
+                continue;
+            }
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            System.err.println("Warning: no segments found in " + dir);
+        }
+
+        // Use the stored analysis only if every segment has it
+        File dictionaryFile = new File(dir, SegmentAnalyzer.DICTIONARY_FILE);
+        boolean analyzed = dictionaryFile.exists();
+        for (Segment segment : segments) {
+            analyzed = analyzed && segment.isAnalyzed();
+        }
+        if (analyzed) {
+            try {
+                dictionary = TermDictionary.load(dictionaryFile);
+            } catch (IOException e) {
+                System.err.println("Error reading term dictionary: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    // Share the mapped segments and dictionary of another instance, and
+    // return the same fields
+    private SegmentStore(List<Segment> segments, TermDictionary dictionary,
+            int fields) {
+        this.segments = segments;
+        this.dictionary = dictionary;
+        this.fields = fields;
+    }
+
+    /**
+     * @param dir Directory containing the segment files
+     * @param segmentNumber Number of the segment
+     * @return Path of the segment's files, without the column suffix
+     */
+    static String segmentPrefix(File dir, int segmentNumber) {
+        return new File(dir, String.format("%05d", segmentNumber)).getPath();
+    }
+
+    @Override
+    public void startFromTweetId(long id) {
+        startRange(id, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void startRange(long firstId, long lastId) {
+        scanLastId = lastId;
+        scanSegment = findSegment(firstId);
+        if (scanSegment < segments.size()) {
+            scanRow = segments.get(scanSegment).lowerBound(firstId);
+        }
+    }
+
+    @Override
+    public Tweet next() {
+        return next(null);
+    }
+
+    /**
+     * The segments are immutable, so the view's other fields can be read
+     * even after the scan has moved on. The view's stored analysis is
+     * reused too.
+     */
+    @Override
+    public Tweet next(Tweet view) {
+        if (scanSegment < 0) {
+            return null;
+        }
+        while (scanSegment < segments.size()
+                && scanRow >= segments.get(scanSegment).size()) {
+            scanSegment++;
+            scanRow = 0;
+        }
+        if (scanSegment >= segments.size()
+                || segments.get(scanSegment).getId(scanRow) > scanLastId) {
+            // No more tweets
+            scanSegment = -1;
+            return null;
+        }
+        if (view != null) {
+            readView(scanSegment, scanRow++, view);
+            return view;
+        }
+        try {
+            return getTweet(segments.get(scanSegment), scanRow++);
+        } catch (IOException e) {
+            System.err.println("Error reading segment: " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public Tweet fetchTweet(long id) {
+        Tweet tweet = find(id);
+        if (tweet == null && !tweetExists(id)) {
+            System.err.println("Error: empty result");
+        }
+        return tweet;
+    }
+
+    /**
+     * The segments are mapped into memory, so this is no faster than
+     * fetchTweet() for each tweet, except that missing tweets are not
+     * reported.
+     */
+    @Override
+    public Tweet[] fetchTweets(long[] ids, int offset, int count) {
+        Tweet[] tweets = new Tweet[count];
+        for (int i = 0; i < count; i++) {
+            tweets[i] = find(ids[offset + i]);
+        }
+        return tweets;
+    }
+
+    // The tweet with the given ID, or null if it doesn't exist or there was
+    // an error
+    private Tweet find(long id) {
+        int i = findSegment(id);
+        if (i < segments.size()) {
+            Segment segment = segments.get(i);
+            int row = segment.lowerBound(id);
+            if (row < segment.size() && segment.getId(row) == id) {
+                try {
+                    return getTweet(segment, row);
+                } catch (IOException e) {
+                    System.err.println("Error reading segment: "
+                            + e.getMessage());
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean tweetExists(long id) {
+        int i = findSegment(id);
+        if (i < segments.size()) {
+            Segment segment = segments.get(i);
+            int row = segment.lowerBound(id);
+            return row < segment.size() && segment.getId(row) == id;
+        }
+        return false;
+    }
+
+    /**
+     * The returned instance shares this instance's mapped segments and
+     * dictionary, which are read-only, but has its own scan position.
+     */
+    @Override
+    public TweetStore reopen() {
+        return new SegmentStore(segments, dictionary, fields);
+    }
+
+    @Override
+    public void setFields(int fields) {
+        this.fields = fields & Tweet.ALL_FIELDS;
+        scanSegment = -1;
+    }
+
+    /**
+     * Segments are unmapped when they are garbage collected, so this only
+     * ends the current scan.
+     */
+    @Override
+    public void close() {
+        scanSegment = -1;
+    }
+
+    // Read a tweet, with its stored analysis if there is one
+    private Tweet getTweet(Segment segment, int row) throws IOException {
+        Tweet tweet;
+        if (fields == Tweet.ID_AND_TEXT) {
+            tweet = new Tweet();
+            tweet.id = segment.getId(row);
+            tweet.text = segment.getText(row);
+        } else {
+            tweet = segment.getTweet(row);
+        }
+        tweet.missingFields = Tweet.ALL_FIELDS & ~fields;
+        if (dictionary != null) {
+            tweet.terms = segment.getTerms(row, dictionary);
+        }
+        return tweet;
+    }
+
+    // Read the ID, text and stored analysis of a tweet into a view, leaving
+    // the other fields to be read when used
+    private void readView(int segmentNumber, int row, Tweet view) {
+        Segment segment = segments.get(segmentNumber);
+        view.id = segment.getId(row);
+        view.text = segment.getText(row);
+        if (dictionary == null) {
+            view.terms = null;
+        } else {
+            if (view.terms == null) {
+                view.terms = new TweetTerms();
+            }
+            segment.readTerms(row, dictionary, view.terms);
+        }
+        view.fieldReader = (fields == Tweet.ID_AND_TEXT) ? null : fieldReader;
+        view.fieldRow = ((long) segmentNumber << 32) | row;
+        view.missingFields = Tweet.ALL_FIELDS & ~fields;
+    }
+
+    // Reads the other fields of views, from the segment number and row
+    // number packed into the view's row
+    private class SegmentFieldReader implements Tweet.FieldReader {
+        public void readFields(Tweet tweet, long row) {
+            try {
+                segments.get((int) (row >>> 32)).readFields((int) row, tweet);
+            } catch (IOException e) {
+                System.err.println("Error reading segment: " + e.getMessage());
+            }
+        }
+    }
+
+    // Binary search for the first segment whose last ID is at least id.
+    // Returns segments.size() if there is none.
+    private int findSegment(long id) {
+        int low = 0;
+        int high = segments.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (segments.get(mid).lastId() < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,218 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+
+/**
+ * Writes tweets into the segment files of a SegmentStore.
+ * Tweets must be appended in ascending ID order. A new segment is started
+ * every segmentSize tweets. See Segment for the file layout.
+ *
+ * The files of any segments already in the directory, including their
+ * stored analysis and the term dictionary (see SegmentAnalyzer), are
+ * removed before the first segment is written, so that a shorter copy
+ * doesn't leave old segments after its last one, and the new text isn't
+ * paired with the old analysis.
+ *
+ * @author Ben Saylor
+ */
+public class SegmentWriter implements Closeable {
+
+    // Names of the files of a segment: its number, then a column suffix
+    private static final Pattern SEGMENT_FILE
+        = Pattern.compile("\\d{5}\\..+");
+
+    private File dir;
+    private int segmentSize;
+    private int segmentNumber = 0;
+    private int rowsInSegment = 0;
+    private long lastId = Long.MIN_VALUE;
+    private boolean dirCleared = false;
+
+    // Column writers for the current segment, or null between segments
+    private DataOutputStream ids;
+    private StringColumnWriter text;
+    private StringColumnWriter createdAt;
+    private DataOutputStream retweeted;
+    private DataOutputStream retweetCount;
+    private DataOutputStream favorited;
+    private DataOutputStream userId;
+    private StringColumnWriter userScreenName;
+    private StringColumnWriter userName;
+    private DataOutputStream requestedId;
+
+    /**
+     * @param dir Directory to write the segments to (created if necessary)
+     * @param segmentSize Number of tweets per segment
+     */
+    public SegmentWriter(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Copy all tweets from the given store into segments in the given
+     * directory.
+     *
+     * @param source The store to copy from
+     * @param dir Directory to write the segments to (created if necessary)
+     * @param segmentSize Number of tweets per segment
+     * @return The number of tweets written
+     *
+     * @throws IOException
+     */
+    public static long copy(TweetStore source, File dir, int segmentSize)
+            throws IOException {
+        long count = 0;
+        try (SegmentWriter writer = new SegmentWriter(dir, segmentSize)) {
+            source.startFromTweetId(Long.MIN_VALUE);
+            Tweet view = new Tweet();
+            Tweet tweet;
+            while ((tweet = source.next(view)) != null) {
+                writer.append(tweet);
+                count++;
+                if (count % segmentSize == 0) {
+                    System.out.println(count + " tweets written");
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Append a tweet to the current segment.
+     *
+     * @param tweet The tweet, which must have a higher ID than the last one
+     *
+     * @throws IOException
+     */
+    public void append(Tweet tweet) throws IOException {
+        if (tweet.id <= lastId) {
+            throw new IllegalArgumentException(
+                    "Tweets must be appended in ascending ID order");
+        }
+        if (ids == null) {
+            openSegment();
+        }
+
+        ids.writeLong(tweet.id);
+        text.write(tweet.text);
+        createdAt.write(tweet.getCreatedAt());
+        retweeted.writeByte(tweet.isRetweeted() ? 1 : 0);
+        retweetCount.writeLong(tweet.getRetweetCount());
+        favorited.writeByte(tweet.isFavorited() ? 1 : 0);
+        userId.writeLong(tweet.getUser().id);
+        userScreenName.write(tweet.getUser().screen_name);
+        userName.write(tweet.getUser().name);
+        requestedId.writeLong(tweet.getRequestedId());
+
+        lastId = tweet.id;
+        rowsInSegment++;
+        if (rowsInSegment == segmentSize) {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Finish the current segment.
+     */
+    @Override
+    public void close() throws IOException {
+        closeSegment();
+        clearDir();
+    }
+
+    // Remove the files of the segments already in the directory, once
+    private void clearDir() throws IOException {
+        if (dirCleared) {
+            return;
+        }
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if ((SEGMENT_FILE.matcher(file.getName()).matches()
+                            || file.getName().equals(
+                                SegmentAnalyzer.DICTIONARY_FILE))
+                        && !file.delete()) {
+                    throw new IOException("Can't remove old segment file "
+                            + file);
+                }
+            }
+        }
+        dirCleared = true;
+    }
+
+    private void openSegment() throws IOException {
+        clearDir();
+        String prefix = SegmentStore.segmentPrefix(dir, segmentNumber);
+        ids = open(prefix + ".ids");
+        text = new StringColumnWriter(prefix + ".text");
+        createdAt = new StringColumnWriter(prefix + ".created_at");
+        retweeted = open(prefix + ".retweeted");
+        retweetCount = open(prefix + ".retweet_count");
+        favorited = open(prefix + ".favorited");
+        userId = open(prefix + ".user_id");
+        userScreenName = new StringColumnWriter(prefix + ".user_screen_name");
+        userName = new StringColumnWriter(prefix + ".user_name");
+        requestedId = open(prefix + ".requested_id");
+        rowsInSegment = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        if (ids == null) {
+            return;
+        }
+        ids.close();
+        text.close();
+        createdAt.close();
+        retweeted.close();
+        retweetCount.close();
+        favorited.close();
+        userId.close();
+        userScreenName.close();
+        userName.close();
+        requestedId.close();
+        ids = null;
+        segmentNumber++;
+    }
+
+    private static DataOutputStream open(String filename) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(filename), 65536));
+    }
+
+    // Writes a column of strings as an offsets file and a UTF-8 data file
+    private static class StringColumnWriter implements Closeable {
+        private DataOutputStream offsets;
+        private DataOutputStream data;
+        private int offset = 0;
+
+        StringColumnWriter(String filename) throws IOException {
+            offsets = open(filename + ".offsets");
+            data = open(filename);
+            offsets.writeInt(0);
+        }
+
+        void write(String s) throws IOException {
+            if (s != null) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                data.write(bytes);
+                offset += bytes.length;
+            }
+            offsets.writeInt(offset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            offsets.close();
+            data.close();
+        }
+    }
+}
@@ -0,0 +1,663 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.almworks.sqlite4java.SQLiteException;
+
+/**
+ * A tweet corpus split by tweet ID into shards, each a TweetDatabase in its
+ * own file, as an alternative to a single TweetDatabase.
+ *
+ * Each shard holds a fixed range of IDs, SHARD_WIDTH wide, and is named for
+ * its first and last ID, so a scan of a range of IDs opens only the shards
+ * that overlap it. A scan is read ahead by a pool of threads, each reading
+ * one shard into a bounded queue of batches, so that the next shards are
+ * being read while the current one is consumed; the scan takes the batches
+ * shard by shard, in ID order. Fetches by ID go to the shard holding the ID,
+ * through connections opened on the calling thread.
+ *
+ * Unlike a TweetDatabase or SegmentStore read through a view (see
+ * TweetSource.next(Tweet)), or a PrefetchingTweetStore, a scan allocates a
+ * new tweet for every row.
+ *
+ * Shards are created by importJsonFiles(), which inserts into each shard on
+ * its own thread.
+ *
+ * @author Ben Saylor
+ */
+public class ShardedTweetStore implements TweetStore {
+
+    /**
+     * Width of the range of IDs in a shard: one day of Twitter IDs, whose
+     * high bits are a timestamp in milliseconds
+     */
+    public static final long SHARD_WIDTH = 86400000L << 22;
+
+    /** Default number of shards read ahead at a time by a scan */
+    public static final int DEFAULT_SCAN_THREADS = 2;
+
+    // Number of tweets passed to or from a shard's thread at a time
+    private static final int BATCH_SIZE = 1000;
+
+    // Number of batches each shard's queue can hold
+    private static final int QUEUE_CAPACITY = 16;
+
+    // Marks the end of a shard on a queue
+    private static final List<Tweet> END_OF_SHARD = new ArrayList<>();
+
+    // Shard filenames: first ID and last ID
+    private static final Pattern SHARD_NAME
+        = Pattern.compile("(\\d+)-(\\d+)\\.sqlite");
+
+    private File dir;
+    private int scanThreads;
+    private int fields = Tweet.ALL_FIELDS;
+
+    // The shards in ID order, and this instance's connections to them, or
+    // null where not yet opened
+    private List<Shard> shards;
+    private TweetDatabase[] connections;
+
+    private ExecutorService executor = null;
+    private Scan scan = null;
+
+    /**
+     * Open the shards in the given directory, reading ahead
+     * DEFAULT_SCAN_THREADS shards at a time.
+     *
+     * @param dir Directory containing the shard files
+     */
+    public ShardedTweetStore(File dir) {
+        this(dir, DEFAULT_SCAN_THREADS);
+    }
+
+    /**
+     * Open the shards in the given directory.
+     *
+     * @param dir Directory containing the shard files
+     * @param scanThreads Number of shards read ahead at a time by a scan
+     */
+    public ShardedTweetStore(File dir, int scanThreads) {
+        this.dir = dir;
+        this.scanThreads = Math.max(1, scanThreads);
+        shards = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Matcher matcher = SHARD_NAME.matcher(file.getName());
+                if (matcher.matches()) {
+                    shards.add(new Shard(file,
+                                Long.parseLong(matcher.group(1)),
+                                Long.parseLong(matcher.group(2))));
+                }
+            }
+        }
+        sortShards();
+        connections = new TweetDatabase[shards.size()];
+    }
+
+    // Share the shards of another instance, and the tweet ID indexes of its
+    // connections
+    private ShardedTweetStore(ShardedTweetStore other) {
+        this.dir = other.dir;
+        this.scanThreads = other.scanThreads;
+        this.fields = other.fields;
+        this.shards = other.shards;
+        connections = new TweetDatabase[shards.size()];
+        for (int i = 0; i < connections.length; i++) {
+            if (other.connections[i] != null) {
+                connections[i] = (TweetDatabase) other.connections[i].reopen();
+            }
+        }
+    }
+
+    /**
+     * @return The number of shards
+     */
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    @Override
+    public void startFromTweetId(long id) {
+        startRange(id, Long.MAX_VALUE);
+    }
+
+    /**
+     * Only the shards overlapping the range are read.
+     */
+    @Override
+    public void startRange(long firstId, long lastId) {
+        stopScan();
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(scanThreads,
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "shard-scan");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+
+        // Tasks run in the order submitted, so the shards are read in order
+        // with up to scanThreads of them at a time
+        scan = new Scan();
+        for (int i = findShard(firstId);
+                i < shards.size() && shards.get(i).firstId <= lastId; i++) {
+            BlockingQueue<List<Tweet>> queue
+                = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+            scan.queues.add(queue);
+            scan.tasks.add(executor.submit(new ShardReader(shards.get(i),
+                            Math.max(firstId, shards.get(i).firstId),
+                            Math.min(lastId, shards.get(i).lastId), fields,
+                            queue)));
+        }
+    }
+
+    @Override
+    public Tweet next() {
+        if (scan == null) {
+            return null;
+        }
+        try {
+            while (scan.batch == null || scan.position == scan.batch.size()) {
+                if (scan.shard == scan.queues.size()) {
+                    // No more tweets
+                    scan = null;
+                    return null;
+                }
+                scan.batch = scan.queues.get(scan.shard).take();
+                scan.position = 0;
+                if (scan.batch == END_OF_SHARD) {
+                    scan.shard++;
+                    scan.batch = null;
+                }
+            }
+        } catch (InterruptedException e) {
+            System.err.println("Scan interrupted");
+            Thread.currentThread().interrupt();
+            stopScan();
+            return null;
+        }
+        return scan.batch.get(scan.position++);
+    }
+
+    /**
+     * Tweets are read on other threads, so the view is not used.
+     */
+    @Override
+    public Tweet next(Tweet view) {
+        return next();
+    }
+
+    @Override
+    public Tweet fetchTweet(long id) {
+        TweetDatabase shard = connect(id);
+        if (shard == null) {
+            System.err.println("Error: empty result");
+            return null;
+        }
+        return shard.fetchTweet(id);
+    }
+
+    /**
+     * The IDs are split into runs by shard, each fetched with one call to
+     * the shard's fetchTweets().
+     */
+    @Override
+    public Tweet[] fetchTweets(long[] ids, int offset, int count) {
+        Tweet[] tweets = new Tweet[count];
+        int i = 0;
+        while (i < count) {
+            int shardIndex = findShard(ids[offset + i]);
+            if (shardIndex == shards.size()
+                    || shards.get(shardIndex).firstId > ids[offset + i]) {
+                // Not in any shard
+                i++;
+                continue;
+            }
+            long lastId = shards.get(shardIndex).lastId;
+            int end = i;
+            while (end < count && ids[offset + end] <= lastId) {
+                end++;
+            }
+            Tweet[] fetched = connect(shardIndex).fetchTweets(
+                    ids, offset + i, end - i);
+            System.arraycopy(fetched, 0, tweets, i, end - i);
+            i = end;
+        }
+        return tweets;
+    }
+
+    @Override
+    public boolean tweetExists(long id) {
+        TweetDatabase shard = connect(id);
+        return shard != null && shard.tweetExists(id);
+    }
+
+    @Override
+    public void setFields(int fields) {
+        stopScan();
+        this.fields = fields;
+        for (TweetDatabase connection : connections) {
+            if (connection != null) {
+                connection.setFields(fields);
+            }
+        }
+    }
+
+    /**
+     * The returned instance shares the tweet ID indexes of the shards this
+     * instance has connected to.
+     */
+    @Override
+    public TweetStore reopen() {
+        return new ShardedTweetStore(this);
+    }
+
+    @Override
+    public void close() {
+        stopScan();
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        for (int i = 0; i < connections.length; i++) {
+            if (connections[i] != null) {
+                connections[i].close();
+                connections[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Convert each shard to the current schema version in place (see
+     * TweetDatabase.migrate()), one at a time.
+     *
+     * @return true if every shard was converted or was already current
+     */
+    public boolean migrate() {
+        stopScan();
+        boolean migrated = true;
+        for (int i = 0; i < shards.size(); i++) {
+            if (connections[i] != null) {
+                connections[i].close();
+                connections[i] = null;
+            }
+            migrated &= new TweetDatabase(shards.get(i).file).migrate();
+        }
+        return migrated;
+    }
+
+    /**
+     * Import the given compressed JSON files into the shards, creating the
+     * directory and any shards that don't exist. Decompression and JSON
+     * decoding are done by background threads, as for
+     * TweetDatabase.importJsonFiles(), and each shard's tweets are inserted
+     * by a thread of its own. Tweets with duplicate IDs are ignored.
+     *
+     * @param filenames The names of the *.json.gz files to import
+     * @param numThreads Number of threads for decompression and decoding
+     * @param transactionSize Number of tweets to insert per transaction
+     */
+    public void importJsonFiles(String[] filenames, int numThreads,
+            int transactionSize) {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            System.err.println("Error: can't create " + dir);
+            return;
+        }
+        stopScan();
+        int numReaders = Math.max(1, Math.min(filenames.length,
+                    numThreads / 4));
+        int numDecoders = Math.max(1, numThreads - numReaders);
+        JsonImportPipeline pipeline = new JsonImportPipeline(
+                new Importer(transactionSize), numReaders, numDecoders);
+        pipeline.importFiles(filenames);
+    }
+
+    /**
+     * Writes tweets into the shards for the import pipeline. Each shard
+     * written to gets a thread and a bounded queue of batches; insert()
+     * splits each batch by shard and queues the parts.
+     */
+    class Importer {
+        private int transactionSize;
+        private ArrayList<ShardWriter> writers = new ArrayList<>();
+        private ArrayList<Thread> threads = new ArrayList<>();
+
+        // The writer of each shard, by shard index, or null if none yet
+        private ShardWriter[] writerByShard;
+
+        Importer(int transactionSize) {
+            this.transactionSize = Math.max(1, transactionSize);
+            writerByShard = new ShardWriter[shards.size()];
+        }
+
+        /**
+         * Queue a batch of tweets for insertion into their shards.
+         *
+         * @param tweets The tweets
+         *
+         * @throws InterruptedException
+         */
+        void insert(List<Tweet> tweets) throws InterruptedException {
+            ArrayList<ShardWriter> batchWriters = new ArrayList<>();
+            for (Tweet tweet : tweets) {
+                ShardWriter writer = writerFor(tweet.id);
+                if (writer.batch.isEmpty()) {
+                    batchWriters.add(writer);
+                }
+                writer.batch.add(tweet);
+            }
+            for (ShardWriter writer : batchWriters) {
+                writer.queue.put(writer.batch);
+                writer.batch = new ArrayList<>();
+            }
+        }
+
+        /**
+         * Wait for the shard threads to insert everything queued, and print
+         * the totals.
+         *
+         * @throws InterruptedException
+         */
+        void finish() throws InterruptedException {
+            try {
+                for (ShardWriter writer : writers) {
+                    writer.queue.put(END_OF_SHARD);
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } finally {
+                for (Thread thread : threads) {
+                    thread.interrupt();
+                }
+            }
+            long imported = 0;
+            long duplicates = 0;
+            for (ShardWriter writer : writers) {
+                imported += writer.imported;
+                duplicates += writer.duplicates;
+            }
+            System.out.println(imported + " tweets imported into "
+                    + writers.size() + " shards, " + duplicates
+                    + " duplicate tweet IDs ignored");
+        }
+
+        // The writer of the shard for the given ID, creating the shard and
+        // starting its thread if needed
+        private ShardWriter writerFor(long id) {
+            int index = findShard(id);
+            if (index == shards.size() || shards.get(index).firstId > id) {
+                long firstId = id - id % SHARD_WIDTH;
+                long lastId = firstId + (SHARD_WIDTH - 1);
+                Shard shard = new Shard(new File(dir, String.format(
+                                "%019d-%019d.sqlite", firstId, lastId)),
+                        firstId, lastId);
+                shards.add(shard);
+                sortShards();
+                index = shards.indexOf(shard);
+
+                // Keep the connections and writers in shard order
+                connections = insertNull(connections, index);
+                writerByShard = insertNull(writerByShard, index);
+            }
+            if (writerByShard[index] == null) {
+                ShardWriter writer = new ShardWriter(shards.get(index),
+                        transactionSize);
+                Thread thread = new Thread(writer, "shard-import");
+                thread.setDaemon(true);
+                thread.start();
+                writerByShard[index] = writer;
+                writers.add(writer);
+                threads.add(thread);
+            }
+            return writerByShard[index];
+        }
+    }
+
+    // Inserts the queued batches of tweets into one shard, on its own thread
+    private static class ShardWriter implements Runnable {
+        final Shard shard;
+        final int transactionSize;
+        final BlockingQueue<List<Tweet>> queue
+            = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+        // The batch being built by Importer.insert()
+        List<Tweet> batch = new ArrayList<>();
+
+        // Counts, read after the thread has finished
+        int imported = 0;
+        int duplicates = 0;
+
+        ShardWriter(Shard shard, int transactionSize) {
+            this.shard = shard;
+            this.transactionSize = transactionSize;
+        }
+
+        public void run() {
+            boolean created = !shard.file.exists();
+            TweetDatabase db = new TweetDatabase(shard.file);
+            if (created) {
+                db.createTable();
+            }
+            db.startImport();
+            int uncommitted = 0;
+            boolean failed = false;
+            try {
+                db.begin();
+                List<Tweet> tweets;
+                while ((tweets = queue.take()) != END_OF_SHARD) {
+                    for (Tweet tweet : tweets) {
+                        try {
+                            db.insertTweet(tweet);
+                        } catch (RuntimeException e) {
+                            // Such as a tweet without a user; skip it
+                            System.err.println("Error inserting tweet "
+                                    + tweet.id + " into " + shard.file
+                                    + ": " + e);
+                            continue;
+                        }
+                        uncommitted++;
+                        if (uncommitted >= transactionSize) {
+                            db.commit();
+                            db.begin();
+                            uncommitted = 0;
+                        }
+                    }
+                }
+            } catch (SQLiteException | RuntimeException e) {
+                System.err.println("Error inserting tweet into "
+                        + shard.file + ": " + e.getMessage());
+                failed = true;
+            } catch (InterruptedException e) {
+                // Import was aborted
+            } finally {
+                try {
+                    db.commit();
+                } catch (SQLiteException e) {
+                    System.err.println(e.getMessage());
+                }
+                db.finishImport();
+                imported = db.getTweetsImported();
+                duplicates = db.getDuplicates();
+                db.close();
+            }
+            System.out.println(shard.file.getName() + ": " + imported
+                    + " tweets imported, " + duplicates
+                    + " duplicate tweet IDs ignored");
+            if (failed) {
+                dropRemaining();
+            }
+        }
+
+        // Take and drop the batches still to come, so that
+        // Importer.insert() never waits on a queue that nobody takes from
+        private void dropRemaining() {
+            try {
+                while (queue.take() != END_OF_SHARD) {
+                    // Dropped
+                }
+            } catch (InterruptedException e) {
+                // Import was aborted
+            }
+        }
+    }
+
+    // Reads the tweets of one shard in a range of IDs into a queue, on a
+    // thread of the scan's executor
+    private static class ShardReader implements Runnable {
+        final Shard shard;
+        final long firstId;
+        final long lastId;
+        final int fields;
+        final BlockingQueue<List<Tweet>> queue;
+
+        ShardReader(Shard shard, long firstId, long lastId, int fields,
+                BlockingQueue<List<Tweet>> queue) {
+            this.shard = shard;
+            this.firstId = firstId;
+            this.lastId = lastId;
+            this.fields = fields;
+            this.queue = queue;
+        }
+
+        public void run() {
+            TweetDatabase db = new TweetDatabase(shard.file);
+            try {
+                if (!db.isOpen()) {
+                    // The error was reported when opening; end the shard
+                    // rather than leave next() waiting
+                    queue.put(END_OF_SHARD);
+                    return;
+                }
+                db.setFields(fields);
+                db.startRange(firstId, lastId);
+                List<Tweet> batch = new ArrayList<>(BATCH_SIZE);
+                Tweet tweet;
+                while ((tweet = db.next()) != null) {
+                    batch.add(tweet);
+                    if (batch.size() == BATCH_SIZE) {
+                        queue.put(batch);
+                        batch = new ArrayList<>(BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    queue.put(batch);
+                }
+                queue.put(END_OF_SHARD);
+            } catch (InterruptedException e) {
+                // The scan was stopped
+            } catch (RuntimeException e) {
+                // End the shard rather than leave next() waiting
+                System.err.println("Error reading tweets from "
+                        + shard.file.getName() + ": " + e);
+                try {
+                    queue.put(END_OF_SHARD);
+                } catch (InterruptedException e2) {
+                    // The scan was stopped
+                }
+            } finally {
+                db.close();
+            }
+        }
+    }
+
+    // The queues of the shards of a scan, and the position in them
+    private static class Scan {
+        final ArrayList<BlockingQueue<List<Tweet>>> queues = new ArrayList<>();
+        final ArrayList<Future<?>> tasks = new ArrayList<>();
+        int shard = 0;
+        List<Tweet> batch = null;
+        int position = 0;
+    }
+
+    // A shard's file and range of IDs
+    private static class Shard {
+        final File file;
+        final long firstId;
+        final long lastId;
+
+        Shard(File file, long firstId, long lastId) {
+            this.file = file;
+            this.firstId = firstId;
+            this.lastId = lastId;
+        }
+    }
+
+    // Stop the readers of the current scan, if any
+    private void stopScan() {
+        if (scan != null) {
+            for (Future<?> task : scan.tasks) {
+                task.cancel(true);
+            }
+            scan = null;
+        }
+    }
+
+    // Index of the shard whose range contains the ID, or else of the first
+    // shard after it, or shards.size() if there is none
+    private int findShard(long id) {
+        int low = 0;
+        int high = shards.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (shards.get(middle).lastId < id) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // This instance's connection to the shard holding the ID, or null if no
+    // shard holds it
+    private TweetDatabase connect(long id) {
+        int index = findShard(id);
+        if (index == shards.size() || shards.get(index).firstId > id) {
+            return null;
+        }
+        return connect(index);
+    }
+
+    private TweetDatabase connect(int index) {
+        if (connections[index] == null) {
+            connections[index] = new TweetDatabase(shards.get(index).file);
+            connections[index].setFields(fields);
+        }
+        return connections[index];
+    }
+
+    private void sortShards() {
+        Collections.sort(shards, new Comparator<Shard>() {
+            public int compare(Shard shard1, Shard shard2) {
+                return Long.compare(shard1.firstId, shard2.firstId);
+            }
+        });
+    }
+
+    // Copy of the array with a null inserted at the index
+    private static <T> T[] insertNull(T[] array, int index) {
+        T[] result = Arrays.copyOf(array, array.length + 1);
+        System.arraycopy(array, index, result, index + 1,
+                array.length - index);
+        result[index] = null;
+        return result;
+    }
+}
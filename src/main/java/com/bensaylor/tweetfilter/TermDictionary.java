@@ -0,0 +1,107 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Maps normalized terms to dense integer IDs and back.
+ * The dictionary is saved as a text file with one term per line, where the
+ * term on line n (counting from 0) has ID n.
+ *
+ * A dictionary may be read from several threads at once, as long as no
+ * terms are being added.
+ *
+ * @author Ben Saylor
+ */
+public class TermDictionary {
+
+    private HashMap<String,Integer> ids = new HashMap<>();
+    private ArrayList<String> terms = new ArrayList<>();
+
+    /**
+     * @param term A normalized term
+     * @return The term's ID, or -1 if it is not in the dictionary
+     */
+    public int getId(String term) {
+        Integer id = ids.get(term);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Add a term to the dictionary if it is not already there.
+     *
+     * @param term A normalized term
+     * @return The term's ID
+     */
+    public int addTerm(String term) {
+        Integer id = ids.get(term);
+        if (id == null) {
+            id = terms.size();
+            terms.add(term);
+            ids.put(term, id);
+        }
+        return id;
+    }
+
+    /**
+     * @param id A term ID
+     * @return The term with the given ID
+     */
+    public String getTerm(int id) {
+        return terms.get(id);
+    }
+
+    /**
+     * @return The number of terms in the dictionary
+     */
+    public int size() {
+        return terms.size();
+    }
+
+    /**
+     * Write the dictionary to a file.
+     *
+     * @param file The file to write
+     *
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                        new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (String term : terms) {
+                writer.print(term);
+                writer.print('\n');
+            }
+        }
+    }
+
+    /**
+     * Read a dictionary written by save().
+     *
+     * @param file The file to read
+     * @return The dictionary
+     *
+     * @throws IOException
+     */
+    public static TermDictionary load(File file) throws IOException {
+        TermDictionary dictionary = new TermDictionary();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                dictionary.ids.put(line, dictionary.terms.size());
+                dictionary.terms.add(line);
+            }
+        }
+        return dictionary;
+    }
+}
@@ -0,0 +1,38 @@
+package com.bensaylor.tweetfilter;
+
+import java.util.Arrays;
+
+/**
+ * Term vector with primitive weights, indexed by term ID.
+ * Terms that have never been added have weight 0.
+ *
+ * @author Ben Saylor
+ */
+class TermVector {
+
+    private double[] weights = new double[64];
+
+    /**
+     * @param termId A term ID
+     * @return The weight of the term
+     */
+    double get(int termId) {
+        return (termId < weights.length) ? weights[termId] : 0.0;
+    }
+
+    /**
+     * Add to the weight of a term.
+     *
+     * @param termId A term ID
+     * @param weight The weight to add
+     * @return The new weight of the term
+     */
+    double add(int termId, double weight) {
+        if (termId >= weights.length) {
+            weights = Arrays.copyOf(weights,
+                    Math.max(termId + 1, 2 * weights.length));
+        }
+        weights[termId] += weight;
+        return weights[termId];
+    }
+}
@@ -0,0 +1,244 @@
+package com.bensaylor.tweetfilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Using org.tartarus.snowball directly instead of
+// weka.core.stemmers.SnowballStemmer, which causes java.util.zip.ZipException
+import org.tartarus.snowball.SnowballStemmer;
+import org.tartarus.snowball.ext.porterStemmer;
+
+/**
+ * Text processing shared by the query-based filters and SegmentAnalyzer.
+ * SegmentAnalyzer stores the terms produced here as term IDs ahead of time,
+ * so the filters get exactly the same terms whether they analyze a tweet
+ * themselves or read its stored terms.
+ *
+ * analyze() tokenizes a tweet in one pass with a TweetTokenizer and keeps
+ * the results until the next call. Terms are normalized only when they are
+ * asked for, so tweets rejected by isRetweet() or hasNonEnglishChars() are
+ * never stemmed.
+ *
+ * A TextAnalyzer is not thread-safe; each filter has its own. Normalized
+ * terms are cached in a NormalizationCache, which all analyzers share by
+ * default.
+ *
+ * @author Ben Saylor
+ */
+class TextAnalyzer {
+
+    private TweetTokenizer tokenizer;
+    private SnowballStemmer stemmer;
+    private NormalizationCache normalizationCache;
+    private NormalizationCache.Token token;
+
+    // Results of the last analyze() call
+    private boolean retweet;
+    private boolean nonEnglish;
+    private int termCount;
+    private String[] terms;        // Normalized terms, or null until needed
+    private int[] termIds;         // Stored term IDs, or null
+    private TermDictionary dictionary;
+
+    /**
+     * Create an analyzer using the shared normalization cache.
+     */
+    TextAnalyzer() {
+        this(NormalizationCache.getShared());
+    }
+
+    /**
+     * @param normalizationCache The cache of normalized terms to use
+     */
+    TextAnalyzer(NormalizationCache normalizationCache) {
+        this.normalizationCache = normalizationCache;
+        tokenizer = new TweetTokenizer();
+        stemmer = new porterStemmer();
+        token = new NormalizationCache.Token();
+        terms = new String[32];
+    }
+
+    /**
+     * Analyze the given text.
+     *
+     * Preprocessing replaces links with "http" and punctuation with spaces
+     * before tokenizing.
+     *
+     * @param text Tweet text
+     * @param preprocess Whether to preprocess the text
+     */
+    void analyze(String text, boolean preprocess) {
+        tokenizer.tokenize(text, preprocess);
+        retweet = tokenizer.isRetweet();
+        nonEnglish = tokenizer.hasNonEnglishChars();
+        resetTerms(tokenizer.getTokenCount());
+        termIds = null;
+        dictionary = null;
+    }
+
+    /**
+     * Analyze the given tweet, using its stored analysis if it has one.
+     *
+     * @param tweet The tweet
+     * @param preprocess Whether to preprocess the text
+     * @see #analyze(String, boolean)
+     */
+    void analyze(Tweet tweet, boolean preprocess) {
+        if (tweet.terms == null) {
+            analyze(tweet.text, preprocess);
+            return;
+        }
+        retweet = tweet.terms.retweet;
+        nonEnglish = tweet.terms.nonEnglish;
+        termIds = preprocess
+            ? tweet.terms.preprocessedTerms : tweet.terms.terms;
+        resetTerms(preprocess
+                ? tweet.terms.preprocessedTermCount : tweet.terms.termCount);
+        dictionary = tweet.terms.dictionary;
+    }
+
+    /**
+     * Analyze the given text, with and without preprocessing, and return the
+     * results in the form stored by SegmentAnalyzer, so that other analyzers
+     * can use them through analyze(Tweet, boolean) without analyzing the
+     * text again.
+     *
+     * @param text Tweet text
+     * @param dictionary Dictionary to add the terms to
+     * @return The analysis, with term IDs in the dictionary
+     */
+    TweetTerms analyzeToTerms(String text, TermDictionary dictionary) {
+        TweetTerms result = new TweetTerms();
+        result.dictionary = dictionary;
+        analyze(text, false);
+        result.retweet = retweet;
+        result.nonEnglish = nonEnglish;
+        result.terms = termIds(dictionary);
+        result.termCount = result.terms.length;
+        analyze(text, true);
+        result.preprocessedTerms = termIds(dictionary);
+        result.preprocessedTermCount = result.preprocessedTerms.length;
+        return result;
+    }
+
+    /**
+     * "RT" typically indicates a retweet with no information beyond the
+     * original tweet.
+     *
+     * @return true if the text starts with "RT"
+     */
+    boolean isRetweet() {
+        return retweet;
+    }
+
+    /**
+     * Try to detect most non-English tweets by looking for non-ASCII
+     * characters, other than some that sometimes occur in English.
+     *
+     * @return true if the text has non-English characters
+     */
+    boolean hasNonEnglishChars() {
+        return nonEnglish;
+    }
+
+    /**
+     * @return The number of terms in the text
+     */
+    int getTermCount() {
+        return termCount;
+    }
+
+    /**
+     * @param i Term number, from 0 to getTermCount() - 1
+     * @return The i'th normalized term of the text
+     */
+    String getTerm(int i) {
+        if (terms[i] == null) {
+            if (termIds != null) {
+                terms[i] = dictionary.getTerm(termIds[i]);
+            } else {
+                int start = tokenizer.getTokenStart(i);
+                terms[i] = normalize(tokenizer.getTokenChars(), start,
+                        tokenizer.getTokenEnd(i) - start);
+            }
+        }
+        return terms[i];
+    }
+
+    /**
+     * @param i Token number, from 0 to getTermCount() - 1
+     * @return The i'th token of the text, before normalization. The text
+     * must have been analyzed with analyze(String, boolean).
+     */
+    String getToken(int i) {
+        int start = tokenizer.getTokenStart(i);
+        return new String(tokenizer.getTokenChars(), start,
+                tokenizer.getTokenEnd(i) - start);
+    }
+
+    /**
+     * @param term A token
+     * @return The lowercased, stemmed token
+     */
+    String normalize(String term) {
+        return normalize(term.toCharArray(), 0, term.length());
+    }
+
+    /**
+     * @param text Text such as a topic title
+     * @return The normalized tokens of the text, in order
+     */
+    ArrayList<String> terms(String text) {
+        analyze(text, false);
+        ArrayList<String> result = new ArrayList<>(termCount);
+        for (int i = 0; i < termCount; i++) {
+            result.add(getTerm(i));
+        }
+        return result;
+    }
+
+    /**
+     * @param text Text such as a topic title
+     * @return The tokens of the text before normalization, in order
+     */
+    ArrayList<String> tokens(String text) {
+        analyze(text, false);
+        ArrayList<String> result = new ArrayList<>(termCount);
+        for (int i = 0; i < termCount; i++) {
+            result.add(getToken(i));
+        }
+        return result;
+    }
+
+    // IDs of the terms of the analyzed text, added to the dictionary
+    private int[] termIds(TermDictionary dictionary) {
+        int[] ids = new int[termCount];
+        for (int i = 0; i < termCount; i++) {
+            ids[i] = dictionary.addTerm(getTerm(i));
+        }
+        return ids;
+    }
+
+    // Forget the previous terms and make room for the given number
+    private void resetTerms(int count) {
+        Arrays.fill(terms, 0, termCount, null);
+        termCount = count;
+        if (terms.length < termCount) {
+            terms = new String[Math.max(termCount, 2 * terms.length)];
+        }
+    }
+
+    // Normalize the token in the given range of chars, allocating only if it
+    // is not in the cache
+    private String normalize(char[] chars, int offset, int length) {
+        String normalized = normalizationCache.get(
+                token.set(chars, offset, length));
+        if (normalized == null) {
+            stemmer.setCurrent(new String(chars, offset, length).toLowerCase());
+            stemmer.stem();
+            normalized = stemmer.getCurrent();
+            normalizationCache.put(token, normalized);
+        }
+        return normalized;
+    }
+}
@@ -0,0 +1,186 @@
+package com.bensaylor.tweetfilter;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Counters and latencies for one topic within a filtering run, kept by its
+ * TopicRun and read by RunMetrics.
+ *
+ * The allocation count covers only the filter's decide() and feedback()
+ * calls, measured on the thread that makes them, and is -1 if the JVM can't
+ * measure per-thread allocation. The heap delta is the change in used heap
+ * from the topic's start to its end; it includes garbage collections and
+ * any other topics running at the same time.
+ *
+ * Each topic is updated by one thread, but may be read by another while the
+ * run is in progress, so the methods are synchronized.
+ *
+ * @author Ben Saylor
+ */
+class TopicMetrics {
+
+    private static final ThreadMXBean threads
+        = ManagementFactory.getThreadMXBean();
+    private static final MemoryMXBean memory
+        = ManagementFactory.getMemoryMXBean();
+    private static final boolean allocationSupported = initAllocation();
+
+    final int topicNumber;
+    final LatencyHistogram decideLatencies = new LatencyHistogram();
+    final LatencyHistogram feedbackLatencies = new LatencyHistogram();
+
+    private long tweets = 0;
+    private long retrieved = 0;
+    private long startTime = 0;
+    private long endTime = 0;
+    private long allocatedBytes = 0;
+    private long heapUsedAtStart = 0;
+    private long heapUsedDelta = 0;
+
+    /**
+     * @param topicNumber The number of the topic
+     */
+    TopicMetrics(int topicNumber) {
+        this.topicNumber = topicNumber;
+    }
+
+    /**
+     * @return The number of bytes allocated so far by the current thread, or
+     * -1 if this can't be measured
+     */
+    static long threadAllocatedBytes() {
+        if (!allocationSupported) {
+            return -1;
+        }
+        return ((com.sun.management.ThreadMXBean) threads)
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * @return The number of bytes of heap in use
+     */
+    static long heapUsed() {
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Record the start of the topic.
+     */
+    synchronized void started() {
+        startTime = System.nanoTime();
+        heapUsedAtStart = heapUsed();
+    }
+
+    /**
+     * Record the end of the topic. Only the first call has an effect.
+     */
+    synchronized void finished() {
+        if (endTime == 0) {
+            endTime = System.nanoTime();
+            heapUsedDelta = heapUsed() - heapUsedAtStart;
+        }
+    }
+
+    /**
+     * Record a decision by the filter.
+     *
+     * @param nanos Time taken by decide()
+     * @param retrieve The retrieval decision
+     */
+    synchronized void decided(long nanos, boolean retrieve) {
+        decideLatencies.record(nanos);
+        tweets++;
+        if (retrieve) {
+            retrieved++;
+        }
+    }
+
+    /**
+     * Record a call to the filter's feedback().
+     *
+     * @param nanos Time taken by feedback()
+     */
+    void feedbackGiven(long nanos) {
+        feedbackLatencies.record(nanos);
+    }
+
+    /**
+     * @param bytes Bytes allocated by a filter call, or a negative number if
+     * unknown
+     */
+    synchronized void allocated(long bytes) {
+        if (bytes < 0 || allocatedBytes < 0) {
+            allocatedBytes = -1;
+        } else {
+            allocatedBytes += bytes;
+        }
+    }
+
+    /**
+     * @return The number of tweets decided
+     */
+    synchronized long getTweets() {
+        return tweets;
+    }
+
+    /**
+     * @return The number of tweets retrieved
+     */
+    synchronized long getRetrieved() {
+        return retrieved;
+    }
+
+    /**
+     * @return Seconds from the start of the topic to its end, or to now if it
+     * hasn't ended, or 0 if it hasn't started
+     */
+    synchronized double getSeconds() {
+        if (startTime == 0) {
+            return 0.0;
+        }
+        long end = (endTime == 0) ? System.nanoTime() : endTime;
+        return (end - startTime) / 1e9;
+    }
+
+    /**
+     * @return true if the topic has ended
+     */
+    synchronized boolean isFinished() {
+        return endTime != 0;
+    }
+
+    /**
+     * @return Bytes allocated by the filter for this topic, or -1 if unknown
+     */
+    synchronized long getAllocatedBytes() {
+        return allocationSupported ? allocatedBytes : -1;
+    }
+
+    /**
+     * @return The change in used heap over the topic, or 0 if it hasn't
+     * ended
+     */
+    synchronized long getHeapUsedDelta() {
+        return heapUsedDelta;
+    }
+
+    private static boolean initAllocation() {
+        try {
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                com.sun.management.ThreadMXBean bean
+                    = (com.sun.management.ThreadMXBean) threads;
+                if (bean.isThreadAllocatedMemorySupported()) {
+                    if (!bean.isThreadAllocatedMemoryEnabled()) {
+                        bean.setThreadAllocatedMemoryEnabled(true);
+                    }
+                    return true;
+                }
+            }
+        } catch (UnsupportedOperationException e) {
+        } catch (NoClassDefFoundError e) {
+        }
+        return false;
+    }
+}
@@ -0,0 +1,118 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+/**
+ * Temporary output and log files for each topic of a run.
+ * When topics are not run one after another, each topic writes to its own
+ * files, which are copied to the real output and log files in topic order
+ * once all topics are finished. The files are written through an
+ * AsyncOutput.
+ *
+ * @author Ben Saylor
+ */
+class TopicOutputFiles implements Closeable {
+
+    private ArrayList<File> outputFiles = new ArrayList<>();
+    private ArrayList<File> logFiles = new ArrayList<>();
+    private ArrayList<PrintWriter> writers = new ArrayList<>();
+    private ArrayList<PrintWriter> logWriters = new ArrayList<>();
+
+    /**
+     * Create the temporary files.
+     *
+     * @param numTopics Number of topics in the run
+     * @param logging Whether to create log files as well as output files
+     * @param async The AsyncOutput to write the files through, which must
+     * stay open until this is closed
+     *
+     * @throws IOException
+     */
+    TopicOutputFiles(int numTopics, boolean logging, AsyncOutput async)
+            throws IOException {
+        try {
+            for (int i = 0; i < numTopics; i++) {
+                File outputFile = File.createTempFile("tweetfilter", ".run");
+                outputFile.deleteOnExit();
+                outputFiles.add(outputFile);
+                writers.add(async.open(
+                            AsyncOutput.openFile(outputFile.getPath())));
+                if (logging) {
+                    File logFile = File.createTempFile("tweetfilter", ".log");
+                    logFile.deleteOnExit();
+                    logFiles.add(logFile);
+                    logWriters.add(async.open(
+                                AsyncOutput.openFile(logFile.getPath())));
+                } else {
+                    logWriters.add(null);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param topicIndex Index of the topic in the run's topic list
+     * @return The output writer for the topic
+     */
+    PrintWriter getWriter(int topicIndex) {
+        return writers.get(topicIndex);
+    }
+
+    /**
+     * @param topicIndex Index of the topic in the run's topic list
+     * @return The log writer for the topic, or null if logging is disabled
+     */
+    PrintWriter getLog(int topicIndex) {
+        return logWriters.get(topicIndex);
+    }
+
+    /**
+     * Close the topic's writers and append its output and log to the given
+     * streams.
+     *
+     * @param topicIndex Index of the topic in the run's topic list
+     * @param output Stream to append the topic's output to
+     * @param log Stream to append the topic's log to, or null
+     *
+     * @throws IOException
+     */
+    void copyTo(int topicIndex, OutputStream output, OutputStream log)
+            throws IOException {
+        writers.get(topicIndex).close();
+        Files.copy(outputFiles.get(topicIndex).toPath(), output);
+        if (log != null && logWriters.get(topicIndex) != null) {
+            logWriters.get(topicIndex).close();
+            Files.copy(logFiles.get(topicIndex).toPath(), log);
+        }
+    }
+
+    /**
+     * Close all writers and delete the temporary files.
+     */
+    @Override
+    public void close() {
+        for (PrintWriter writer : writers) {
+            writer.close();
+        }
+        for (PrintWriter logWriter : logWriters) {
+            if (logWriter != null) {
+                logWriter.close();
+            }
+        }
+        for (File file : outputFiles) {
+            file.delete();
+        }
+        for (File file : logFiles) {
+            file.delete();
+        }
+    }
+}
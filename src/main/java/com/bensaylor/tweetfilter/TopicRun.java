@@ -0,0 +1,216 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The state of one topic within a filtering run: the topic, the filter
+ * instance assigned to it, its relevance judgments, and the writer that
+ * receives its retrieved tweets.
+ *
+ * A TopicRun is driven by feeding it tweets in ascending ID order, starting
+ * with the first tweet whose ID is at least the topic's queryTweetTime:
+ * start() is called once with that tweet, then process() is called for that
+ * tweet and each subsequent one until accepts() returns false, and finish()
+ * is called at the end. The tweets may be views that are reused for the
+ * next tweet (see TweetSource.next(Tweet)).
+ *
+ * @author Ben Saylor
+ */
+class TopicRun {
+
+    final Topic topic;
+    final Filter filter;
+
+    private final Qrels.TopicQrels judgments;
+    private final String runTag;
+    private final PrintWriter writer;
+    private int[] feedbackCountByRelevance;
+    private TopicMetrics metrics = null;
+
+    // Reused for the filter's decision on every tweet
+    private final FilterDecision decision = new FilterDecision();
+
+    /**
+     * @param topic The topic to run
+     * @param filter The filter to use (setTopic() is called by start())
+     * @param judgments Relevance judgments for the topic
+     * @param runTag A label identifying this run, to be included in the output
+     * @param writer Where to write retrieved tweets
+     */
+    TopicRun(Topic topic, Filter filter, Qrels.TopicQrels judgments,
+            String runTag, PrintWriter writer) {
+        this.topic = topic;
+        this.filter = filter;
+        this.judgments = judgments;
+        this.runTag = runTag;
+        this.writer = writer;
+        feedbackCountByRelevance = new int[Constants.MAXREL + 1];
+    }
+
+    /**
+     * @param metrics Metrics to record the topic's filter calls in, or null
+     */
+    void setMetrics(TopicMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Initialize the filter for the topic and provide it the first relevant
+     * tweet.
+     *
+     * @param firstTweet The first tweet with an ID of at least queryTweetTime,
+     * or null if there is no such tweet
+     */
+    void start(Tweet firstTweet) {
+        if (metrics != null) {
+            metrics.started();
+        }
+        filter.setTopic(topic);
+        if (firstTweet == null || firstTweet.id != topic.queryTweetTime) {
+            System.err.println("Warning: topic " + topic.number +
+                    ": oldest known relevant tweet is not in database");
+            // TODO: How to handle this?
+        } else {
+            // Provide the first relevant tweet to the filter
+            feedback(firstTweet, judgments.getRelevanceOf(firstTweet.id, 0));
+        }
+    }
+
+    /**
+     * Instead of start(), initialize the filter for the topic and restore it
+     * and the feedback counts to where they were at a checkpoint. The topic
+     * is then continued with the tweets after the last one processed before
+     * the checkpoint.
+     *
+     * @param filterState The filter's snapshot (see Filter.getState())
+     * @param feedbackCounts The feedback counts (see getFeedbackCounts())
+     */
+    void resume(Serializable filterState, int[] feedbackCounts) {
+        if (metrics != null) {
+            metrics.started();
+        }
+        filter.setTopic(topic);
+        filter.setState(filterState);
+        setFeedbackCounts(feedbackCounts);
+    }
+
+    /**
+     * @param tweet The next tweet in ID order
+     * @return true if the tweet falls within the topic's range
+     */
+    boolean accepts(Tweet tweet) {
+        return tweet != null && tweet.id <= topic.queryNewestTweet;
+    }
+
+    /**
+     * Have the filter decide on the tweet, write the result if it was
+     * retrieved, and reveal the relevance judgment to the filter.
+     *
+     * @param tweet The tweet to filter
+     */
+    void process(Tweet tweet) {
+        if (metrics == null) {
+            filter.decide(tweet, decision);
+        } else {
+            long allocated = TopicMetrics.threadAllocatedBytes();
+            long start = System.nanoTime();
+            filter.decide(tweet, decision);
+            metrics.decided(System.nanoTime() - start, decision.retrieve);
+            metrics.allocated(allocatedSince(allocated));
+        }
+        if (decision.retrieve) {
+            writer.printf("MB%03d %d %.3f yes %s\n",
+                    topic.number,
+                    tweet.id,
+                    decision.score,
+                    runTag);
+            // Treat unjudged tweets as nonrelevant
+            int relevance = judgments.getRelevanceOf(tweet.id, 0);
+            feedback(tweet, relevance);
+            feedbackCountByRelevance[Math.max(0, relevance)]++;
+        }
+    }
+
+    /**
+     * Record the end of the topic in its metrics, if any.
+     */
+    void finish() {
+        if (metrics != null) {
+            metrics.finished();
+        }
+    }
+
+    /**
+     * Print the number of tweets given as feedback, for each relevance value.
+     *
+     * @param out The stream to print to
+     */
+    void printFeedbackCounts(PrintStream out) {
+        out.print("Feedback count by relevance:  ");
+        for (int i = 0; i < feedbackCountByRelevance.length; i++) {
+            out.print(i + ": " + feedbackCountByRelevance[i] + "  ");
+        }
+        out.println();
+    }
+
+    /**
+     * @return The number of tweets given as feedback, by relevance value
+     */
+    int[] getFeedbackCounts() {
+        return feedbackCountByRelevance.clone();
+    }
+
+    /**
+     * Set the counts of a topic run earlier, such as one finished before a
+     * checkpoint, so that it can be evaluated without running it again.
+     *
+     * @param feedbackCounts The counts (see getFeedbackCounts())
+     */
+    void setFeedbackCounts(int[] feedbackCounts) {
+        feedbackCountByRelevance = Arrays.copyOf(feedbackCounts,
+                feedbackCountByRelevance.length);
+    }
+
+    /**
+     * @return The number of tweets retrieved
+     */
+    int getRetrieved() {
+        int count = 0;
+        for (int n : feedbackCountByRelevance) {
+            count += n;
+        }
+        return count;
+    }
+
+    /**
+     * @return The number of tweets retrieved that are judged relevant
+     */
+    int getRelevantRetrieved() {
+        int count = 0;
+        for (int r = Constants.MINREL; r <= Constants.MAXREL; r++) {
+            count += feedbackCountByRelevance[r];
+        }
+        return count;
+    }
+
+    private void feedback(Tweet tweet, int relevance) {
+        if (metrics == null) {
+            filter.feedback(tweet, relevance);
+        } else {
+            long allocated = TopicMetrics.threadAllocatedBytes();
+            long start = System.nanoTime();
+            filter.feedback(tweet, relevance);
+            metrics.feedbackGiven(System.nanoTime() - start);
+            metrics.allocated(allocatedSince(allocated));
+        }
+    }
+
+    // Bytes allocated by this thread since the given count, or -1 if unknown
+    private static long allocatedSince(long allocated) {
+        return (allocated < 0)
+            ? -1 : TopicMetrics.threadAllocatedBytes() - allocated;
+    }
+}
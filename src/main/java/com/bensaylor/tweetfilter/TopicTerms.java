@@ -0,0 +1,175 @@
+package com.bensaylor.tweetfilter;
+
+import java.util.HashMap;
+
+/**
+ * The terms of a topic known to its feedback filters, with IDs, and the IDs
+ * of the terms of the last tweet looked up.
+ *
+ * A FeedbackFilter normally has one of its own, replaced for each topic.
+ * Filters of the same topic with different parameters, as in
+ * FilterController.runSweep(), can share one from a Pool, so that the terms
+ * of each tweet are looked up once for all of them. Each filter keeps its own
+ * record of which terms are in its vectors, so terms added by the other
+ * filters have no weight in its query.
+ *
+ * A TopicTerms is not thread-safe; filters sharing one must all be driven
+ * from one thread, one tweet at a time.
+ *
+ * @author Ben Saylor
+ */
+class TopicTerms {
+
+    private TextAnalyzer analyzer = new TextAnalyzer();
+    private TermDictionary dictionary = new TermDictionary();
+
+    // IDs of the terms of the last tweet, or -1 for unknown terms, and the
+    // IDs of the known terms alone, in order; valid only if idsFound is true
+    private int[] ids = new int[32];
+    private int[] knownIds = new int[32];
+    private int knownCount;
+    private boolean idsFound;
+
+    private long lastTweetId;
+    private boolean haveLastTweet;
+
+    /**
+     * @return The dictionary of the topic's terms
+     */
+    TermDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @param term A normalized term
+     * @return The term's ID, added to the dictionary if it was not there
+     */
+    int addTerm(String term) {
+        idsFound = false;
+        return dictionary.addTerm(term);
+    }
+
+    /**
+     * Analyze the tweet with preprocessing, unless it is the tweet last
+     * analyzed.
+     *
+     * @param tweet The tweet
+     */
+    void analyze(Tweet tweet) {
+        if (haveLastTweet && tweet.id == lastTweetId) {
+            return;
+        }
+        lastTweetId = tweet.id;
+        haveLastTweet = true;
+        analyzer.analyze(tweet, true);
+        idsFound = false;
+    }
+
+    /**
+     * @return The analyzer holding the analysis of the last tweet
+     */
+    TextAnalyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    /**
+     * @param i Term number of the last tweet, from 0 to
+     * getAnalyzer().getTermCount() - 1
+     * @return The term's ID, or -1 if it is not in the dictionary
+     */
+    int getId(int i) {
+        if (!idsFound) {
+            findIds();
+        }
+        return ids[i];
+    }
+
+    /**
+     * @return The number of terms of the last tweet that are in the
+     * dictionary, counting repeated terms each time
+     */
+    int getKnownCount() {
+        if (!idsFound) {
+            findIds();
+        }
+        return knownCount;
+    }
+
+    /**
+     * @param k Number of a known term of the last tweet, from 0 to
+     * getKnownCount() - 1, in the order of the tweet's terms
+     * @return The term's ID
+     */
+    int getKnownId(int k) {
+        return knownIds[k];
+    }
+
+    /**
+     * @param i Term number of the last tweet, from 0 to
+     * getAnalyzer().getTermCount() - 1
+     * @return The term's ID, added to the dictionary if it was not there
+     */
+    int addTerm(int i) {
+        int id = getId(i);
+        if (id < 0) {
+            String term = analyzer.getTerm(i);
+            id = dictionary.addTerm(term);
+
+            // Give the term's other occurrences in the tweet the new ID too
+            for (int j = i; j < analyzer.getTermCount(); j++) {
+                if (ids[j] < 0 && analyzer.getTerm(j).equals(term)) {
+                    ids[j] = id;
+                }
+            }
+            findKnownIds();
+        }
+        return id;
+    }
+
+    private void findIds() {
+        int count = analyzer.getTermCount();
+        if (ids.length < count) {
+            ids = new int[Math.max(count, 2 * ids.length)];
+        }
+        for (int i = 0; i < count; i++) {
+            ids[i] = dictionary.getId(analyzer.getTerm(i));
+        }
+        findKnownIds();
+        idsFound = true;
+    }
+
+    private void findKnownIds() {
+        int count = analyzer.getTermCount();
+        if (knownIds.length < count) {
+            knownIds = new int[ids.length];
+        }
+        knownCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (ids[i] >= 0) {
+                knownIds[knownCount++] = ids[i];
+            }
+        }
+    }
+
+    /**
+     * TopicTerms shared by filters of the same topic. Filters of different
+     * topics may get their TopicTerms from one Pool on different threads.
+     */
+    static class Pool {
+
+        private HashMap<Integer,TopicTerms> byTopic = new HashMap<>();
+
+        /**
+         * @param topic A topic
+         * @return The TopicTerms for the topic, created if needed
+         */
+        synchronized TopicTerms get(Topic topic) {
+            TopicTerms topicTerms = byTopic.get(topic.number);
+            if (topicTerms == null) {
+                topicTerms = new TopicTerms();
+                byTopic.put(topic.number, topicTerms);
+            }
+            return topicTerms;
+        }
+    }
+}
@@ -3,9 +3,37 @@ package com.bensaylor.tweetfilter;
 /**
  * Data model representing an individual tweet.
  *
+ * A tweet read as a view of a store's current row (see
+ * TweetSource.next(Tweet)) has only its id, text and terms set. The other
+ * fields are read from the row when one of them is first used, so they must
+ * be read through the accessor methods, not the fields.
+ *
+ * A store may also have been told to read only some of the fields (see
+ * TweetStore.setFields()). Using a field it left unread throws
+ * IllegalStateException.
+ *
  * @author Ben Saylor
  */
 public class Tweet {
+
+    // The fields other than id and text, as bits of a set of fields
+
+    /** No field other than id and text, which every tweet has */
+    public static final int ID_AND_TEXT = 0;
+    public static final int CREATED_AT = 1;
+    public static final int RETWEETED = 2;
+    public static final int RETWEET_COUNT = 4;
+    public static final int FAVORITED = 8;
+    /** The user's id, screen_name and name */
+    public static final int USER = 16;
+    public static final int REQUESTED_ID = 32;
+    public static final int ALL_FIELDS = 63;
+
+    // Names of the fields, by bit number
+    private static final String[] FIELD_NAMES = {
+        "created_at", "retweeted", "retweet_count", "favorited", "user",
+        "requested_id"};
+
     long id;
     String text;
     String created_at;
@@ -15,17 +43,97 @@ public class Tweet {
     User user;
     long requested_id;
 
+    // Stored analysis of the text, if the store provides it (not in the JSON)
+    transient TweetTerms terms;
+
+    // For a view, reads the other fields from the row given by fieldRow;
+    // null once they have been read, and for other tweets
+    transient FieldReader fieldReader;
+    transient long fieldRow;
+
+    // The fields the store did not read, which can't be used
+    transient int missingFields;
+
+    /**
+     * Reads the fields other than id, text and terms of a view.
+     */
+    interface FieldReader {
+
+        /**
+         * @param tweet The view to read the fields into
+         * @param row The row the view was read from
+         *
+         * @throws IllegalStateException if the row can no longer be read
+         */
+        void readFields(Tweet tweet, long row);
+    }
+
+    String getCreatedAt() {
+        readFields(CREATED_AT);
+        return created_at;
+    }
+
+    boolean isRetweeted() {
+        readFields(RETWEETED);
+        return retweeted;
+    }
+
+    long getRetweetCount() {
+        readFields(RETWEET_COUNT);
+        return retweet_count;
+    }
+
+    boolean isFavorited() {
+        readFields(FAVORITED);
+        return favorited;
+    }
+
+    User getUser() {
+        readFields(USER);
+        return user;
+    }
+
+    long getRequestedId() {
+        readFields(REQUESTED_ID);
+        return requested_id;
+    }
+
+    /**
+     * Read the other fields of a view now, if they haven't been read, so
+     * that it no longer depends on its store's current row and can be
+     * handed to another thread.
+     */
+    void detach() {
+        if (fieldReader != null) {
+            FieldReader reader = fieldReader;
+            fieldReader = null;
+            reader.readFields(this, fieldRow);
+        }
+    }
+
+    // Check that the store read the given field, and read the other fields
+    // of a view, if they haven't been read
+    private void readFields(int field) {
+        if ((missingFields & field) != 0) {
+            throw new IllegalStateException("Tweet " + id
+                    + " was read without its "
+                    + FIELD_NAMES[Integer.numberOfTrailingZeros(field)]
+                    + " field");
+        }
+        detach();
+    }
+
     public String toString() {
         return 
             "id:               " + id + "\n" +
             "text:             " + text + "\n" +
-            "created_at:       " + created_at + "\n" +
-            "retweeted:        " + retweeted + "\n" +
-            "retweet_count:    " + retweet_count + "\n" +
-            "favorited:        " + favorited + "\n" +
-            "user.id:          " + user.id + "\n" +
-            "user.screen_name: " + user.screen_name + "\n" +
-            "user.name:        " + user.name + "\n" +
-            "requested_id:     " + requested_id + "\n";
+            "created_at:       " + getCreatedAt() + "\n" +
+            "retweeted:        " + isRetweeted() + "\n" +
+            "retweet_count:    " + getRetweetCount() + "\n" +
+            "favorited:        " + isFavorited() + "\n" +
+            "user.id:          " + getUser().id + "\n" +
+            "user.screen_name: " + getUser().screen_name + "\n" +
+            "user.name:        " + getUser().name + "\n" +
+            "requested_id:     " + getRequestedId() + "\n";
     }
 }
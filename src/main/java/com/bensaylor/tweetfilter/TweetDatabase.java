@@ -7,11 +7,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
 
 import com.almworks.sqlite4java.SQLiteConnection;
 import com.almworks.sqlite4java.SQLiteConstants;
 import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteLongArray;
 import com.almworks.sqlite4java.SQLiteStatement;
 import com.google.gson.Gson;
 
@@ -20,23 +22,82 @@ import com.google.gson.Gson;
  * Before the database can be used, createTable() and insertJsonFiles() must be
  * used to initialize and populate it.
  *
+ * Whether a tweet exists is answered from a TweetIdIndex kept in a file
+ * beside the database, with ID_INDEX_SUFFIX added to its name. The index is
+ * built by scanning the database the first time it is needed, and updated by
+ * each import.
+ *
+ * The schema version is kept in SQLite's user_version. In version 1, the
+ * tweets table was declared with "id int primary key", which SQLite keeps
+ * as a separate unique index, so every scan and fetch by ID looked up the
+ * index and then the table. Version 2 declares "id integer primary key",
+ * which makes the tweet ID the rowid, so the table itself is stored in ID
+ * order. createTable() creates version 2, and migrate() converts a
+ * version 1 database in place. Both versions can be read.
+ *
+ * After setFields(), scans and fetches select only the columns of the
+ * requested fields, so the other columns are neither copied out of SQLite
+ * nor decoded.
+ *
  * @author Ben Saylor
  */
-public class TweetDatabase {
+public class TweetDatabase implements TweetStore {
+
+    /** Added to the database filename to get the tweet ID index filename */
+    public static final String ID_INDEX_SUFFIX = ".ids";
+
+    /** Schema version created by createTable() */
+    public static final int SCHEMA_VERSION = 2;
+
+    // Page size of new and migrated databases, in bytes (the SQLite default
+    // is 1024)
+    private static final int PAGE_SIZE = 8192;
+
+    // Bytes of the database file memory-mapped by each connection
+    private static final long MMAP_SIZE = 1L << 30;
+
+    // Page cache size of each connection, in KiB
+    private static final int CACHE_SIZE_KB = 65536;
+
+    // The columns of a tweet, in the order read by rowToTweet() and
+    // readFields()
+    private static final String COLUMNS =
+        "id, text_, created_at, " +
+        "retweeted, retweet_count, favorited, " +
+        "user_id, user_screen_name, user_name, requested_id";
+
+    private File dbfile;
     private SQLiteConnection db = null;
+
+    // The fields that scans and fetches read, besides the id and text
+    private int fields = Tweet.ALL_FIELDS;
     private SQLiteStatement insertStatement = null;
     private SQLiteStatement selectStatement = null;
+    private boolean scanning = false;
+
+    // Number of rows stepped to, identifying the row of a view
+    private long scanRow = 0;
+    private final ScanFieldReader scanFieldReader = new ScanFieldReader();
     private SQLiteStatement fetchStatement = null;
     private SQLiteStatement existsStatement = null;
+    private SQLiteLongArray fetchIds = null;
+    private SQLiteStatement fetchBatchStatement = null;
     private int tweetsImported;
     private int duplicates;
 
+    // The tweet ID index, or null until it is needed, and the IDs inserted
+    // since it was loaded
+    private TweetIdIndex idIndex = null;
+    private long[] insertedIds = new long[0];
+    private int insertedCount = 0;
+
     /**
      * Open the database file, creating it if it doesn't exist.
      *
      * @param dbfile Filename of the SQLite database
      */
     public TweetDatabase(File dbfile) {
+        this.dbfile = dbfile;
 
         // Open the SQLite database file, creating if it doesn't exist
         db = new SQLiteConnection(dbfile);
@@ -46,35 +107,257 @@ public class TweetDatabase {
             System.err.println("Error opening database file: " +
                     e.getMessage());
             db = null;
+            return;
+        }
+
+        // Read through memory mapping where possible, and keep more pages
+        // cached than the default 2000
+        try {
+            db.exec("pragma mmap_size = " + MMAP_SIZE);
+            db.exec("pragma cache_size = -" + CACHE_SIZE_KB);
+        } catch (SQLiteException e) {
+            System.err.println("Error configuring database: "
+                    + e.getMessage());
         }
     }
 
     /**
-     * Create the 'tweets' table in the database.
+     * @return The database file
+     */
+    public File getFile() {
+        return dbfile;
+    }
+
+    /**
+     * @return Whether the database file was opened and is not yet closed
+     */
+    public boolean isOpen() {
+        return db != null;
+    }
+
+    // Open the database file, sharing another instance's tweet ID index and
+    // reading the same fields
+    private TweetDatabase(File dbfile, TweetIdIndex idIndex, int fields) {
+        this(dbfile);
+        this.idIndex = idIndex;
+        this.fields = fields;
+    }
+
+    /**
+     * The returned instance shares this instance's tweet ID index, if it has
+     * been loaded.
+     */
+    @Override
+    public TweetStore reopen() {
+        return new TweetDatabase(dbfile, idIndex, fields);
+    }
+
+    /**
+     * The select statements are prepared again with only the columns of the
+     * fields.
+     */
+    @Override
+    public void setFields(int fields) {
+        scanning = false;
+        fields &= Tweet.ALL_FIELDS;
+        if (fields == this.fields) {
+            return;
+        }
+        this.fields = fields;
+        if (selectStatement != null) {
+            selectStatement.dispose();
+            selectStatement = null;
+        }
+        if (fetchStatement != null) {
+            fetchStatement.dispose();
+            fetchStatement = null;
+        }
+        if (fetchBatchStatement != null) {
+            fetchBatchStatement.dispose();
+            fetchBatchStatement = null;
+            fetchIds.dispose();
+            fetchIds = null;
+        }
+    }
+
+    // The columns of the id, text and given fields, in the order read by
+    // rowToTweet() and readFields()
+    private static String columns(int fields) {
+        if (fields == Tweet.ALL_FIELDS) {
+            return COLUMNS;
+        }
+        StringBuilder columns = new StringBuilder("id, text_");
+        if ((fields & Tweet.CREATED_AT) != 0) {
+            columns.append(", created_at");
+        }
+        if ((fields & Tweet.RETWEETED) != 0) {
+            columns.append(", retweeted");
+        }
+        if ((fields & Tweet.RETWEET_COUNT) != 0) {
+            columns.append(", retweet_count");
+        }
+        if ((fields & Tweet.FAVORITED) != 0) {
+            columns.append(", favorited");
+        }
+        if ((fields & Tweet.USER) != 0) {
+            columns.append(", user_id, user_screen_name, user_name");
+        }
+        if ((fields & Tweet.REQUESTED_ID) != 0) {
+            columns.append(", requested_id");
+        }
+        return columns.toString();
+    }
+
+    /**
+     * Release all prepared statements and close the database.
+     * This must be called from the same thread that opened the database.
+     */
+    @Override
+    public void close() {
+        if (db != null) {
+            db.dispose();
+            db = null;
+        }
+        insertStatement = null;
+        selectStatement = null;
+        scanning = false;
+        fetchStatement = null;
+        existsStatement = null;
+        fetchIds = null;
+        fetchBatchStatement = null;
+    }
+
+    /**
+     * Create the 'tweets' table in the database, with the current schema
+     * version.
      */
     public void createTable() {
+        createTable(SCHEMA_VERSION);
+    }
+
+    /**
+     * Create the 'tweets' table in the database.
+     *
+     * @param version The schema version, 1 or 2
+     */
+    void createTable(int version) {
         if (db == null) {
             System.err.println("Error: database is not open");
             return;
         }
 
         try {
-            db.exec("create table tweets( " +
-                    "id int primary key," +
-                    "text_ text," +
-                    "created_at text," +
-                    "retweeted bool," +
-                    "retweet_count int," +
-                    "favorited bool," +
-                    "user_id int," +
-                    "user_screen_name text," +
-                    "user_name text," +
-                    "requested_id int)");
+            // The page size can only be set before the first table is
+            // created
+            db.exec("pragma page_size = " + PAGE_SIZE);
+            db.exec(tableDefinition("tweets", version));
+            db.exec("pragma user_version = " + version);
         } catch (SQLiteException e) {
             System.err.println("Error creating database: " + e.getMessage());
         }
     }
 
+    // The create table statement of the given schema version
+    private static String tableDefinition(String table, int version) {
+        return "create table " + table + "( " +
+            ((version >= 2)
+             ? "id integer primary key," : "id int primary key,") +
+            "text_ text," +
+            "created_at text," +
+            "retweeted bool," +
+            "retweet_count int," +
+            "favorited bool," +
+            "user_id int," +
+            "user_screen_name text," +
+            "user_name text," +
+            "requested_id int)";
+    }
+
+    /**
+     * @return The schema version of the database, or 0 if it can't be read
+     */
+    public int getSchemaVersion() {
+        if (db == null) {
+            return 0;
+        }
+        SQLiteStatement statement = null;
+        try {
+            statement = db.prepare("pragma user_version");
+            statement.step();
+            // Version 1 databases predate the user_version
+            return Math.max(1, statement.columnInt(0));
+        } catch (SQLiteException e) {
+            System.err.println("Error reading schema version: "
+                    + e.getMessage());
+            return 0;
+        } finally {
+            if (statement != null) {
+                statement.dispose();
+            }
+        }
+    }
+
+    /**
+     * Convert the database to the current schema version in place.
+     * The tweets are copied in ID order into a table with the new schema,
+     * which replaces the old one, and the file is then rebuilt with VACUUM
+     * at the current page size. This needs free disk space of about twice
+     * the size of the database. The tweet ID index is unchanged, since the
+     * same tweets remain. The database is closed afterwards.
+     *
+     * @return true if the database was converted or was already current,
+     * false if there was an error
+     */
+    public boolean migrate() {
+        int version = getSchemaVersion();
+        if (version == 0) {
+            return false;
+        }
+        if (version >= SCHEMA_VERSION) {
+            System.out.println(dbfile + " is already at schema version "
+                    + version);
+            return true;
+        }
+        File indexFile = getIdIndexFile();
+        boolean indexCurrent = indexFile.exists()
+            && indexFile.lastModified() >= dbfile.lastModified();
+        close();
+        db = new SQLiteConnection(dbfile);
+        try {
+            db.open();
+            System.out.println("Copying tweets of " + dbfile
+                    + " to schema version " + SCHEMA_VERSION);
+            db.exec("begin");
+            db.exec(tableDefinition("tweets_v" + SCHEMA_VERSION,
+                        SCHEMA_VERSION));
+            db.exec("insert into tweets_v" + SCHEMA_VERSION +
+                    " (" + COLUMNS + ") " +
+                    "select " + COLUMNS + " from tweets order by id");
+            db.exec("drop table tweets");
+            db.exec("alter table tweets_v" + SCHEMA_VERSION +
+                    " rename to tweets");
+            db.exec("pragma user_version = " + SCHEMA_VERSION);
+            db.exec("commit");
+
+            System.out.println("Rebuilding " + dbfile);
+            db.exec("pragma page_size = " + PAGE_SIZE);
+            db.exec("vacuum");
+        } catch (SQLiteException e) {
+            System.err.println("Error migrating database: " + e.getMessage());
+            return false;
+        } finally {
+            close();
+        }
+
+        // Still an index of the same tweets
+        if (indexCurrent) {
+            indexFile.setLastModified(dbfile.lastModified());
+        }
+        System.out.println(dbfile + " migrated to schema version "
+                + SCHEMA_VERSION);
+        return true;
+    }
+
     /**
      * Import a compressed JSON file created by twitter-tools into the database.
      * Tweets with duplicate IDs are ignored.
@@ -83,6 +366,7 @@ public class TweetDatabase {
      */
     public void importJsonFile(String filename) {
         Gson gson = new Gson();
+        getIdIndex();
 
         // Do all inserts for this file in the same transaction
         // (otherwise, inserts are very slow)
@@ -132,47 +416,117 @@ public class TweetDatabase {
         } catch (SQLiteException e) {
             System.err.println(e.getMessage());
         }
+        updateIdIndex();
     }
     
     /**
-     * Import the given compressed JSON files into the database.
+     * Import the given compressed JSON files into the database, using all
+     * available processors.
      *
      * @param filenames The names of the *.json.gz files to import
      */
     public void importJsonFiles(String[] filenames) {
+        importJsonFiles(filenames,
+                Runtime.getRuntime().availableProcessors(), 50000);
+    }
+
+    /**
+     * Import the given compressed JSON files into the database.
+     * Decompression and JSON decoding are done by background threads while
+     * the calling thread inserts the tweets; see JsonImportPipeline.
+     * Tweets with duplicate IDs are ignored.
+     *
+     * @param filenames The names of the *.json.gz files to import
+     * @param numThreads Number of threads for decompression and decoding
+     * @param transactionSize Number of tweets to insert per transaction
+     */
+    public void importJsonFiles(String[] filenames, int numThreads,
+            int transactionSize) {
+        startImport();
+
+        // JSON decoding is the most expensive stage, so most threads go to it
+        int numReaders = Math.max(1, Math.min(filenames.length,
+                    numThreads / 4));
+        int numDecoders = Math.max(1, numThreads - numReaders);
+        JsonImportPipeline pipeline = new JsonImportPipeline(
+                this, numReaders, numDecoders, transactionSize);
+        pipeline.importFiles(filenames);
+        finishImport();
+    }
+
+    /**
+     * Prepare to insert tweets with insertTweet(): reset the counts of
+     * imported and duplicate tweets and load the tweet ID index.
+     */
+    void startImport() {
         tweetsImported = 0;
         duplicates = 0;
+        getIdIndex();
+    }
 
-        for (int i = 0; i < filenames.length; i++) {
-            System.out.println("Importing file " + (i + 1) + " of " +
-                    filenames.length + ": " + filenames[i]);
-            importJsonFile(filenames[i]);
-            System.out.print(tweetsImported + " tweets imported, ");
-            System.out.println(duplicates + " duplicate tweet IDs ignored");
-        }
-
+    /**
+     * Finish inserting tweets: release the insert statement and add the
+     * inserted IDs to the tweet ID index.
+     */
+    void finishImport() {
         if (insertStatement != null) {
             insertStatement.dispose();
             insertStatement = null;
         }
+        updateIdIndex();
+    }
+
+    /**
+     * Begin a transaction.
+     *
+     * @throws SQLiteException
+     */
+    public void begin() throws SQLiteException {
+        db.exec("begin");
+    }
+
+    /**
+     * Commit the current transaction.
+     *
+     * @throws SQLiteException
+     */
+    public void commit() throws SQLiteException {
+        db.exec("commit");
+    }
+
+    /**
+     * @return Number of tweets inserted by the current or last import
+     */
+    public int getTweetsImported() {
+        return tweetsImported;
+    }
+
+    /**
+     * @return Number of duplicate tweets ignored by the current or last import
+     */
+    public int getDuplicates() {
+        return duplicates;
     }
 
     /**
      * Add a single Tweet to the database.
+     * If the tweet ID index has been loaded, tweets already in it are
+     * counted as duplicates without trying to insert them.
      *
      * @param tweet The Tweet to insert
      *
      * @throws SQLiteException
      */
     public void insertTweet(Tweet tweet) throws SQLiteException {
+        if (idIndex != null && idIndex.contains(tweet.id)) {
+            duplicates++;
+            return;
+        }
 
         // Prepare or reset insert statement
         if (insertStatement == null) {
             insertStatement = db.prepare(
-                    "insert into tweets (" +
-                    "id, text_, created_at, " +
-                    "retweeted, retweet_count, favorited, " +
-                    "user_id, user_screen_name, user_name, requested_id) " +
+                    "insert into tweets (" + COLUMNS + ") " +
                     "values (" +
                     "?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
         } else {
@@ -183,19 +537,26 @@ public class TweetDatabase {
         insertStatement
             .bind(1, tweet.id)
             .bind(2, tweet.text)
-            .bind(3, tweet.created_at)
-            .bind(4, tweet.retweeted ? 1 : 0)
-            .bind(5, tweet.retweet_count)
-            .bind(6, tweet.favorited ? 1 : 0)
-            .bind(7, tweet.user.id)
-            .bind(8, tweet.user.screen_name)
-            .bind(9, tweet.user.name)
-            .bind(10, tweet.requested_id);
+            .bind(3, tweet.getCreatedAt())
+            .bind(4, tweet.isRetweeted() ? 1 : 0)
+            .bind(5, tweet.getRetweetCount())
+            .bind(6, tweet.isFavorited() ? 1 : 0)
+            .bind(7, tweet.getUser().id)
+            .bind(8, tweet.getUser().screen_name)
+            .bind(9, tweet.getUser().name)
+            .bind(10, tweet.getRequestedId());
 
         // Execute the insert statement
         try {
             insertStatement.stepThrough();
             tweetsImported++;
+            if (idIndex != null) {
+                if (insertedCount == insertedIds.length) {
+                    insertedIds = Arrays.copyOf(insertedIds,
+                            Math.max(1024, 2 * insertedCount));
+                }
+                insertedIds[insertedCount++] = tweet.id;
+            }
         } catch (SQLiteException e) {
 
             // If we encounter a duplicate tweet ID, just record it and continue
@@ -214,22 +575,32 @@ public class TweetDatabase {
      *
      * @param id The ID of the tweet to start from
      */
+    @Override
     public void startFromTweetId(long id) {
-        if (selectStatement != null) {
-            selectStatement.dispose();
-        }
+        startRange(id, Long.MAX_VALUE);
+    }
+
+    /**
+     * The range is bound into the query, so SQLite stops reading at its end.
+     */
+    @Override
+    public void startRange(long firstId, long lastId) {
         try {
-            selectStatement = db.prepare(
-                    "select " +
-                    "id, text_, created_at, " +
-                    "retweeted, retweet_count, favorited, " +
-                    "user_id, user_screen_name, user_name, requested_id " +
-                    "from tweets where id >= ? order by id");
-            selectStatement.bind(1, id);
+            if (selectStatement == null) {
+                selectStatement = db.prepare(
+                        "select " + columns(fields) + " from tweets " +
+                        "where id >= ? and id <= ? order by id");
+            } else {
+                selectStatement.reset();
+            }
+            selectStatement.bind(1, firstId);
+            selectStatement.bind(2, lastId);
+            scanning = true;
+            scanRow++; // Views of the last scan can no longer be read
         } catch (SQLiteException e) {
             System.err.println("Error creating select statement: " 
                     + e.getMessage());
-            return;
+            scanning = false;
         }
     }
 
@@ -239,8 +610,20 @@ public class TweetDatabase {
      *
      * @return The next Tweet, or null if there are no more results
      */
+    @Override
     public Tweet next() {
-        if (selectStatement == null) {
+        return next(null);
+    }
+
+    /**
+     * The view's other columns are read while the scan is still on its row,
+     * when they are first used. After that, using them throws
+     * IllegalStateException. If no fields other than id and text were set
+     * with setFields(), there are no other columns to read.
+     */
+    @Override
+    public Tweet next(Tweet view) {
+        if (!scanning) {
             return null;
         }
 
@@ -249,22 +632,33 @@ public class TweetDatabase {
         boolean rowReturned = false;
         try {
             rowReturned = selectStatement.step();
+            scanRow++;
         } catch (SQLiteException e) {
             System.err.println("Error getting result row: " + e.getMessage());
         }
 
         if (rowReturned) {
             try {
-                tweet = rowToTweet(selectStatement);
+                if (view == null) {
+                    tweet = rowToTweet(selectStatement);
+                } else {
+                    tweet = view;
+                    tweet.id = selectStatement.columnLong(0);
+                    tweet.text = selectStatement.columnString(1);
+                    tweet.terms = null;
+                    tweet.fieldReader = (fields == Tweet.ID_AND_TEXT)
+                        ? null : scanFieldReader;
+                    tweet.fieldRow = scanRow;
+                    tweet.missingFields = Tweet.ALL_FIELDS & ~fields;
+                }
             } catch (SQLiteException e) {
                 System.err.println("Error retrieving column values: " 
                         + e.getMessage());
                 tweet = null;
             }
         } else {
-            // No more rows
-            selectStatement.dispose();
-            selectStatement = null;
+            // No more rows; the statement is kept for the next scan
+            scanning = false;
             tweet = null;
         }
 
@@ -277,15 +671,13 @@ public class TweetDatabase {
      * @param id ID of the tweet to fetch
      * @return The tweet, or null if it doesn't exist, or if there was an error
      */
+    @Override
     public Tweet fetchTweet(long id) {
         try {
             if (fetchStatement == null) {
                 fetchStatement = db.prepare(
-                        "select " +
-                        "id, text_, created_at, " +
-                        "retweeted, retweet_count, favorited, " +
-                        "user_id, user_screen_name, user_name, requested_id " +
-                        "from tweets where id = ? order by id");
+                        "select " + columns(fields) +
+                        " from tweets where id = ?");
             } else {
                 fetchStatement.reset();
             }
@@ -303,12 +695,63 @@ public class TweetDatabase {
     }
 
     /**
-     * Check whether a tweet with the given ID exists in the database.
+     * Fetch a batch of tweets from the database by ID.
+     *
+     * The IDs are bound all at once to a virtual table, which the query
+     * joins with the tweets, so the whole batch takes one statement and one
+     * step per tweet instead of a reset, bind and step per tweet.
+     *
+     * @param ids Array of tweet IDs
+     * @param offset Position in ids of the first ID to fetch
+     * @param count Number of IDs to fetch, which must be in strictly
+     * ascending order
+     * @return The tweets, in the order of their IDs, with null for tweets
+     * that don't exist or if there was an error
+     */
+    @Override
+    public Tweet[] fetchTweets(long[] ids, int offset, int count) {
+        Tweet[] tweets = new Tweet[count];
+        try {
+            if (fetchBatchStatement == null) {
+                fetchIds = db.createArray();
+                fetchBatchStatement = db.prepare(
+                        "select " + columns(fields) + " from tweets " +
+                        "where id in " + fetchIds.getName() + " order by id");
+            } else {
+                fetchBatchStatement.reset();
+            }
+            fetchIds.bind(ids, offset, count);
+
+            // Both the rows and the IDs are in ascending order
+            int i = 0;
+            while (fetchBatchStatement.step()) {
+                long id = fetchBatchStatement.columnLong(0);
+                while (i < count && ids[offset + i] < id) {
+                    i++;
+                }
+                if (i < count && ids[offset + i] == id) {
+                    tweets[i++] = rowToTweet(fetchBatchStatement);
+                }
+            }
+        } catch (SQLiteException e) {
+            System.err.println("Error fetching tweets: " + e.getMessage());
+        }
+        return tweets;
+    }
+
+    /**
+     * Check whether a tweet with the given ID exists in the database, using
+     * the tweet ID index, or a query if the index can't be built.
      *
      * @param id The tweet ID to check
      * @return true if the tweet exists in the database; false otherwise
      */
+    @Override
     public boolean tweetExists(long id) {
+        TweetIdIndex index = getIdIndex();
+        if (index != null) {
+            return index.contains(id);
+        }
         try {
             if (existsStatement == null) {
                 existsStatement = db.prepare(
@@ -329,6 +772,84 @@ public class TweetDatabase {
         }
     }
 
+    /**
+     * @return The file holding the tweet ID index
+     */
+    public File getIdIndexFile() {
+        return new File(dbfile.getPath() + ID_INDEX_SUFFIX);
+    }
+
+    /**
+     * Get the index of the IDs of the tweets in the database, loading it from
+     * its file, or building it by scanning the database if the file is
+     * missing or older than the database.
+     *
+     * @return The index, or null if it could not be built
+     */
+    TweetIdIndex getIdIndex() {
+        if (idIndex != null) {
+            return idIndex;
+        }
+        File file = getIdIndexFile();
+        if (file.exists() && file.lastModified() >= dbfile.lastModified()) {
+            try {
+                idIndex = TweetIdIndex.load(file);
+                return idIndex;
+            } catch (IOException e) {
+                System.err.println("Error reading tweet ID index: "
+                        + e.getMessage());
+            }
+        }
+
+        if (db == null) {
+            return null;
+        }
+
+        // Read all of the IDs
+        long[] ids = new long[1024];
+        int count = 0;
+        SQLiteStatement statement = null;
+        try {
+            statement = db.prepare("select id from tweets order by id");
+            while (statement.step()) {
+                if (count == ids.length) {
+                    ids = Arrays.copyOf(ids, 2 * count);
+                }
+                ids[count++] = statement.columnLong(0);
+            }
+        } catch (SQLiteException e) {
+            System.err.println("Error reading tweet IDs: " + e.getMessage());
+            return null;
+        } finally {
+            if (statement != null) {
+                statement.dispose();
+            }
+        }
+        idIndex = TweetIdIndex.build(ids, count);
+        saveIdIndex();
+        return idIndex;
+    }
+
+    // Add the IDs inserted since the index was loaded to it, and save it
+    private void updateIdIndex() {
+        if (idIndex == null || insertedCount == 0) {
+            return;
+        }
+        idIndex = idIndex.add(insertedIds, insertedCount);
+        insertedIds = new long[0];
+        insertedCount = 0;
+        saveIdIndex();
+    }
+
+    private void saveIdIndex() {
+        try {
+            idIndex.save(getIdIndexFile());
+        } catch (IOException e) {
+            System.err.println("Error writing tweet ID index: "
+                    + e.getMessage());
+        }
+    }
+
     /**
      * Instantiate and populate a Tweet from a query result row.
      *
@@ -339,19 +860,66 @@ public class TweetDatabase {
      */
     private Tweet rowToTweet(SQLiteStatement statement) throws SQLiteException {
         Tweet tweet = new Tweet();
-        tweet.user = new User();
-
         tweet.id = statement.columnLong(0);
         tweet.text = statement.columnString(1);
-        tweet.created_at = statement.columnString(2);
-        tweet.retweeted = statement.columnInt(3) == 1;
-        tweet.retweet_count = statement.columnLong(4);
-        tweet.favorited = statement.columnInt(5) == 1;
-        tweet.user.id = statement.columnLong(6);
-        tweet.user.screen_name = statement.columnString(7);
-        tweet.user.name = statement.columnString(8);
-        tweet.requested_id = statement.columnLong(9);
-
+        readFields(statement, tweet, fields);
         return tweet;
     }
+
+    /**
+     * Populate the given fields of a tweet from a query result row that
+     * has the columns of those fields, reusing its User if it has one, and
+     * mark the other fields as missing.
+     *
+     * @param statement A statement with a row of data ready to be read
+     * @param tweet The tweet to populate
+     * @param fields The fields to read, as a combination of the Tweet field
+     * constants
+     *
+     * @throws SQLiteException
+     */
+    private static void readFields(SQLiteStatement statement, Tweet tweet,
+            int fields) throws SQLiteException {
+        int column = 2;
+        if ((fields & Tweet.CREATED_AT) != 0) {
+            tweet.created_at = statement.columnString(column++);
+        }
+        if ((fields & Tweet.RETWEETED) != 0) {
+            tweet.retweeted = statement.columnInt(column++) == 1;
+        }
+        if ((fields & Tweet.RETWEET_COUNT) != 0) {
+            tweet.retweet_count = statement.columnLong(column++);
+        }
+        if ((fields & Tweet.FAVORITED) != 0) {
+            tweet.favorited = statement.columnInt(column++) == 1;
+        }
+        if ((fields & Tweet.USER) != 0) {
+            if (tweet.user == null) {
+                tweet.user = new User();
+            }
+            tweet.user.id = statement.columnLong(column++);
+            tweet.user.screen_name = statement.columnString(column++);
+            tweet.user.name = statement.columnString(column++);
+        }
+        if ((fields & Tweet.REQUESTED_ID) != 0) {
+            tweet.requested_id = statement.columnLong(column++);
+        }
+        tweet.missingFields = Tweet.ALL_FIELDS & ~fields;
+    }
+
+    // Reads the other fields of views of the scan's current row
+    private class ScanFieldReader implements Tweet.FieldReader {
+        public void readFields(Tweet tweet, long row) {
+            if (!scanning || row != scanRow) {
+                throw new IllegalStateException("Tweet " + tweet.id
+                        + " is a view of a row the scan has moved past");
+            }
+            try {
+                TweetDatabase.readFields(selectStatement, tweet, fields);
+            } catch (SQLiteException e) {
+                System.err.println("Error retrieving column values: "
+                        + e.getMessage());
+            }
+        }
+    }
 }
@@ -0,0 +1,243 @@
+package com.bensaylor.tweetfilter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The set of tweet IDs in a corpus, for answering whether a tweet exists
+ * without querying the database.
+ *
+ * The IDs are sorted and split into blocks of BLOCK_SIZE. Each block keeps
+ * its first ID in full and the rest as variable-length deltas from the
+ * previous ID, which take 4 or 5 bytes for the gaps between sampled tweet
+ * IDs instead of 8. A lookup is a binary search over the first IDs of the
+ * blocks followed by a scan of one block.
+ *
+ * An index is immutable, so it can be shared between threads. TweetDatabase
+ * keeps one beside its database file (see TweetDatabase.getIdIndex()).
+ *
+ * @author Ben Saylor
+ */
+class TweetIdIndex {
+
+    static final int BLOCK_SIZE = 64;
+
+    // Start of the file: "TIDX" and the format version
+    private static final int MAGIC = 0x54494458;
+    private static final int VERSION = 1;
+
+    private final int size;
+    private final long[] blockFirstIds;
+    private final int[] blockOffsets;  // Start of each block's deltas in data
+    private final byte[] data;
+
+    private TweetIdIndex(int size, long[] blockFirstIds, int[] blockOffsets,
+            byte[] data) {
+        this.size = size;
+        this.blockFirstIds = blockFirstIds;
+        this.blockOffsets = blockOffsets;
+        this.data = data;
+    }
+
+    /**
+     * Build an index of the given IDs.
+     *
+     * @param ids Tweet IDs, which may be unsorted and contain repeats
+     * @param count Number of IDs in the array to use
+     * @return The index
+     */
+    static TweetIdIndex build(long[] ids, int count) {
+        long[] sorted = Arrays.copyOf(ids, count);
+        Arrays.sort(sorted);
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (size == 0 || sorted[i] != sorted[size - 1]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+
+        int numBlocks = (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long[] blockFirstIds = new long[numBlocks];
+        int[] blockOffsets = new int[numBlocks + 1];
+        byte[] data = new byte[Math.max(16, size * 5)];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            if (i % BLOCK_SIZE == 0) {
+                blockFirstIds[i / BLOCK_SIZE] = sorted[i];
+                blockOffsets[i / BLOCK_SIZE] = length;
+                continue;
+            }
+            if (data.length - length < 10) {
+                data = Arrays.copyOf(data, 2 * data.length);
+            }
+            length = putDelta(data, length, sorted[i] - sorted[i - 1]);
+        }
+        blockOffsets[numBlocks] = length;
+        return new TweetIdIndex(size, blockFirstIds, blockOffsets,
+                Arrays.copyOf(data, length));
+    }
+
+    /**
+     * @return The number of IDs in the index
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param id A tweet ID
+     * @return true if the ID is in the index
+     */
+    boolean contains(long id) {
+        int block = Arrays.binarySearch(blockFirstIds, id);
+        if (block >= 0) {
+            return true;
+        }
+        block = -(block + 1) - 1;
+        if (block < 0) {
+            return false;
+        }
+
+        // Scan the block's deltas until reaching or passing the ID
+        long current = blockFirstIds[block];
+        int end = blockOffsets[block + 1];
+        int position = blockOffsets[block];
+        while (position < end) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                delta |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while (b < 0);
+            current += delta;
+            if (current >= id) {
+                return current == id;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return All IDs in the index, in ascending order
+     */
+    long[] toArray() {
+        long[] ids = new long[size];
+        int i = 0;
+        for (int block = 0; block < blockFirstIds.length; block++) {
+            long current = blockFirstIds[block];
+            ids[i++] = current;
+            int position = blockOffsets[block];
+            while (position < blockOffsets[block + 1]) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (long) (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                current += delta;
+                ids[i++] = current;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param ids Tweet IDs to add
+     * @param count Number of IDs in the array to add
+     * @return An index of the IDs of this index and the given ones
+     */
+    TweetIdIndex add(long[] ids, int count) {
+        if (count == 0) {
+            return this;
+        }
+        long[] all = Arrays.copyOf(toArray(), size + count);
+        System.arraycopy(ids, 0, all, size, count);
+        return build(all, all.length);
+    }
+
+    /**
+     * Save the index to a file, replacing it atomically if it exists.
+     *
+     * @param file The file to write
+     *
+     * @throws IOException
+     */
+    void save(File file) throws IOException {
+        int numBlocks = blockFirstIds.length;
+        ByteBuffer buffer = ByteBuffer.allocate(
+                16 + 12 * numBlocks + data.length);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(numBlocks);
+        buffer.asLongBuffer().put(blockFirstIds);
+        buffer.position(buffer.position() + 8 * numBlocks);
+        buffer.asIntBuffer().put(blockOffsets, 0, numBlocks);
+        buffer.position(buffer.position() + 4 * numBlocks);
+        buffer.put(data);
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            out.write(buffer.array());
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Load an index saved with save().
+     *
+     * @param file The file to read
+     * @return The index
+     *
+     * @throws IOException if the file can't be read or is not valid
+     */
+    static TweetIdIndex load(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unsupported tweet ID index format");
+            }
+            int size = buffer.getInt();
+            int numBlocks = buffer.getInt();
+            long[] blockFirstIds = new long[numBlocks];
+            int[] blockOffsets = new int[numBlocks + 1];
+            buffer.asLongBuffer().get(blockFirstIds);
+            buffer.position(buffer.position() + 8 * numBlocks);
+            buffer.asIntBuffer().get(blockOffsets, 0, numBlocks);
+            buffer.position(buffer.position() + 4 * numBlocks);
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            blockOffsets[numBlocks] = data.length;
+            return new TweetIdIndex(size, blockFirstIds, blockOffsets, data);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, NegativeArraySizeException
+            throw new IOException("Truncated or invalid tweet ID index");
+        }
+    }
+
+    // Write a positive delta as 7-bit groups, low group first, with the high
+    // bit set on all but the last byte
+    private static int putDelta(byte[] bytes, int position, long delta) {
+        while (delta >= 0x80) {
+            bytes[position++] = (byte) (delta | 0x80);
+            delta >>>= 7;
+        }
+        bytes[position++] = (byte) delta;
+        return position;
+    }
+}
@@ -0,0 +1,32 @@
+package com.bensaylor.tweetfilter;
+
+/**
+ * A sequence of tweets, read one at a time in ascending ID order.
+ *
+ * @author Ben Saylor
+ * @see TweetStore
+ * @see JsonTweetStream
+ */
+public interface TweetSource {
+
+    /**
+     * Fetch the next Tweet.
+     *
+     * @return The next Tweet, or null if there are no more tweets
+     */
+    public Tweet next();
+
+    /**
+     * Fetch the next Tweet as a view: where the source supports it, the
+     * given tweet is overwritten with the next one instead of allocating a
+     * new Tweet, and only its id, text and terms are set until its other
+     * fields are used (see Tweet). Other sources return a new Tweet as
+     * next() does. Either way, the tweet returned is only valid until the
+     * next call.
+     *
+     * @param view A tweet for the source to reuse, used for nothing else
+     * @return The next Tweet, which may be the view, or null if there are
+     * no more tweets
+     */
+    public Tweet next(Tweet view);
+}
@@ -0,0 +1,108 @@
+package com.bensaylor.tweetfilter;
+
+/**
+ * Read access to a tweet corpus, either one tweet at a time by ID or as a scan
+ * in ascending ID order.
+ * Implementations are not thread-safe; use reopen() to get an independent
+ * instance for another thread.
+ *
+ * @author Ben Saylor
+ * @see TweetDatabase
+ * @see SegmentStore
+ */
+public interface TweetStore extends TweetSource {
+
+    /**
+     * Start a scan of tweets in ID order.
+     * Tweets are retrieved by calling the next() method.
+     *
+     * @param id The ID of the tweet to start from
+     */
+    public void startFromTweetId(long id);
+
+    /**
+     * Start a scan of the tweets with IDs in the given range, in ID order.
+     * Tweets are retrieved by calling the next() method, which returns null
+     * after the last tweet in the range. Stores may use the end of the range
+     * to avoid reading tweets past it.
+     *
+     * @param firstId The ID of the tweet to start from
+     * @param lastId The highest ID to return
+     */
+    public void startRange(long firstId, long lastId);
+
+    /**
+     * Fetch the next Tweet in the current scan.
+     * A scan must first have been started with startFromTweetId().
+     *
+     * @return The next Tweet, or null if there are no more tweets
+     */
+    @Override
+    public Tweet next();
+
+    /**
+     * Fetch the next Tweet in the current scan as a view (see
+     * TweetSource.next(Tweet)).
+     *
+     * @param view A tweet for the store to reuse, used for nothing else
+     * @return The next Tweet, which may be the view, or null if there are
+     * no more tweets
+     */
+    @Override
+    public Tweet next(Tweet view);
+
+    /**
+     * Fetch a tweet by ID.
+     *
+     * @param id ID of the tweet to fetch
+     * @return The tweet, or null if it doesn't exist, or if there was an error
+     */
+    public Tweet fetchTweet(long id);
+
+    /**
+     * Fetch a batch of tweets by ID. This is faster than calling fetchTweet()
+     * for each one.
+     *
+     * @param ids Array of tweet IDs
+     * @param offset Position in ids of the first ID to fetch
+     * @param count Number of IDs to fetch, which must be in strictly
+     * ascending order
+     * @return The tweets, in the order of their IDs, with null for tweets
+     * that don't exist or if there was an error
+     */
+    public Tweet[] fetchTweets(long[] ids, int offset, int count);
+
+    /**
+     * Check whether a tweet with the given ID exists.
+     *
+     * @param id The tweet ID to check
+     * @return true if the tweet exists; false otherwise
+     */
+    public boolean tweetExists(long id);
+
+    /**
+     * Set the fields, other than id and text, of the tweets read from now
+     * on, by this instance and the instances it reopens. Stores may leave
+     * the other fields unread, and using them then throws
+     * IllegalStateException. All fields are read until this is called.
+     * This ends any scan in progress.
+     *
+     * @param fields The fields to read, as a combination of the Tweet field
+     * constants, such as Tweet.ID_AND_TEXT
+     */
+    public void setFields(int fields);
+
+    /**
+     * Open another instance reading the same corpus, with its own scan.
+     * This must be called from the thread that will use the new instance.
+     *
+     * @return The new instance
+     */
+    public TweetStore reopen();
+
+    /**
+     * Release any resources held by this instance.
+     * This must be called from the thread that opened it.
+     */
+    public void close();
+}
@@ -0,0 +1,22 @@
+package com.bensaylor.tweetfilter;
+
+/**
+ * Data model for the stored analysis of a tweet's text: the results of the
+ * TextAnalyzer methods, with terms given as IDs in a TermDictionary.
+ * Stores that have the analysis attach it to the tweets they return.
+ *
+ * @author Ben Saylor
+ * @see SegmentAnalyzer
+ */
+public class TweetTerms {
+    TermDictionary dictionary; // Dictionary the term IDs refer to
+    boolean retweet;           // TextAnalyzer.isRetweet()
+    boolean nonEnglish;        // TextAnalyzer.hasNonEnglishChars()
+    int[] terms;               // TextAnalyzer terms
+    int[] preprocessedTerms;   // TextAnalyzer terms, preprocessed
+
+    // Number of terms in each array, which may be longer when the arrays
+    // are reused (see Segment.readTerms())
+    int termCount;
+    int preprocessedTermCount;
+}
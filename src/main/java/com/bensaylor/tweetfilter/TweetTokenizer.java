@@ -0,0 +1,216 @@
+package com.bensaylor.tweetfilter;
+
+/**
+ * Single-pass tokenizer for tweet text that allocates nothing per tweet once
+ * its buffers have grown to fit.
+ *
+ * In one pass over the text it finds the tokens and checks for a leading
+ * "RT" and for non-English characters. Tokens are copied into a shared char
+ * buffer and described by start and end offsets into it.
+ *
+ * Without preprocessing, the tokens are those of Weka's WordTokenizer with its
+ * default delimiters. With preprocessing, they are the WordTokenizer tokens
+ * of the text after
+ *   text.replaceAll("http\\S+", "http").replaceAll("\\p{Punct}", " ")
+ * that is, links are replaced with "http" and ASCII punctuation splits
+ * tokens. The non-English check gives the same result as checking the text
+ * with a US-ASCII CharsetEncoder after blanking out ALLOWED_NON_ASCII_CHARS.
+ *
+ * A TweetTokenizer is not thread-safe.
+ *
+ * @author Ben Saylor
+ */
+class TweetTokenizer {
+
+    /** Non-ASCII characters that sometimes occur in English tweets */
+    static final String ALLOWED_NON_ASCII_CHARS = new StringBuilder()
+        .append("\u00a0") // non-breaking space
+        .append("\u2018") // left single quote
+        .append("\u2019") // right single quote
+        .append("\u201C") // left double quote
+        .append("\u201D") // right double quote
+        .append("\u2026") // horizontal ellipsis
+        .append("\u2013") // en dash
+        .append("\u2014") // em dash
+        .toString();
+
+    // WordTokenizer's default delimiters
+    private static final String DELIMITERS = " \r\n\t.,;:'\"()?!";
+
+    // Character classes of the ASCII characters
+    private static final byte DELIMITER = 1;   // WordTokenizer delimiter
+    private static final byte PUNCT = 2;       // \p{Punct}
+    private static final byte WHITESPACE = 4;  // \s
+    private static final byte[] ASCII_CLASSES = new byte[128];
+
+    // Bit c is set for each delimiter c (they are all below 64)
+    private static final long DELIMITER_MASK;
+
+    static {
+        long mask = 0;
+        for (char c : DELIMITERS.toCharArray()) {
+            ASCII_CLASSES[c] |= DELIMITER;
+            mask |= 1L << c;
+        }
+        DELIMITER_MASK = mask;
+        for (char c : "!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~".toCharArray()) {
+            ASCII_CLASSES[c] |= PUNCT;
+        }
+        for (char c : " \t\n\u000B\f\r".toCharArray()) {
+            ASCII_CLASSES[c] |= WHITESPACE;
+        }
+    }
+
+    private char[] text = new char[256];
+    private char[] tokenChars = new char[256];
+    private int[] tokenStarts = new int[32];
+    private int[] tokenEnds = new int[32];
+    private int numTokens;
+    private boolean retweet;
+    private boolean nonEnglish;
+
+    /**
+     * Tokenize the given text, replacing the results of the previous call.
+     *
+     * @param s The text
+     * @param preprocess Whether to replace links and split on punctuation
+     */
+    void tokenize(String s, boolean preprocess) {
+        int length = s.length();
+        if (text.length < length) {
+            text = new char[Math.max(length, 2 * text.length)];
+        }
+        if (tokenChars.length < length) {
+            tokenChars = new char[text.length];
+        }
+        s.getChars(0, length, text, 0);
+
+        retweet = length >= 2 && text[0] == 'R' && text[1] == 'T';
+        nonEnglish = false;
+        numTokens = 0;
+
+        // Token boundaries are delimiters, plus punctuation if preprocessing
+        int boundary = preprocess ? (DELIMITER | PUNCT) : DELIMITER;
+        int out = 0;
+        int tokenStart = -1;
+        int i = 0;
+        while (i < length) {
+            char c = text[i];
+            if (c >= 128) {
+                checkNonAscii(c);
+            } else if (preprocess && c == 'h' && i + 4 < length
+                    && text[i + 1] == 't' && text[i + 2] == 't'
+                    && text[i + 3] == 'p' && !isWhitespace(text[i + 4])) {
+                // A link: keep "http" and drop the rest, up to whitespace
+                if (tokenStart < 0) {
+                    tokenStart = out;
+                }
+                tokenChars[out++] = 'h';
+                tokenChars[out++] = 't';
+                tokenChars[out++] = 't';
+                tokenChars[out++] = 'p';
+                i += 4;
+                while (i < length && !isWhitespace(text[i])) {
+                    if (text[i] >= 128) {
+                        checkNonAscii(text[i]);
+                    }
+                    i++;
+                }
+                continue;
+            }
+
+            if (c < 128 && (ASCII_CLASSES[c] & boundary) != 0) {
+                if (tokenStart >= 0) {
+                    addToken(tokenStart, out);
+                    tokenStart = -1;
+                }
+            } else {
+                if (tokenStart < 0) {
+                    tokenStart = out;
+                }
+                tokenChars[out++] = c;
+            }
+            i++;
+        }
+        if (tokenStart >= 0) {
+            addToken(tokenStart, out);
+        }
+    }
+
+    /**
+     * @param c A character
+     * @return true if c is one of WordTokenizer's default delimiters
+     */
+    static boolean isDelimiter(char c) {
+        return c < 64 && ((DELIMITER_MASK >>> c) & 1) != 0;
+    }
+
+    /**
+     * @return true if the text starts with "RT"
+     */
+    boolean isRetweet() {
+        return retweet;
+    }
+
+    /**
+     * @return true if the text has non-ASCII characters other than
+     * ALLOWED_NON_ASCII_CHARS
+     */
+    boolean hasNonEnglishChars() {
+        return nonEnglish;
+    }
+
+    /**
+     * @return The number of tokens
+     */
+    int getTokenCount() {
+        return numTokens;
+    }
+
+    /**
+     * @return The buffer holding the tokens' characters
+     */
+    char[] getTokenChars() {
+        return tokenChars;
+    }
+
+    /**
+     * @param i Token number
+     * @return Offset of the token's first character in getTokenChars()
+     */
+    int getTokenStart(int i) {
+        return tokenStarts[i];
+    }
+
+    /**
+     * @param i Token number
+     * @return Offset just past the token's last character in getTokenChars()
+     */
+    int getTokenEnd(int i) {
+        return tokenEnds[i];
+    }
+
+    private void checkNonAscii(char c) {
+        if (ALLOWED_NON_ASCII_CHARS.indexOf(c) < 0) {
+            nonEnglish = true;
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c < 128 && (ASCII_CLASSES[c] & WHITESPACE) != 0;
+    }
+
+    private void addToken(int start, int end) {
+        if (numTokens == tokenStarts.length) {
+            int[] starts = new int[2 * numTokens];
+            int[] ends = new int[2 * numTokens];
+            System.arraycopy(tokenStarts, 0, starts, 0, numTokens);
+            System.arraycopy(tokenEnds, 0, ends, 0, numTokens);
+            tokenStarts = starts;
+            tokenEnds = ends;
+        }
+        tokenStarts[numTokens] = start;
+        tokenEnds[numTokens] = end;
+        numTokens++;
+    }
+}